@@ -0,0 +1,157 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import java.util.Random;
+
+
+/**
+ * Synthetic stacks shared by benchmarks, generated from a fixed seed so that every run measures the same data
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+class BenchmarkData {
+
+    static Calibration calibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = 0.5;
+        cal.pixelHeight = 0.5;
+        cal.pixelDepth = 1;
+        cal.setUnit("microns");
+        return(cal);
+    }
+
+
+    /**
+     * 16-bit stack with gamma-distributed intensities
+     */
+    static ImagePlus intensities(int size, int depth) {
+        Random rng = new Random(42);
+        ImageStack stack = new ImageStack(size, size);
+        for (int z = 0; z < depth; z++) {
+            short[] plane = new short[size*size];
+            for (int i = 0; i < plane.length; i++)
+                plane[i] = (short) Math.min(65535, 200 + 300*(-Math.log(1 - rng.nextDouble())));
+            stack.addSlice("", plane);
+        }
+        ImagePlus img = new ImagePlus("intensities", stack);
+        img.setCalibration(calibration());
+        return(img);
+    }
+
+
+    /**
+     * 8-bit mask of vessels: tubes parallel to x and y axes, 255 inside
+     */
+    static ImagePlus vessels(int size, int depth, int nbVessels) {
+        Random rng = new Random(42);
+        ImageStack stack = new ImageStack(size, size);
+        for (int z = 0; z < depth; z++)
+            stack.addSlice("", new byte[size*size]);
+        for (int v = 0; v < nbVessels; v++) {
+            boolean alongX = rng.nextBoolean();
+            int c = rng.nextInt(size), cz = rng.nextInt(depth), radius = 2 + rng.nextInt(4);
+            for (int z = Math.max(0, cz - radius); z < Math.min(depth, cz + radius + 1); z++) {
+                byte[] plane = (byte[]) stack.getPixels(z + 1);
+                for (int d = -radius; d <= radius; d++) {
+                    if (c + d < 0 || c + d >= size || d*d + (z - cz)*(z - cz) > radius*radius)
+                        continue;
+                    for (int t = 0; t < size; t++)
+                        plane[alongX ? (c + d)*size + t : t*size + c + d] = (byte) 255;
+                }
+            }
+        }
+        ImagePlus img = new ImagePlus("vessels", stack);
+        img.setCalibration(calibration());
+        return(img);
+    }
+
+
+    /**
+     * 8-bit skeleton: one-voxel lines with short side branches, 255 on lines
+     */
+    static ImagePlus skeleton(int size, int depth, int nbBranches) {
+        Random rng = new Random(42);
+        ImageStack stack = new ImageStack(size, size);
+        for (int z = 0; z < depth; z++)
+            stack.addSlice("", new byte[size*size]);
+        int z = depth / 2;
+        byte[] plane = (byte[]) stack.getPixels(z + 1);
+        int y = size / 2;
+        for (int x = 0; x < size; x++)
+            plane[y*size + x] = (byte) 255;
+        for (int b = 0; b < nbBranches; b++) {
+            int x = 1 + rng.nextInt(size - 2), length = 2 + rng.nextInt(size / 8);
+            int dir = rng.nextBoolean() ? 1 : -1;
+            for (int l = 1; l <= length && y + dir*l >= 0 && y + dir*l < size; l++)
+                plane[(y + dir*l)*size + x] = (byte) 255;
+        }
+        ImagePlus img = new ImagePlus("skeleton", stack);
+        img.setCalibration(calibration());
+        return(img);
+    }
+
+
+    /**
+     * 16-bit labels of 2D disks, roughly aligned across slices like Omnipose masks of 3D nuclei
+     */
+    static ImagePlus diskLabels(int size, int depth, int nbObjects) {
+        Random rng = new Random(42);
+        ImageStack stack = new ImageStack(size, size);
+        for (int z = 0; z < depth; z++)
+            stack.addSlice("", new short[size*size]);
+        int[] next = new int[depth];
+        for (int o = 0; o < nbObjects; o++) {
+            int cx = rng.nextInt(size), cy = rng.nextInt(size), cz = rng.nextInt(depth), radius = 3 + rng.nextInt(6);
+            for (int z = Math.max(0, cz - radius/2); z < Math.min(depth, cz + radius/2 + 1); z++) {
+                short[] plane = (short[]) stack.getPixels(z + 1);
+                short label = (short) (++next[z]);
+                int jx = cx + rng.nextInt(3) - 1, jy = cy + rng.nextInt(3) - 1;
+                for (int y = Math.max(0, jy - radius); y < Math.min(size, jy + radius + 1); y++)
+                    for (int x = Math.max(0, jx - radius); x < Math.min(size, jx + radius + 1); x++)
+                        if ((x - jx)*(x - jx) + (y - jy)*(y - jy) <= radius*radius)
+                            plane[y*size + x] = label;
+            }
+        }
+        ImagePlus img = new ImagePlus("labels", stack);
+        img.setCalibration(calibration());
+        return(img);
+    }
+
+
+    /**
+     * 16-bit labels of 3D spheres
+     */
+    static ImagePlus sphereLabels(int size, int depth, int nbObjects) {
+        Random rng = new Random(42);
+        ImageStack stack = new ImageStack(size, size);
+        for (int z = 0; z < depth; z++)
+            stack.addSlice("", new short[size*size]);
+        for (int o = 1; o <= nbObjects; o++) {
+            int cx = rng.nextInt(size), cy = rng.nextInt(size), cz = rng.nextInt(depth), radius = 3 + rng.nextInt(5);
+            for (int z = Math.max(0, cz - radius); z < Math.min(depth, cz + radius + 1); z++) {
+                short[] plane = (short[]) stack.getPixels(z + 1);
+                for (int y = Math.max(0, cy - radius); y < Math.min(size, cy + radius + 1); y++)
+                    for (int x = Math.max(0, cx - radius); x < Math.min(size, cx + radius + 1); x++)
+                        if ((x - cx)*(x - cx) + (y - cy)*(y - cy) + (z - cz)*(z - cz) <= radius*radius)
+                            plane[y*size + x] = (short) o;
+            }
+        }
+        ImagePlus img = new ImagePlus("spheres", stack);
+        img.setCalibration(calibration());
+        return(img);
+    }
+
+
+    /**
+     * Centered rectangular ROI covering half of the image, translated across stack like ROIs loaded by Tools.loadRois
+     */
+    static Roi roi(int size) {
+        Roi roi = new Roi(size/4, size/4, size/2, size/2);
+        roi.setName("benchmark");
+        roi.setProperty("translation", (size/16) + "_" + (size/16));
+        return(roi);
+    }
+
+}
@@ -0,0 +1,97 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import Vessels_Microglia_Endothelium_Tools.QuantileBasedNormalization.Replacements;
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Quantile based normalization of a 16-bit stack, same number of quantiles as the plugin
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Djava.awt.headless=true", "-Xmx8g"})
+public class QuantileBasedNormalizationBenchmark {
+
+    @Param({"256", "512"})
+    int size;
+
+    @Param({"32", "64"})
+    int depth;
+
+    final int numberOfQuantiles = 256;
+    final QuantileBasedNormalization normalization = new QuantileBasedNormalization();
+    ImagePlus img;
+    long[] frequencies;
+    long pointsInImage;
+    double[] quantileMeans;
+    // Replacements are consumed by remapImage, so they are generated again before each invocation
+    Replacements[] rankReplacements;
+    Replacements[] meanReplacements;
+
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        img = BenchmarkData.intensities(size, depth);
+        frequencies = new long[QuantileBasedNormalization.POSSIBLE_16_BIT_VALUES];
+        ImageStack stack = img.getStack();
+        for (int z = 1; z <= stack.getSize(); z++)
+            for (short v: (short[]) stack.getPixels(z))
+                frequencies[v & 0xffff]++;
+        pointsInImage = (long) size*size*depth;
+
+        long[] sums = new long[numberOfQuantiles];
+        long[] counts = new long[numberOfQuantiles];
+        normalization.divideIntoQuantiles(numberOfQuantiles, frequencies, pointsInImage, sums, counts);
+        quantileMeans = new double[numberOfQuantiles];
+        for (int q = 0; q < numberOfQuantiles; q++)
+            quantileMeans[q] = sums[q] / (double) counts[q];
+    }
+
+
+    @Setup(Level.Invocation)
+    public void setupReplacements() {
+        int possibleValues = frequencies.length;
+        rankReplacements = new Replacements[possibleValues];
+        meanReplacements = new Replacements[possibleValues];
+        for (int value = 0; value < possibleValues; value++) {
+            meanReplacements[value] = normalization.new Replacements(possibleValues);
+            rankReplacements[value] = normalization.new Replacements(numberOfQuantiles);
+        }
+        normalization.generateReplacements(img, numberOfQuantiles, pointsInImage, frequencies, new long[numberOfQuantiles],
+                                           new long[numberOfQuantiles], quantileMeans, rankReplacements, meanReplacements);
+    }
+
+
+    @Benchmark
+    public long[] divideIntoQuantiles() {
+        long[] sums = new long[numberOfQuantiles];
+        long[] counts = new long[numberOfQuantiles];
+        normalization.divideIntoQuantiles(numberOfQuantiles, frequencies, pointsInImage, sums, counts);
+        return(sums);
+    }
+
+
+    @Benchmark
+    public ImagePlus remapImage() {
+        return(normalization.remapImage(img, numberOfQuantiles, false, true, rankReplacements, meanReplacements));
+    }
+
+}
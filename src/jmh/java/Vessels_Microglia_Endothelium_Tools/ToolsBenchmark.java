@@ -0,0 +1,140 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.DistanceMap;
+import Vessels_Microglia_Endothelium_Tools.Results.ImageRows;
+import Vessels_Microglia_Endothelium_Tools.Results.SparseOverlay;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * CPU-only hot paths of Tools on synthetic stacks, parameterized by stack size and number of objects
+ * No CLIJ2 method is called, so benchmarks run on machines without OpenCL device
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Djava.awt.headless=true", "-Xmx8g"})
+public class ToolsBenchmark {
+
+    @Param({"256", "512"})
+    int size;
+
+    @Param({"32", "64"})
+    int depth;
+
+    @Param({"100", "1000"})
+    int objects;
+
+    Tools tools;
+    Calibration cal;
+    Roi roi;
+    ImagePlus imgVessels;
+    ImagePlus imgSkel;
+    ImagePlus imgSpheres;
+    ImagePlus imgDisks;
+    Objects3DIntPopulation pop;
+    DistanceMap distMap;
+    DistanceMap distMapInv;
+    ImagePlus imgVesselsRoiDil;
+    ImagePlus imgStitch;
+
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        tools = new Tools();
+        cal = BenchmarkData.calibration();
+        roi = BenchmarkData.roi(size);
+        imgVessels = BenchmarkData.vessels(size, depth, Math.max(1, objects / 20));
+        imgSkel = BenchmarkData.skeleton(size, depth, objects);
+        imgSpheres = BenchmarkData.sphereLabels(size, depth, objects);
+        imgDisks = BenchmarkData.diskLabels(size, depth, objects);
+        pop = new Objects3DIntPopulation(ImageHandler.wrap(imgSpheres));
+        distMap = tools.distanceMap3D(imgVessels, false, cal);
+        distMapInv = tools.distanceMap3D(imgVessels, true, cal);
+        imgVesselsRoiDil = tools.clearOutsideRoi(imgVessels, roi, true, cal);
+    }
+
+
+    @Setup(Level.Invocation)
+    public void setupStitch() {
+        // Stitching works in place
+        imgStitch = imgDisks.duplicate();
+    }
+
+
+    @TearDown(Level.Invocation)
+    public void tearDownStitch() {
+        imgStitch.close();
+    }
+
+
+    @Benchmark
+    public ImagePlus stitch3D() {
+        new MaskStitcher(0.1).stitch(imgStitch);
+        return(imgStitch);
+    }
+
+
+    @Benchmark
+    public ImagePlus pruneSkeleton() {
+        ImagePlus imgPruned = tools.pruneSkeleton(imgSkel);
+        imgPruned.close();
+        return(imgPruned);
+    }
+
+
+    @Benchmark
+    public ImagePlus clearOutsideRoi() {
+        ImagePlus imgRoi = tools.clearOutsideRoi(imgVessels, roi, true, cal);
+        imgRoi.close();
+        return(imgRoi);
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation getPopInsideRoi() {
+        return(tools.getPopInsideRoi(pop, imgSpheres, roi));
+    }
+
+
+    @Benchmark
+    public DistanceMap distanceMap3D() {
+        return(tools.distanceMap3D(imgVessels, false, cal));
+    }
+
+
+    @Benchmark
+    public SparseOverlay microgliaMeasurement() {
+        SparseOverlay drawMicroClass = new SparseOverlay(imgSpheres, 16);
+        ImageRows rows = new ImageRows("benchmark");
+        Objects3DIntPopulation popInRoi = tools.getPopInsideRoi(pop, imgSpheres, roi);
+        int[] microClasses = tools.saveMicroResultsInRoi(roi, popInRoi, 1, imgVesselsRoiDil, imgSkel, distMap, distMapInv, cal, 1,
+                                                         rows.roi(0), "benchmark", roi.getName());
+        for (int i = 0; i < microClasses.length; i++)
+            if (microClasses[i] != 0)
+                drawMicroClass.draw(popInRoi.getObjects3DInt().get(i), microClasses[i]);
+        return(drawMicroClass);
+    }
+
+}
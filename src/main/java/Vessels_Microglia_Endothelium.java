@@ -1,4 +1,16 @@
+import Vessels_Microglia_Endothelium_Tools.Cellpose.CellposeWorker;
+import Vessels_Microglia_Endothelium_Tools.Checkpoint;
+import Vessels_Microglia_Endothelium_Tools.ImageScan;
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.DistanceMap;
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
 import Vessels_Microglia_Endothelium_Tools.QuantileBasedNormalization;
+import Vessels_Microglia_Endothelium_Tools.Results.ImageRows;
+import Vessels_Microglia_Endothelium_Tools.Results.OverlayWriter;
+import Vessels_Microglia_Endothelium_Tools.Results.ResultsSink;
+import Vessels_Microglia_Endothelium_Tools.Stages.ReadAhead;
+import Vessels_Microglia_Endothelium_Tools.Stages.Stage;
+import Vessels_Microglia_Endothelium_Tools.Stages.StageMetrics;
+import Vessels_Microglia_Endothelium_Tools.Stages.StageScheduler;
 import Vessels_Microglia_Endothelium_Tools.Tools;
 import ij.*;
 import ij.gui.Roi;
@@ -10,22 +22,34 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import loci.common.services.ServiceFactory;
 import loci.formats.meta.IMetadata;
 import loci.formats.services.OMEXMLService;
 import loci.plugins.BF;
 import loci.plugins.in.ImporterOptions;
 import loci.plugins.util.ImageProcessorReader;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
 import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
 import mcib3d.image3d.ImageFloat;
+import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageShort;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.ArrayUtils;
 
@@ -39,6 +63,8 @@ import org.apache.commons.lang.ArrayUtils;
 public class Vessels_Microglia_Endothelium implements PlugIn {
 
     private Vessels_Microglia_Endothelium_Tools.Tools tools = new Tools();
+    // Whether intermediate images are checkpointed, only when run may be resumed
+    private boolean checkpointImages;
     
     public void run(String arg) {
         try {
@@ -67,25 +93,174 @@ public class Vessels_Microglia_Endothelium implements PlugIn {
             
             // Find channel names
             String[] channelNames = tools.findChannels(imageFiles.get(0), meta, reader);
+            reader.close();
             
             // Generate dialog box
             String[] channels = tools.dialog(imageDir, channelNames);
             if(channels == null) {
                 return;
-            } else if(channels[0] == "None") {
-                IJ.showMessage("ERROR", "Vessels channel not defined");
-                return;
             }
             
+            analyze(imageDir, imageFiles, channelNames, channels);
+        } catch (IOException ex) {
+            Logger.getLogger(Vessels_Microglia_Endothelium.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (Exception ex) {
+            Logger.getLogger(Vessels_Microglia_Endothelium.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    
+    /**
+     * Headless entry point, for cluster nodes and scheduled jobs
+     * Every dialog box parameter is read from a properties file, see Tools.readParameters()
+     * Usage: java -Djava.awt.headless=true -cp ... Vessels_Microglia_Endothelium parameters.properties
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: Vessels_Microglia_Endothelium parameters.properties");
+            System.exit(1);
+        }
+        System.setProperty("java.awt.headless", "true");
+        try {
+            Properties params = new Properties();
+            try (Reader in = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+                params.load(in);
+            }
+            new Vessels_Microglia_Endothelium().runHeadless(params);
+        } catch (Exception ex) {
+            Logger.getLogger(Vessels_Microglia_Endothelium.class.getName()).log(Level.SEVERE, null, ex);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+    
+    
+    /**
+     * Run analysis with parameters read from properties instead of dialog boxes
+     */
+    public void runHeadless(Properties params) throws Exception {
+        if (!tools.checkInstalledModules())
+            throw new IllegalStateException("Missing modules");
+        
+        String imageDir = params.getProperty("images");
+        if (imageDir == null)
+            throw new IllegalArgumentException("Parameter images (images directory) not defined");
+        if (!imageDir.endsWith(File.separator))
+            imageDir += File.separator;
+        
+        // Find images with tif extension
+        ArrayList<String> imageFiles = tools.findImages(imageDir, "tif");
+        if (imageFiles.isEmpty())
+            throw new IllegalArgumentException("No image found with tif extension in " + imageDir + " folder");
+        
+        // Create OME-XML metadata store of the latest schema version
+        ServiceFactory factory = new ServiceFactory();
+        OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        IMetadata meta = service.createOMEXMLMetadata();
+        ImageProcessorReader reader = new ImageProcessorReader();
+        reader.setMetadataStore(meta);
+        
+        // Find channel names and read parameters
+        String[] channelNames = tools.findChannels(imageFiles.get(0), meta, reader);
+        reader.close();
+        String[] channels = tools.readParameters(params, channelNames);
+        
+        // Headless run exits with an error status if images cannot be analyzed
+        if (!analyze(imageDir, imageFiles, channelNames, channels))
+            throw new IllegalStateException("Images cannot be analyzed with these parameters, see errors above");
+    }
+    
+    
+    /**
+     * Analyze all images with parameters chosen in dialog box or read from properties
+     * @return false if analysis could not start (vessels channel not defined or images failing validation)
+     */
+    private boolean analyze(String imageDir, ArrayList<String> imageFiles, String[] channelNames, String[] channels) throws Exception {
+        if(channels[0] == "None") {
+            tools.print("ERROR: Vessels channel not defined");
+            IJ.showMessage("ERROR", "Vessels channel not defined");
+            return(false);
+        }
+        
+        // Images of this node when run is sharded over several nodes, all images otherwise
+        ArrayList<String> shardFiles = tools.shardImages(imageFiles);
+        boolean sharded = tools.shardCount > 1;
+        
+        // Check metadata of all images before starting, rather than failing when a mismatched image is reached
+        tools.print("--- CHECKING METADATA OF " + shardFiles.size() + " IMAGES ---");
+        ImageScan scan = ImageScan.scan(shardFiles, Runtime.getRuntime().availableProcessors(), tools);
+        for (String warning: scan.warnings(tools.vesselNormalization))
+            tools.print("WARNING: " + warning);
+        List<String> problems = scan.validate(channelNames, channels, tools.vesselNormalization);
+        if (!problems.isEmpty()) {
+            for (String problem: problems)
+                tools.print("ERROR: " + problem);
+            IJ.showMessage("ERROR", problems.size() + " image(s) cannot be analyzed:\n" + String.join("\n", problems.subList(0, Math.min(10, problems.size()))) +
+                                    (problems.size() > 10 ? "\n..." : ""));
+            return(false);
+        }
+        // Channels held in heap during analysis, out of core channels being memory-mapped
+        int heapChannels = 0;
+        for (int c = 0; c < channels.length; c++)
+            if (!channels[c].equals("None") && (!tools.outOfCore || c == 2))
+                heapChannels++;
+        if (!tools.outOfCore) {
+            for (String f : shardFiles) {
+                long peak = scan.peakBytes(f, heapChannels);
+                if (peak > Runtime.getRuntime().maxMemory())
+                    tools.print("WARNING: " + FilenameUtils.getName(f) + " needs about " + (peak >> 20) + " MB, more than the " + 
+                                (Runtime.getRuntime().maxMemory() >> 20) + " MB available, consider out of core processing");
+            }
+        }
+        String normDir = imageDir + File.separator + "Normalization" + File.separator;
+        if (tools.shardPhase == "statistics") {
+            // Phase 1 of sharded run: only normalization statistics of shard images, shared through normalization folder
+            if (tools.vesselNormalization) {
+                tools.print("--- COMPUTING NORMALIZATION STATISTICS OF SHARD " + (tools.shardIndex + 1) + "/" + tools.shardCount + " ---");
+                new File(normDir).mkdirs();
+                tools.saveChannel(normDir, shardFiles, ArrayUtils.indexOf(channelNames, channels[0]), "-vessels.tif");
+                new QuantileBasedNormalization().computeStatistics(normDir, shardFiles, "-vessels");
+                tools.deleteChannel(normDir, shardFiles, "-vessels.tif");
+            }
+            tools.print("All done!");
+            return(true);
+        }
+        
+        ExecutorService stagePool = null;
+        ResultsSink sink = null;
+        ReadAhead<LoadedImage> imageReader = null;
+        try {
             // Create output folder for results files and images
             String vesselNorm = tools.vesselNormalization? "Norm_" : "";
             String vesselMethodName = (tools.vesselSegMethod == "Cellpose")? tools.cellposeModelVessel : tools.vesselThMethod;
             String microMethodName = (channels[1].equals("None")) ? "" : tools.microThMethod + "_";
-            String outDir = imageDir + File.separator + "Results_" + vesselNorm + vesselMethodName + "_" + microMethodName +
-                            new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + File.separator;
+            String diamPercentiles = (tools.diameterPercentiles.length == 0) ? "" : "P" + tools.percentilesString().replace(",", "-") + "_";
+            String outPrefix = "Results_" + vesselNorm + vesselMethodName + "_" + diamPercentiles + microMethodName;
+            String outDir = imageDir + File.separator + outPrefix + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + File.separator;
+            // Shards write to a folder of their own, without date so that a restarted shard carries on where it stopped
+            if (sharded)
+                outDir = imageDir + File.separator + "Shard" + (tools.shardIndex + 1) + "of" + tools.shardCount + "_" + outPrefix.substring(0, outPrefix.length() - 1) + File.separator;
+            // If asked in dialog box, resume latest run done with same settings
+            String settings = tools.settings(channels);
+            File previousRun = (tools.resume && !sharded) ? Checkpoint.findPreviousRun(imageDir, outPrefix, settings) : null;
+            if (previousRun != null) {
+                outDir = previousRun.getPath() + File.separator;
+                tools.print("--- RESUMING RUN " + previousRun.getName() + " ---");
+            } else if (tools.resume && !sharded) {
+                tools.print("--- NO PREVIOUS RUN WITH SAME SETTINGS, STARTING A NEW RUN ---");
+            }
+            // A restarted shard only carries on in its folder with the same settings
+            if (sharded && new File(outDir, Checkpoint.SETTINGS).exists() && !Checkpoint.sameSettings(new File(outDir), settings))
+                throw new IllegalStateException("Shard folder " + outDir + " was started with other settings, remove it to run shard again");
             if (!Files.exists(Paths.get(outDir))) {
                 new File(outDir).mkdir();
             }
+            Checkpoint checkpoint = new Checkpoint(new File(outDir));
+            checkpoint.saveSettings(settings);
+            // Full-size intermediate images are only written if they can be reloaded, by a resumed run or a restarted shard
+            checkpointImages = tools.resume || sharded;
+            // Timing and memory of each stage
+            tools.metrics = new StageMetrics(new File(outDir, "metrics.csv"));
             
             // Write headers in results files
             // Global
@@ -101,11 +276,45 @@ public class Vessels_Microglia_Endothelium implements PlugIn {
                 microResults = new BufferedWriter(fwMicroResults);
             }
             tools.writeHeaders(channels, globalResults, vesselResults, microResults);
+            // Results files are then only written by the sink, image by image
+            sink = new ResultsSink(checkpoint, globalResults, vesselResults, microResults);
+            // Effectively final sink, for commits run later by overlay writer
+            ResultsSink results = sink;
+            if (tools.columnarResults)
+                sink.writeColumnar(new File(outDir), tools.headers(channels), tools.columnarCompression);
+            // Rows are written in image order, so that a restarted shard stays sorted
+            List<String> imageOrder = new ArrayList<>();
+            for (String f : shardFiles)
+                imageOrder.add(FilenameUtils.getBaseName(f));
+            sink.order(imageOrder);
+            // Rebuild results files with rows of images already analyzed
+            for (String f : shardFiles) {
+                String rootName = FilenameUtils.getBaseName(f);
+                if (checkpoint.isDone(rootName))
+                    sink.rebuild(rootName);
+            }
             
             // If asked in dialog box, normalize vessels channel
-            String normDir = imageDir + File.separator + "Normalization" + File.separator;
-            if (tools.vesselNormalization && !Files.exists(Paths.get(normDir))) {
+            if (tools.vesselNormalization && sharded) {
+                // Phase 2 of sharded run: quantile means of all images from statistics of all shards, then shard images remapped
+                ArrayList<String> toNormalize = new ArrayList<>();
+                for (String f : shardFiles)
+                    if (!new File(normDir + FilenameUtils.getBaseName(f) + "-vessels-normalized.tif").exists())
+                        toNormalize.add(f);
+                if (!toNormalize.isEmpty()) {
+                    tools.print("--- NORMALIZING IMAGES OF SHARD " + (tools.shardIndex + 1) + "/" + tools.shardCount + " ---");
+                    StageMetrics.Sample normSample = tools.metrics.start("Shard images", "normalization");
+                    QuantileBasedNormalization normalization = new QuantileBasedNormalization();
+                    double[] quantileMeans = normalization.reduceStatistics(normDir, imageFiles, "-vessels");
+                    tools.saveChannel(normDir, toNormalize, ArrayUtils.indexOf(channelNames, channels[0]), "-vessels.tif");
+                    normalization.remap(normDir, toNormalize, "-vessels", quantileMeans);
+                    tools.deleteChannel(normDir, toNormalize, "-vessels.tif");
+                    normSample.stop();
+                    tools.print("Normalization done");
+                }
+            } else if (tools.vesselNormalization && !Files.exists(Paths.get(normDir))) {
                 tools.print("--- NORMALIZING IMAGES ---");
+                StageMetrics.Sample normSample = tools.metrics.start("All images", "normalization");
                 // Create output folder for normalized files
                 new File(normDir).mkdir();
                 // Save images vessels channel
@@ -114,112 +323,353 @@ public class Vessels_Microglia_Endothelium implements PlugIn {
                 new QuantileBasedNormalization().run(normDir, imageFiles, "-vessels");
                 // Delete images vessels channel
                 tools.deleteChannel(normDir, imageFiles, "-vessels.tif");
+                normSample.stop();
                 tools.print("Normalization done");
             }
             
+            // Memory-mapped stacks are staged next to results files
+            if (tools.outOfCore)
+                tools.outOfCoreDir = new File(outDir, "outOfCore");
+            
+            // Submit vessels and endothelial nuclei channels of all images to Cellpose/Omnipose at once
+            // Inference runs in the background and masks are taken back image by image during analysis
+            if (tools.batchCellpose && (tools.vesselSegMethod == "Cellpose" || !channels[2].equals("None"))) {
+                tools.print("--- SUBMITTING IMAGES TO CELLPOSE ---");
+                tools.openCellposeBatches(new File(outDir, "cellposeBatch"), !channels[2].equals("None"));
+                for (String f : shardFiles) {
+                    String rootName = FilenameUtils.getBaseName(f);
+                    if (checkpoint.isDone(rootName))
+                        continue;
+                    ImporterOptions options = new ImporterOptions();
+                    options.setId(f);
+                    options.setSplitChannels(true);
+                    options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
+                    options.setQuiet(true);
+                    ImagePlus[] imgChannels = BF.openImagePlus(options);
+                    
+                    ImagePlus imgVessels = tools.vesselNormalization ? IJ.openImage(normDir + rootName + "-vessels-normalized.tif") :
+                                                                       imgChannels[ArrayUtils.indexOf(channelNames, channels[0])];
+                    IJ.run(imgVessels, "16-bit", "");
+                    ImagePlus imgEndo = null;
+                    if (!channels[2].equals("None")) {
+                        imgEndo = imgChannels[ArrayUtils.indexOf(channelNames, channels[2])];
+                        IJ.run(imgEndo, "16-bit", "");
+                    }
+                    tools.submitToCellposeBatches(rootName, imgVessels, imgEndo);
+                    
+                    tools.closeImage(imgVessels);
+                    for (ImagePlus imgChannel : imgChannels)
+                        imgChannel.close();
+                }
+                tools.startCellposeBatches();
+            }
+            
             IJ.setForegroundColor(255, 255, 255);
             IJ.setBackgroundColor(0, 0, 0);
             
-            for (String f : imageFiles) {
-                String rootName = FilenameUtils.getBaseName(f);
-                tools.print("--- ANALYZING IMAGE " + rootName + " ---");
-                reader.setId(f);
-                
-                ImporterOptions options = new ImporterOptions();
-                options.setId(f);
-                options.setSplitChannels(true);
-                options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
-                options.setQuiet(true);
-                
-                // Find image calibration
-                Calibration cal = tools.findImageCalib(meta);
-                                
-                // Open channels
-                tools.print("- Opening channels -");
-                LUT lut = LUT.createLutFromColor(Color.gray);
-                
-                ImagePlus imgVessels = null;
-                if (tools.vesselNormalization) { 
-                    imgVessels = IJ.openImage(normDir + rootName + "-vessels-normalized.tif");
-                } else {
-                    int indexCh = ArrayUtils.indexOf(channelNames, channels[0]);
-                    imgVessels = BF.openImagePlus(options)[indexCh];
-                }
-                imgVessels.setLut(lut);
-                IJ.run(imgVessels, "16-bit", "");
-                
-                ImagePlus imgMicro = null;
-                if (!channels[1].equals("None")) {
-                    int indexCh = ArrayUtils.indexOf(channelNames, channels[1]);
-                    imgMicro = BF.openImagePlus(options)[indexCh];
-                    imgMicro.setLut(lut);
-                    IJ.run(imgMicro, "16-bit", "");
-                }
-                
-                ImagePlus imgEndo = null;
-                if (!channels[2].equals("None")) {                    
-                    int indexCh = ArrayUtils.indexOf(channelNames, channels[2]);
-                    imgEndo = BF.openImagePlus(options)[indexCh];
-                    imgEndo.setLut(lut);
-                    IJ.run(imgEndo, "16-bit", "");
-                }
-                
-                // Load ROIs (if provided)
-                tools.print("- Loading ROIs -");
-                List<Roi> rois = tools.loadRois(imageDir + File.separator + rootName, imgVessels, rootName);
-                
-                // Segment vessels
-                tools.print("- Segmenting vessels -");
-                ImagePlus imgVesselMask = tools.vesselSegmentation(imgVessels, cal);
-                
-                // Compute vessels skeleton
-                tools.print("- Skeletonizing vessels mask -");
-                ImagePlus imgVesselSkel = tools.skeletonize3D(imgVesselMask, cal);
-                // Prune vessels skeleton small branches
-                imgVesselSkel = tools.pruneSkeleton(imgVesselSkel);
-                
-                // Compute vessels distance map
-                tools.print("- Computing vessels distance map -");
-                ImageFloat vesselDistMap = tools.distanceMap3D(imgVesselMask, false, cal);
-
-                Objects3DIntPopulation microPop = new Objects3DIntPopulation();
-                ImageFloat vesselDistMapInv = null;
-                if (imgMicro != null) {
-                    // Segment microglia
-                    tools.print("- Segmenting microglia -");
-                    microPop = tools.microSegmentation(imgMicro, cal);
-                    // Compute vessels inverted distance map
-                    tools.print("- Computing vessels inverted distance map -");
-                    vesselDistMapInv = tools.distanceMap3D(imgVesselMask, true, cal);
+            // Pool shared by stages of all images
+            stagePool = Executors.newFixedThreadPool(tools.concurrentStages ? 3 : 1);
+            // Overlays of at most 2 images waiting to be written while next images are analyzed
+            int overlayThreads = 1, overlayQueue = 2;
+            tools.overlays = new OverlayWriter(overlayThreads, overlayQueue);
+            
+            // Images are read by a reader thread, ahead of analysis
+            List<String> toAnalyze = new ArrayList<>();
+            for (String f : shardFiles) {
+                if (checkpoint.isDone(FilenameUtils.getBaseName(f)))
+                    tools.print("--- SKIPPING IMAGE " + FilenameUtils.getBaseName(f) + ", ALREADY ANALYZED ---");
+                else
+                    toAnalyze.add(f);
+            }
+            // Fewer images read ahead if largest ones would not fit in memory together
+            int readAhead = scan.readAheadDepth(toAnalyze, tools.readAhead, heapChannels, overlayThreads, overlayQueue);
+            if (readAhead < tools.readAhead)
+                tools.print("- Reading " + readAhead + " image(s) ahead instead of " + tools.readAhead + " to fit in memory -");
+            tools.print("--- PLAN OF " + toAnalyze.size() + " IMAGES ---");
+            for (String line: scan.plan(toAnalyze, heapChannels))
+                tools.print(line);
+            imageReader = new ReadAhead<>(toAnalyze, readAhead, 
+                                          f -> loadImage(f, imageDir, normDir, channelNames, channels, scan), img -> img.close(tools));
+            long remainingVoxels = scan.voxels(toAnalyze), analyzedVoxels = 0;
+            long start = System.currentTimeMillis();
+            
+            ReadAhead.Loaded<LoadedImage> loaded;
+            while ((loaded = imageReader.next()) != null) {
+                String rootName = FilenameUtils.getBaseName(loaded.file);
+                long voxels = scan.get(loaded.file).voxels();
+                remainingVoxels -= voxels;
+                if (loaded.error != null) {
+                    // Image left unfinished, analyzed again when run is resumed
+                    tools.print("ERROR: image " + rootName + " could not be read: " + loaded.error.getMessage());
+                    Logger.getLogger(Vessels_Microglia_Endothelium.class.getName()).log(Level.SEVERE, null, loaded.error);
+                    sink.skip(rootName);
+                    continue;
                 }
+                LoadedImage img = loaded.value;
+                tools.print("--- ANALYZING IMAGE " + rootName + " ---");
+                tools.currentImage = rootName;
+                tools.metrics.startImage();
                 
-                Objects3DIntPopulation endoPop = new Objects3DIntPopulation();
-                if (imgEndo != null) {
-                    // Detect endothelial nuclei
-                    tools.print("- Segmenting endothelial nuclei -");
-                    endoPop = tools.endoSegmentation(imgEndo, cal);
+                // Segment and analyze, independent stages running concurrently
+                // Rows are kept aside until image is done, so that results files only contain complete images
+                ImageRows rows = sink.open(rootName);
+                try {
+                    analyzeImage(stagePool, checkpoint, img.rois, img.vessels, img.micro, img.endo, img.cal, rows, rootName, outDir);
+                    // Image is committed once its overlays are written, left for the next resume if they failed
+                    tools.overlays.whenWritten(rootName, () -> results.commit(rows), () -> results.skip(rootName));
+                } catch (Exception ex) {
+                    // Image left unfinished, analyzed again when run is resumed
+                    tools.print("ERROR: analysis of image " + rootName + " failed: " + ex.getMessage());
+                    Logger.getLogger(Vessels_Microglia_Endothelium.class.getName()).log(Level.SEVERE, null, ex);
+                    sink.skip(rootName);
+                } finally {
+                    // Channels are used by overlays
+                    tools.overlays.whenDone(rootName, () -> img.close(tools));
                 }
-               
-                // Save results
-                tools.saveResults(rois, imgVesselMask, imgVesselSkel, vesselDistMap, vesselDistMapInv, microPop, endoPop, 
-                                  imgVessels, imgMicro, imgEndo, cal, vesselResults, microResults, globalResults, rootName, outDir);
-
-                tools.closeImage(imgVessels);
-                tools.closeImage(imgVesselMask);
-                tools.closeImage(imgVesselSkel);
-                tools.closeImage(vesselDistMap.getImagePlus());
-                if (imgMicro != null) tools.closeImage(imgMicro);
-                if (imgMicro != null) tools.closeImage(vesselDistMapInv.getImagePlus());
-                if (imgEndo != null) tools.closeImage(imgEndo);
-            }
-            globalResults.close();
-            vesselResults.close();
-            if (!channels[1].equals("None")) microResults.close();
-        } catch (IOException ex) {
-            Logger.getLogger(Vessels_Microglia_Endothelium.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (Exception ex) {
-            Logger.getLogger(Vessels_Microglia_Endothelium.class.getName()).log(Level.SEVERE, null, ex);
+                analyzedVoxels += voxels;
+                tools.print("- Estimated remaining time: " + ImageScan.remainingTime(analyzedVoxels, System.currentTimeMillis() - start, remainingVoxels) + " -");
+            }
+            tools.overlays.close();
+            sink.close();
+            if (tools.outOfCore) FileUtils.deleteDirectory(tools.outOfCoreDir);
+        } finally {
+            if (imageReader != null) imageReader.close();
+            if (stagePool != null) stagePool.shutdownNow();
+            tools.overlays.close();
+            try {
+                if (sink != null) sink.close();
+                tools.metrics.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Vessels_Microglia_Endothelium.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            tools.closeCellposeBatches();
+            CellposeWorker.shutdownAll();
         }
         tools.print("All done!");
+        return(true);
+    }
+    
+    
+    /**
+     * Channels, calibration and ROIs of one image
+     */
+    private static class LoadedImage {
+        Calibration cal;
+        ImagePlus vessels, micro, endo;
+        List<Roi> rois;
+        
+        void close(Tools tools) {
+            if (vessels != null) tools.closeImage(vessels);
+            if (micro != null) tools.closeImage(micro);
+            if (endo != null) tools.closeImage(endo);
+        }
+    }
+    
+    
+    /**
+     * Open channels needed for analysis and load ROIs of image f, calibration being taken from pre-scan
+     * Called by image reader thread
+     */
+    private LoadedImage loadImage(String f, String imageDir, String normDir, String[] channelNames, String[] channels, 
+                                  ImageScan scan) throws Exception {
+        String rootName = FilenameUtils.getBaseName(f);
+        LoadedImage img = new LoadedImage();
+        StageMetrics.Sample loadSample = tools.metrics.start(rootName, "load");
+        try {
+            ImporterOptions options = new ImporterOptions();
+            options.setId(f);
+            options.setSplitChannels(true);
+            options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
+            options.setQuiet(true);
+            
+            img.cal = scan.get(f).cal;
+            
+            // Open channels
+            tools.print("- Opening channels of " + rootName + " -");
+            LUT lut = LUT.createLutFromColor(Color.gray);
+            
+            // Bio-Formats reads all channels at once, so that image is opened once and its unused channels closed
+            boolean vesselsFromImage = !tools.vesselNormalization && !tools.outOfCore;
+            boolean microFromImage = !channels[1].equals("None") && !tools.outOfCore;
+            ImagePlus[] imps = (vesselsFromImage || microFromImage || !channels[2].equals("None")) ? BF.openImagePlus(options) : new ImagePlus[0];
+            
+            if (tools.vesselNormalization && tools.outOfCore) {
+                img.vessels = tools.openChannelOutOfCore(normDir + rootName + "-vessels-normalized.tif", 0, rootName + "-vessels");
+            } else if (tools.vesselNormalization) { 
+                img.vessels = IJ.openImage(normDir + rootName + "-vessels-normalized.tif");
+            } else if (tools.outOfCore) {
+                int indexCh = ArrayUtils.indexOf(channelNames, channels[0]);
+                img.vessels = tools.openChannelOutOfCore(f, indexCh, rootName + "-vessels");
+            } else {
+                int indexCh = ArrayUtils.indexOf(channelNames, channels[0]);
+                img.vessels = imps[indexCh];
+            }
+            img.vessels.setLut(lut);
+            IJ.run(img.vessels, "16-bit", "");
+            
+            if (!channels[1].equals("None")) {
+                int indexCh = ArrayUtils.indexOf(channelNames, channels[1]);
+                img.micro = tools.outOfCore ? tools.openChannelOutOfCore(f, indexCh, rootName + "-microglia") : imps[indexCh];
+                img.micro.setLut(lut);
+                IJ.run(img.micro, "16-bit", "");
+            }
+            
+            if (!channels[2].equals("None")) {                    
+                int indexCh = ArrayUtils.indexOf(channelNames, channels[2]);
+                img.endo = imps[indexCh];
+                img.endo.setLut(lut);
+                IJ.run(img.endo, "16-bit", "");
+            }
+            for (ImagePlus imp: imps)
+                if (imp != img.vessels && imp != img.micro && imp != img.endo)
+                    tools.closeImage(imp);
+            
+            // Load ROIs (if provided)
+            tools.print("- Loading ROIs of " + rootName + " -");
+            img.rois = tools.loadRois(imageDir + File.separator + rootName, img.vessels, rootName);
+        } catch (Exception ex) {
+            img.close(tools);
+            throw ex;
+        } finally {
+            loadSample.stop();
+        }
+        return(img);
+    }
+    
+    
+    /**
+     * Run stages of one image as a graph:
+     * vessels segmentation -> skeleton, distance maps -> results
+     * microglia and endothelial nuclei segmentations only depend on their own channel
+     * Intermediate images are closed as soon as results are saved
+     * Segmentations and skeleton are checkpointed, and reloaded if image was interrupted in a previous run
+     */
+    private void analyzeImage(ExecutorService pool, Checkpoint checkpoint, List<Roi> rois, ImagePlus imgVessels, ImagePlus imgMicro, ImagePlus imgEndo, Calibration cal,
+                              ImageRows rows, String rootName, String outDir) throws Exception {
+        StageScheduler stages = new StageScheduler(pool);
+        
+        // Segment vessels
+        Stage<ImagePlus> vesselMask = stages.add("vessels segmentation", () -> {
+            tools.print("- Segmenting vessels -");
+            return(checkpointed(checkpoint, rootName, "vesselMask", () -> 
+                    tools.metrics.measure(rootName, "vessels segmentation", () -> tools.vesselSegmentation(imgVessels, cal))));
+        }, tools::closeImage);
+        
+        // Compute vessels skeleton and prune its small branches
+        Stage<ImagePlus> vesselSkel = stages.add("vessels skeleton", () -> {
+            tools.print("- Skeletonizing vessels mask -");
+            return(checkpointed(checkpoint, rootName, "vesselSkeleton", () -> {
+                ImagePlus imgSkel = tools.metrics.measure(rootName, "skeleton", () -> tools.skeletonize3D(vesselMask.get(), cal));
+                ImagePlus imgPruned = tools.metrics.measure(rootName, "prune", () -> tools.pruneSkeleton(imgSkel));
+                tools.closeImage(imgSkel);
+                return(imgPruned);
+            }));
+        }, tools::closeImage, vesselMask);
+        
+        // Compute vessels distance map
+        Stage<DistanceMap> vesselDistMap = stages.add("vessels distance map", () -> {
+            tools.print("- Computing vessels distance map -");
+            return(tools.metrics.measure(rootName, "EDT", () -> tools.distanceMap3D(vesselMask.get(), false, cal)));
+        }, DistanceMap::close, vesselMask);
+        
+        Stage<Objects3DIntPopulation> microPop = null;
+        Stage<DistanceMap> vesselDistMapInv = null;
+        if (imgMicro != null) {
+            // Segment microglia
+            microPop = stages.add("microglia segmentation", () -> {
+                tools.print("- Segmenting microglia -");
+                return(checkpointed(checkpoint, rootName, "microLabels", imgMicro, () -> 
+                        tools.metrics.measure(rootName, "microglia segmentation", () -> tools.microSegmentation(imgMicro, cal))));
+            });
+            // Compute vessels inverted distance map
+            vesselDistMapInv = stages.add("vessels inverted distance map", () -> {
+                tools.print("- Computing vessels inverted distance map -");
+                return(tools.metrics.measure(rootName, "inverted EDT", () -> tools.distanceMap3D(vesselMask.get(), true, cal)));
+            }, DistanceMap::close, vesselMask);
+        }
+        
+        Stage<Objects3DIntPopulation> endoPop = null;
+        if (imgEndo != null) {
+            // Detect endothelial nuclei
+            endoPop = stages.add("endothelial nuclei segmentation", () -> {
+                tools.print("- Segmenting endothelial nuclei -");
+                return(checkpointed(checkpoint, rootName, "endoLabels", imgEndo, () -> 
+                        tools.metrics.measure(rootName, "endothelial nuclei segmentation", () -> tools.endoSegmentation(imgEndo, cal))));
+            });
+        }
+        
+        // Save results
+        Stage<Objects3DIntPopulation> micro = microPop, endo = endoPop;
+        Stage<DistanceMap> distMapInv = vesselDistMapInv;
+        List<Stage<?>> inputs = new ArrayList<>(Arrays.asList(vesselMask, vesselSkel, vesselDistMap));
+        for (Stage<?> stage: Arrays.asList(micro, endo, distMapInv))
+            if (stage != null) inputs.add(stage);
+        stages.add("results", () -> {
+            tools.saveResults(rois, vesselMask.get(), vesselSkel.get(), vesselDistMap.get(), (distMapInv == null) ? null : distMapInv.get(),
+                              (micro == null) ? new Objects3DIntPopulation() : micro.get(), (endo == null) ? new Objects3DIntPopulation() : endo.get(),
+                              imgVessels, imgMicro, imgEndo, cal, rows, rootName, outDir);
+            return(null);
+        }, inputs.toArray(new Stage<?>[0]));
+        
+        stages.run();
+    }
+    
+    
+    /**
+     * Reload image from checkpoint, or compute and checkpoint it
+     */
+    private ImagePlus checkpointed(Checkpoint checkpoint, String rootName, String name, Stage.Task<ImagePlus> task) throws Exception {
+        if (!checkpointImages)
+            return(task.run());
+        ImagePlus img = checkpoint.load(rootName, name, tools.outOfCoreDir);
+        if (img != null) {
+            tools.print("Reloaded " + name + " from checkpoint");
+            return(img);
+        }
+        img = task.run();
+        checkpoint.save(rootName, name, img);
+        return(img);
+    }
+    
+    
+    /**
+     * Reload population from checkpointed labels image, or compute it and checkpoint its labels
+     * Labels of a memory-mapped image are drawn in a mapped stack, so that they are never held in memory
+     */
+    private Objects3DIntPopulation checkpointed(Checkpoint checkpoint, String rootName, String name, ImagePlus img, 
+                                                Stage.Task<Objects3DIntPopulation> task) throws Exception {
+        if (!checkpointImages)
+            return(task.run());
+        ImagePlus imgLabels = checkpoint.load(rootName, name, tools.outOfCoreDir);
+        if (imgLabels != null) {
+            tools.print("Reloaded " + name + " from checkpoint");
+            Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgLabels));
+            tools.closeImage(imgLabels);
+            return(pop);
+        }
+        Objects3DIntPopulation pop = task.run();
+        // 16-bit labels if they fit, 32-bit otherwise so that labels above 65535 are not truncated
+        float maxLabel = 0;
+        for (Object3DInt obj: pop.getObjects3DInt())
+            maxLabel = Math.max(maxLabel, obj.getLabel());
+        int bitDepth = (maxLabel > 65535) ? 32 : 16;
+        ImagePlus imgLabelsOut;
+        if (img.getStack() instanceof MappedStack) {
+            MappedStack labels = MappedStack.createSameDimensions(tools.outOfCoreDir, name, img.getStack(), bitDepth);
+            for (Object3DInt obj: pop.getObjects3DInt())
+                for (Object3DPlane plane: obj.getObject3DPlanes())
+                    for (VoxelInt voxel: plane.getVoxels())
+                        labels.setValue(voxel.getX(), voxel.getY(), voxel.getZ(), obj.getLabel());
+            imgLabelsOut = new ImagePlus(name, labels);
+        } else {
+            ImageHandler imhLabels = (bitDepth == 16) ? new ImageShort(name, img.getWidth(), img.getHeight(), img.getNSlices()) :
+                                                        new ImageFloat(name, img.getWidth(), img.getHeight(), img.getNSlices());
+            pop.drawInImage(imhLabels);
+            imgLabelsOut = imhLabels.getImagePlus();
+        }
+        imgLabelsOut.setCalibration(img.getCalibration());
+        checkpoint.save(rootName, name, imgLabelsOut);
+        tools.closeImage(imgLabelsOut);
+        return(pop);
     }
 }
@@ -77,7 +77,7 @@ public class Cellpose {
             throw new UnsupportedOperationException("Virtual env type unrecognized!");
         }
 
-        System.out.println(cmd.toString().replace(",", ""));
+        settings.getOutput().println(cmd.toString().replace(",", ""));
         ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
 
         Process p = pb.start();
@@ -87,11 +87,11 @@ public class Cellpose {
                 BufferedReader stdIn = new BufferedReader(new InputStreamReader(p.getInputStream()));
                 try {
                     for (String line = stdIn.readLine(); line != null; ) {
-                        System.out.println(line);
+                        settings.getOutput().println(line);
                         line = stdIn.readLine();// you don't want to remove or comment that line! no you don't :P
                     }
                 } catch (IOException e) {
-                    System.out.println(e.getMessage());
+                    System.err.println(e.getMessage());
                 }
             }
         };
@@ -103,9 +103,9 @@ public class Cellpose {
         int exitValue = p.exitValue();
 
         if (exitValue != 0) {
-            System.out.println("Runner " + settings.cellposeEnvDirectory + " exited with value " + exitValue + ". Please check output above for indications of the problem.");
+            System.err.println("Runner " + settings.cellposeEnvDirectory + " exited with value " + exitValue + ". Please check output above for indications of the problem.");
         } else {
-            System.out.println(settings.envType + " , " + settings.cellposeEnvDirectory + " run finished");
+            settings.getOutput().println(settings.envType + " , " + settings.cellposeEnvDirectory + " run finished");
         }
 
     }
@@ -0,0 +1,207 @@
+package Vessels_Microglia_Endothelium_Tools.Cellpose;
+
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.plugin.Concatenator;
+import ij.plugin.Duplicator;
+import ij.process.ImageConverter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Cellpose inference on a whole cohort of images in a single batched run
+ * Images are submitted first, then segmented by one Cellpose invocation (or worker) in the background,
+ * and masks are taken back image by image as soon as they are produced, so that analysis of an image
+ * overlaps with inference of the next ones
+ * Images are processed in submission order: a mask is complete once the next mask exists or the run is over
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class CellposeBatch {
+
+    private final CellposeTaskSettings settings;
+    private final File dir, cachedDir;
+    private final String ext;
+    // Frame files in submission order, and frames of each submitted image
+    private final List<String> frames = new ArrayList<>();
+    private final Map<String, List<Integer>> framesOfImage = new HashMap<>();
+    // Masks found in cache (copied in a sibling of batch folder, so that they are not segmented again), and cache keys of submitted images
+    private final Map<String, File> cachedMasks = new HashMap<>();
+    private final Map<String, String> cacheKeys = new HashMap<>();
+    private final Map<String, Integer> framesOfCached = new HashMap<>();
+    private ExecutorService executor;
+    private Future<?> task;
+
+
+    public CellposeBatch(CellposeTaskSettings settings, File dir) {
+        this.settings = settings;
+        this.dir = dir;
+        this.cachedDir = new File(dir.getParentFile(), dir.getName() + "-cached");
+        this.ext = (settings.persistentWorker || settings.envType.equals("java")) ? ".npy" : ".tif";
+        dir.mkdirs();
+        settings.setDatasetDir(dir.toString());
+    }
+
+
+    /**
+     * Save each time-point of image in batch folder
+     */
+    public void submit(String key, ImagePlus imp) throws IOException {
+        if (task != null)
+            throw new IllegalStateException("Cellpose batch already started");
+        if (settings.cache != null) {
+            String cacheKey = settings.cache.key(imp, settings);
+            cachedDir.mkdirs();
+            File cached = new File(cachedDir, "cached-" + cachedMasks.size() + ".npy");
+            if (settings.cache.copy(cacheKey, cached)) {
+                cachedMasks.put(key, cached);
+                framesOfCached.put(key, imp.getNFrames());
+                return;
+            }
+            cacheKeys.put(key, cacheKey);
+        }
+        List<Integer> indexes = new ArrayList<>();
+        for (int t = 1; t <= imp.getNFrames(); t++) {
+            ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t, t);
+            // Zero-padded names, so that Cellpose sorts files in submission order
+            String name = String.format("%06d", frames.size());
+            if (ext.equals(".npy"))
+                NpyFile.write(new File(dir, name + ext), t_imp.getStack());
+            else
+                new FileSaver(t_imp).saveAsTiff(new File(dir, name + ext).toString());
+            t_imp.close();
+            indexes.add(frames.size());
+            frames.add(name);
+        }
+        framesOfImage.put(key, indexes);
+    }
+
+
+    public boolean contains(String key) {
+        return(framesOfImage.containsKey(key) || cachedMasks.containsKey(key));
+    }
+
+
+    /**
+     * Start inference on all submitted images in the background
+     */
+    public void start() {
+        if (frames.isEmpty())
+            return;
+        executor = Executors.newSingleThreadExecutor();
+        task = executor.submit(() -> {
+            CellposeTask cellposeTask = new CellposeTask();
+            cellposeTask.setSettings(settings);
+            cellposeTask.run();
+            return(null);
+        });
+        executor.shutdown();
+    }
+
+
+    /**
+     * Wait for masks of image and return them as a 16-bit image, time-points concatenated
+     * @throws java.io.IOException if Cellpose failed before producing them
+     */
+    public ImagePlus take(String key) throws IOException, InterruptedException {
+        if (cachedMasks.containsKey(key)) {
+            // Mapped, its file is deleted when image is closed
+            ImagePlus imgMasks = new ImagePlus(key + "-cellpose", NpyFile.open(cachedMasks.remove(key)));
+            int frames = framesOfCached.remove(key);
+            if (frames > 1 && imgMasks.getStackSize() % frames == 0)
+                imgMasks.setDimensions(1, imgMasks.getStackSize() / frames, frames);
+            return(imgMasks);
+        }
+        List<Integer> indexes = framesOfImage.remove(key);
+        if (indexes == null)
+            throw new IllegalArgumentException("Image " + key + " was not submitted to Cellpose batch");
+
+        List<ImagePlus> masks = new ArrayList<>();
+        for (int index: indexes) {
+            File mask = waitMask(index);
+            ImagePlus imgMask;
+            if (ext.equals(".npy")) {
+                MappedStack stack = NpyFile.open(mask);
+                imgMask = new ImagePlus(key, stack);
+                if (indexes.size() > 1) {
+                    ImagePlus copy = imgMask.duplicate();
+                    stack.close();
+                    imgMask = copy;
+                }
+            } else {
+                imgMask = IJ.openImage(mask.toString());
+                if (imgMask.getBitDepth() != 16) {
+                    if (imgMask.getNSlices() > 1)
+                        new ImageConverter(imgMask).convertToGray16();
+                    else
+                        imgMask.setProcessor(imgMask.getProcessor().convertToShort(false));
+                }
+                mask.delete();
+            }
+            new File(dir, frames.get(index) + ext).delete();
+            masks.add(imgMask);
+        }
+        ImagePlus imgMasks = (masks.size() == 1) ? masks.get(0) : Concatenator.run(masks.toArray(new ImagePlus[0]));
+        imgMasks.setTitle(key + "-cellpose");
+        if (cacheKeys.containsKey(key))
+            settings.cache.put(cacheKeys.remove(key), imgMasks);
+        return(imgMasks);
+    }
+
+
+    /**
+     * Wait until mask of frame index is completely written
+     */
+    private File waitMask(int index) throws IOException, InterruptedException {
+        File mask = maskFile(index);
+        File nextMask = (index + 1 < frames.size()) ? maskFile(index + 1) : null;
+        while (!(mask.exists() && (task.isDone() || (nextMask != null && nextMask.exists())))) {
+            if (task.isDone() && !mask.exists())
+                break;
+            Thread.sleep(200);
+        }
+        if (!mask.exists()) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Cellpose batch failed", e.getCause());
+            }
+            throw new IOException("Cellpose batch produced no mask for " + frames.get(index) + ext);
+        }
+        return(mask);
+    }
+
+
+    private File maskFile(int index) {
+        return(new File(dir, frames.get(index) + "_cp_masks" + ext));
+    }
+
+
+    /**
+     * Stop inference if still running and delete batch folders
+     */
+    public void close() {
+        if (task != null)
+            task.cancel(true);
+        if (executor != null)
+            executor.shutdownNow();
+        for (File folder: new File[] {dir, cachedDir}) {
+            File[] contents = folder.listFiles();
+            if (contents != null)
+                for (File f: contents)
+                    f.delete();
+            folder.delete();
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package Vessels_Microglia_Endothelium_Tools.Cellpose;
+
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * Disk cache of Cellpose/Omnipose masks, so that reruns on the same images skip inference
+ * Masks are stored as .npy files named after a SHA-256 hash of input pixels and of every setting changing masks
+ * Least recently used masks are evicted when cache size exceeds its bound
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class CellposeMaskCache {
+
+    private final File dir;
+    private final long maxBytes;
+
+
+    public CellposeMaskCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+    }
+
+
+    /**
+     * Hash input image pixels and dimensions with settings
+     * Model file size and date are hashed too, so that a retrained model doesn't reuse old masks
+     */
+    public String key(ImagePlus imp, CellposeTaskSettings settings) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        File model = new File(settings.model);
+        String description = String.join("\t", Arrays.asList(
+                "" + imp.getWidth(), "" + imp.getHeight(), "" + imp.getNChannels(), "" + imp.getNSlices(), "" + imp.getNFrames(),
+                "" + imp.getBitDepth(), settings.model, "" + model.length(), "" + model.lastModified(), settings.version,
+                "" + settings.ch1, "" + settings.ch2, "" + settings.diameter, "" + settings.flow_threshold,
+                "" + settings.cellprob_threshold, "" + settings.stitch_threshold, "" + settings.use3D,
+                "" + settings.useFastMode, "" + settings.useResample, "" + settings.omni, "" + settings.cluster));
+        digest.update(description.getBytes(StandardCharsets.UTF_8));
+
+        ImageStack stack = imp.getStack();
+        for (int z = 1; z <= stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z);
+            if (pixels instanceof byte[]) {
+                digest.update((byte[]) pixels);
+            } else if (pixels instanceof short[]) {
+                short[] shorts = (short[]) pixels;
+                ByteBuffer buf = ByteBuffer.allocate(2*shorts.length).order(ByteOrder.LITTLE_ENDIAN);
+                buf.asShortBuffer().put(shorts);
+                digest.update(buf);
+            } else if (pixels instanceof float[]) {
+                float[] floats = (float[]) pixels;
+                ByteBuffer buf = ByteBuffer.allocate(4*floats.length).order(ByteOrder.LITTLE_ENDIAN);
+                buf.asFloatBuffer().put(floats);
+                digest.update(buf);
+            } else {
+                int[] ints = (int[]) pixels;
+                ByteBuffer buf = ByteBuffer.allocate(4*ints.length).order(ByteOrder.LITTLE_ENDIAN);
+                buf.asIntBuffer().put(ints);
+                digest.update(buf);
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b: digest.digest())
+            key.append(String.format("%02x", b));
+        return(key.toString());
+    }
+
+
+    /**
+     * Get cached masks in memory, null if not in cache
+     */
+    public ImagePlus get(String key) {
+        File file = file(key);
+        if (!file.exists())
+            return(null);
+        try {
+            MappedStack stack = NpyFile.open(file);
+            ImagePlus masks = new ImagePlus(key, stack).duplicate();
+            stack.release();
+            file.setLastModified(System.currentTimeMillis());
+            return(masks);
+        } catch (IOException e) {
+            System.out.println("WARNING: could not read cached masks " + file + ": " + e.getMessage());
+            file.delete();
+            return(null);
+        }
+    }
+
+
+    /**
+     * Copy cached masks file into dest, return false if not in cache
+     */
+    public boolean copy(String key, File dest) throws IOException {
+        File file = file(key);
+        if (!file.exists())
+            return(false);
+        Files.copy(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        file.setLastModified(System.currentTimeMillis());
+        return(true);
+    }
+
+
+    /**
+     * Store masks in cache, then evict least recently used masks if needed
+     */
+    public void put(String key, ImagePlus masks) {
+        try {
+            // Written next to its final name, then renamed, so that a partially written file is never read
+            File tmp = File.createTempFile(key + "-", ".tmp", dir);
+            NpyFile.write(tmp, masks.getStack());
+            Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("WARNING: could not cache masks " + key + ": " + e.getMessage());
+        }
+        evict();
+    }
+
+
+    private synchronized void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".npy"));
+        if (files == null)
+            return;
+        long size = 0;
+        for (File f: files)
+            size += f.length();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && size > maxBytes; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+
+    private File file(String key) {
+        return(new File(dir, key + ".npy"));
+    }
+
+}
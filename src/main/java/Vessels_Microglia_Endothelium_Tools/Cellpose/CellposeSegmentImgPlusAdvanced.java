@@ -2,6 +2,7 @@ package Vessels_Microglia_Endothelium_Tools.Cellpose;
 
 import Vessels_Microglia_Endothelium_Tools.Cellpose.CellposeTaskSettings;
 import Vessels_Microglia_Endothelium_Tools.Cellpose.CellposeTask;
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -17,6 +18,9 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,27 +38,42 @@ public class CellposeSegmentImgPlusAdvanced {
     public ImagePlus run() {
         
         Calibration cal = imp.getCalibration();
-
-        // Create temp folder to temporarily save the current time-point of the imp
-        String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
-
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
+        
+        // Same pixels already segmented with same settings
+        String cacheKey = null;
+        if (settings.cache != null) {
+            cacheKey = settings.cache.key(imp, settings);
+            ImagePlus cached = settings.cache.get(cacheKey);
+            if (cached != null) {
+                settings.getOutput().println("Cellpose masks of " + imp.getShortTitle() + " found in cache");
+                int frames = imp.getNFrames();
+                if (frames > 1 && cached.getStackSize() % frames == 0)
+                    cached.setDimensions(1, cached.getStackSize() / frames, frames);
+                cached.setCalibration(cal);
+                cached.setTitle(imp.getShortTitle() + "-cellpose");
+                return cached;
             }
         }
 
+        // Create a temp folder of our own to temporarily save the current time-point of the imp,
+        // so that several segmentations can run at the same time
+        File cellposeTempDir;
+        try {
+            cellposeTempDir = Files.createTempDirectory(Paths.get(IJ.getDirectory("Temp")), "cellposeTemp-").toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        // Registered before its files, so deleted after them at exit if still there
+        cellposeTempDir.deleteOnExit();
+
         // Add temp folder to the settings
         settings.setDatasetDir(cellposeTempDir.toString());
 
 
         if (settings.use3D == true) {
             if (imp.getNSlices() == 1) 
-                System.out.println("WARNING: Can't use 3D mode on 2D image. 2D mode will be used");
+                settings.getOutput().println("WARNING: Can't use 3D mode on 2D image. 2D mode will be used");
                 settings.use3D(false);
         }
 
@@ -62,6 +81,11 @@ public class CellposeSegmentImgPlusAdvanced {
         CellposeTask cellposeTask = new CellposeTask();
         cellposeTask.setSettings(settings);
         
+        // Worker exchanges raw memory-mapped .npy files, Cellpose command line needs TIFF files
+        boolean npy = settings.persistentWorker || settings.envType.equals("java");
+        String ext = npy ? ".npy" : ".tif";
+        File mappedMasks = null;
+        
         try {
             // Can't process time-lapse directly, so we'll save one time-point after another
             int impFrames = imp.getNFrames();
@@ -75,15 +99,19 @@ public class CellposeSegmentImgPlusAdvanced {
                 // Duplicate all channels and all z-slices for a defined time-point
                 ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
                 // Save the current t_imp into the cellposeTempDir
-                File t_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + ".tif");
-                FileSaver fs = new FileSaver(t_imp);
-                fs.saveAsTiff(t_imp_path.toString());
-                System.out.println(t_imp_path.toString());
+                File t_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + ext);
+                if (npy) {
+                    NpyFile.write(t_imp_path, t_imp.getStack());
+                } else {
+                    FileSaver fs = new FileSaver(t_imp);
+                    fs.saveAsTiff(t_imp_path.toString());
+                }
+                settings.getOutput().println(t_imp_path.toString());
                 // Add to list of paths to delete at the end of operations
                 t_imp_paths.add(t_imp_path);
 
                 // Prepare path of the cellpose mask output
-                File cellpose_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_masks" + ".tif");
+                File cellpose_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_masks" + ext);
                 cellpose_masks_paths.add(cellpose_imp_path);
                 // Cellpose also creates a txt file (probably to be used with a script to import ROI in imagej), so we'll delete it too
                 // (to generate ROIs from the label image we can use https://github.com/BIOP/ijp-larome)
@@ -96,7 +124,19 @@ public class CellposeSegmentImgPlusAdvanced {
 
             // Open all the cellpose_mask and store each imp within an ArrayList
             ArrayList<ImagePlus> imps = new ArrayList<>(impFrames);
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
+            for (int t_idx = 1; t_idx <= impFrames && npy; t_idx++) {
+                // Masks are mapped, not decoded: a single time-point is returned as is and its file deleted when image is closed
+                MappedStack masks = NpyFile.open(cellpose_masks_paths.get(t_idx - 1));
+                ImagePlus cellpose_t_imp = new ImagePlus(imp.getShortTitle() + "-t" + t_idx, masks);
+                if (impFrames == 1) {
+                    imps.add(cellpose_t_imp);
+                    mappedMasks = cellpose_masks_paths.get(t_idx - 1);
+                } else {
+                    imps.add(cellpose_t_imp.duplicate());
+                    masks.close();
+                }
+            }
+            for (int t_idx = 1; t_idx <= impFrames && !npy; t_idx++) {
                 ImagePlus cellpose_t_imp = IJ.openImage(cellpose_masks_paths.get(t_idx - 1).toString());
                 // make sure to make a 16-bit imp
                 // (issue with time-lapse, first frame have less than 254 objects and latest have more)
@@ -112,20 +152,25 @@ public class CellposeSegmentImgPlusAdvanced {
             // Convert the ArrayList to an imp
             // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
             ImagePlus[] impsArray = imps.toArray(new ImagePlus[0]);
-            cellpose_imp = Concatenator.run(impsArray);
+            cellpose_imp = (impsArray.length == 1) ? impsArray[0] : Concatenator.run(impsArray);
             cellpose_imp.setCalibration(cal);
             cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
+            
+            if (cacheKey != null)
+                settings.cache.put(cacheKey, cellpose_imp);
 
-            // Delete the created files and folder
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                t_imp_paths.get(t_idx - 1).delete();
-                cellpose_masks_paths.get(t_idx - 1).delete();
-                cellpose_outlines_paths.get(t_idx - 1).delete();
-            }
-            cellposeTempDir.delete();
-       
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // Delete the created files and folder, except mapped masks returned, deleted when their image is closed
+            File[] contents = cellposeTempDir.listFiles();
+            if (contents != null) {
+                for (File f : contents) {
+                    if (!f.equals(mappedMasks))
+                        f.delete();
+                }
+            }
+            cellposeTempDir.delete();
         }
         return cellpose_imp;
     }
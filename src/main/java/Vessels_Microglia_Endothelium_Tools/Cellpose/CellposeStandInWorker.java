@@ -0,0 +1,122 @@
+package Vessels_Microglia_Endothelium_Tools.Cellpose;
+
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Java stand-in for the Python Cellpose worker, speaking the same protocol as cellpose_worker.py
+ * Each plane is segmented with an Otsu threshold and its 8-connected components are labelled
+ * Used with envType "java" to exercise the worker protocol without any Python environment
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class CellposeStandInWorker {
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = new PrintStream(System.out, true, "UTF-8");
+        // Only protocol responses are written on stdout
+        System.setOut(System.err);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+        out.println("ready");
+        for (String line = in.readLine(); line != null && !line.equals("quit"); line = in.readLine()) {
+            try {
+                Map<String, String> request = parse(line);
+                segment(request.get("input"), request.get("mask"));
+                out.println("ok");
+            } catch (Exception e) {
+                e.printStackTrace();
+                out.println("error\t" + String.valueOf(e.getMessage()).replace('\n', ' '));
+            }
+        }
+    }
+
+
+    static Map<String, String> parse(String line) {
+        String[] fields = line.split("\t");
+        if (!fields[0].equals("segment"))
+            throw new IllegalArgumentException("Unknown request: " + fields[0]);
+        Map<String, String> request = new HashMap<>();
+        for (int i = 1; i < fields.length; i++) {
+            int sep = fields[i].indexOf('=');
+            request.put(fields[i].substring(0, sep), fields[i].substring(sep + 1));
+        }
+        return(request);
+    }
+
+
+    static void segment(String input, String mask) throws IOException {
+        ImageStack stack;
+        if (input.endsWith(".npy")) {
+            stack = NpyFile.open(new File(input));
+        } else {
+            ImagePlus img = IJ.openImage(input);
+            if (img == null)
+                throw new IllegalArgumentException("Can't open " + input);
+            stack = img.getStack();
+        }
+        ImageStack masks = new ImageStack(stack.getWidth(), stack.getHeight());
+        for (int z = 1; z <= stack.getSize(); z++)
+            masks.addSlice(label(stack.getProcessor(z)));
+        if (stack instanceof MappedStack)
+            ((MappedStack) stack).release();
+
+        if (mask.endsWith(".npy"))
+            NpyFile.write(new File(mask), masks);
+        else
+            IJ.saveAsTiff(new ImagePlus("masks", masks), mask);
+    }
+
+
+    /**
+     * Label 8-connected components of Otsu-thresholded plane
+     */
+    private static ShortProcessor label(ImageProcessor ip) {
+        int width = ip.getWidth(), height = ip.getHeight();
+        ip.resetRoi();
+        ip.setAutoThreshold(AutoThresholder.Method.Otsu, true, ImageProcessor.NO_LUT_UPDATE);
+        double threshold = ip.getMinThreshold();
+
+        short[] labels = new short[width*height];
+        int[] queue = new int[width*height];
+        int nbLabels = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] != 0 || ip.getf(i) < threshold)
+                continue;
+            nbLabels++;
+            int head = 0, tail = 0;
+            queue[tail++] = i;
+            labels[i] = (short) nbLabels;
+            while (head < tail) {
+                int p = queue[head++];
+                int px = p % width, py = p / width;
+                for (int dy = -1; dy <= 1; dy++)
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int nx = px + dx, ny = py + dy;
+                        if (nx < 0 || nx >= width || ny < 0 || ny >= height)
+                            continue;
+                        int n = ny*width + nx;
+                        if (labels[n] == 0 && ip.getf(n) >= threshold) {
+                            labels[n] = (short) nbLabels;
+                            queue[tail++] = n;
+                        }
+                    }
+            }
+        }
+        return(new ShortProcessor(width, height, labels, null));
+    }
+
+}
@@ -1,7 +1,9 @@
 package Vessels_Microglia_Endothelium_Tools.Cellpose;
 
 import Vessels_Microglia_Endothelium_Tools.Cellpose.CellposeTaskSettings;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class CellposeTask {
     
@@ -12,6 +14,11 @@ public class CellposeTask {
     }
 
     public void run() throws Exception {
+        if (settings.persistentWorker || settings.envType.equals("java")) {
+            runWorker();
+            return;
+        }
+        
         ArrayList<String> options = new ArrayList<>();
 
         options.add("--dir");
@@ -35,7 +42,7 @@ public class CellposeTask {
         options.add("" + settings.flow_threshold);
        
 
-        System.out.println("Cellpose version is set to:" + settings.version);
+        settings.getOutput().println("Cellpose version is set to:" + settings.version);
         if (settings.version.equals("0.6") || settings.version.equals("2.0")) {
             options.add("--cellprob_threshold");
         } else if (settings.version.equals("0.7") || settings.version.equals("1.0")) {
@@ -79,4 +86,24 @@ public class CellposeTask {
         
         Cellpose.execute(options, settings, null);
     }
+    
+    
+    /**
+     * Segment each image of dataset directory with the persistent worker of settings environment
+     * Masks are written next to images with the same name as Cellpose command line outputs and the same format as images
+     */
+    private void runWorker() throws Exception {
+        if (settings.stitch_threshold > -1)
+            settings.use3D(false); // has to be 2D!
+        File[] images = new File(settings.datasetDir).listFiles((dir, name) -> (name.endsWith(".tif") || name.endsWith(".npy")) && !name.contains("_cp_masks."));
+        // Same order as Cellpose command line
+        Arrays.sort(images);
+        CellposeWorker worker = CellposeWorker.get(settings);
+        for (File image: images) {
+            String name = image.getName();
+            int ext = name.lastIndexOf('.');
+            File mask = new File(image.getParent(), name.substring(0, ext) + "_cp_masks" + name.substring(ext));
+            worker.segment(image, mask, settings);
+        }
+    }
 }
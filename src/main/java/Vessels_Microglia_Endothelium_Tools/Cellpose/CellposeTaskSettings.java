@@ -1,5 +1,6 @@
 package Vessels_Microglia_Endothelium_Tools.Cellpose;
 
+import java.io.PrintStream;
 
 public class CellposeTaskSettings {
     
@@ -24,6 +25,9 @@ public class CellposeTaskSettings {
     boolean omni = false;
     boolean cluster = false;
     boolean verbose = false;
+    boolean persistentWorker = false;
+    PrintStream output = null;
+    CellposeMaskCache cache = null;
     
     
     public CellposeTaskSettings(String model, int ch1, int diameter, String cellposeEnvDirectory) {
@@ -122,5 +126,25 @@ public class CellposeTaskSettings {
         this.verbose = verbose;
         return this;
     }
+    
+    public CellposeTaskSettings usePersistentWorker(boolean persistentWorker) {
+        this.persistentWorker = persistentWorker;
+        return this;
+    }
+    
+    // Sink of Cellpose messages and process output, System.out if not set
+    public CellposeTaskSettings setOutput(PrintStream output) {
+        this.output = output;
+        return this;
+    }
+    
+    public CellposeTaskSettings useCache(CellposeMaskCache cache) {
+        this.cache = cache;
+        return this;
+    }
+    
+    PrintStream getOutput() {
+        return (output != null) ? output : System.out;
+    }
        
 }
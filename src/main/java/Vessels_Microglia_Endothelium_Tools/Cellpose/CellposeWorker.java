@@ -0,0 +1,226 @@
+package Vessels_Microglia_Endothelium_Tools.Cellpose;
+
+import ij.IJ;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static java.io.File.separatorChar;
+
+
+/**
+ * Long-lived Cellpose/Omnipose process, loading each model once per run instead of once per image
+ * Requests are sent one per line on the process stdin, as tab-separated key=value fields:
+ *     segment  input=...  mask=...  model=...  chan=...  ...
+ * and the worker answers "ok" or "error<TAB>message" on its stdout, anything else goes to stderr
+ * One worker is started per environment and reused until shutdownAll() is called
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class CellposeWorker {
+
+    private static final Map<String, CellposeWorker> workers = new HashMap<>();
+
+    private final String name;
+    private final Process process;
+    private final BufferedWriter requests;
+    private final BufferedReader responses;
+    // Sink of worker logs, set by the request being processed
+    private volatile PrintStream logs;
+
+
+    CellposeWorker(String name, List<String> cmd, PrintStream logs) throws IOException {
+        this.name = name;
+        this.logs = logs;
+        logs.println("Starting worker " + cmd.toString().replace(",", ""));
+        process = new ProcessBuilder(cmd).start();
+        requests = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        responses = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        forwardLogs(process.getErrorStream());
+
+        // Wait for the worker to be ready, skipping anything printed while importing modules
+        for (String line = responses.readLine(); !"ready".equals(line); line = responses.readLine()) {
+            if (line == null)
+                throw new IOException("Worker " + name + " exited before being ready, exit value " + waitExitValue());
+            logs.println(line);
+        }
+    }
+
+
+    /**
+     * Get the worker of settings environment, starting it if needed
+     */
+    public static synchronized CellposeWorker get(CellposeTaskSettings settings) throws IOException {
+        String key = settings.envType + ":" + settings.cellposeEnvDirectory;
+        CellposeWorker worker = workers.get(key);
+        if (worker == null || !worker.process.isAlive()) {
+            worker = new CellposeWorker(key, command(settings), settings.getOutput());
+            workers.put(key, worker);
+        }
+        return(worker);
+    }
+
+
+    /**
+     * Stop all workers started during the run
+     */
+    public static synchronized void shutdownAll() {
+        for (CellposeWorker worker: workers.values())
+            worker.close();
+        workers.clear();
+    }
+
+
+    /**
+     * Segment input image and write labelled masks into mask file
+     * @throws java.io.IOException if worker failed or died
+     */
+    public synchronized void segment(File input, File mask, CellposeTaskSettings settings) throws IOException {
+        logs = settings.getOutput();
+        requests.write(request(input, mask, settings));
+        requests.newLine();
+        requests.flush();
+
+        String response = responses.readLine();
+        if (response == null)
+            throw new IOException("Worker " + name + " died, exit value " + waitExitValue());
+        if (!response.equals("ok"))
+            throw new IOException("Worker " + name + " failed on " + input.getName() + ": " + response.replaceFirst("^error\t", ""));
+    }
+
+
+    /**
+     * Ask worker to quit and wait for it
+     */
+    public synchronized void close() {
+        try {
+            requests.write("quit");
+            requests.newLine();
+            requests.close();
+            process.waitFor();
+        } catch (IOException e) {
+            process.destroy();
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Build request line of an image from settings, same parameters as the command line options of CellposeTask
+     */
+    static String request(File input, File mask, CellposeTaskSettings settings) {
+        StringBuilder request = new StringBuilder("segment");
+        field(request, "input", input.getAbsolutePath());
+        field(request, "mask", mask.getAbsolutePath());
+        field(request, "model", settings.model);
+        field(request, "version", settings.version);
+        field(request, "chan", settings.ch1);
+        field(request, "chan2", settings.ch2);
+        field(request, "diameter", settings.diameter);
+        field(request, "flow_threshold", settings.flow_threshold);
+        field(request, "cellprob_threshold", settings.cellprob_threshold);
+        field(request, "stitch_threshold", settings.stitch_threshold);
+        field(request, "do_3D", settings.use3D);
+        field(request, "gpu", settings.useGpu);
+        field(request, "resample", settings.useResample);
+        field(request, "omni", settings.omni);
+        field(request, "cluster", settings.cluster);
+        return(request.toString());
+    }
+
+
+    private static void field(StringBuilder request, String key, Object value) {
+        request.append('\t').append(key).append('=').append(value);
+    }
+
+
+    /**
+     * Command starting the worker of settings environment
+     * envType "java" starts the Java stand-in worker, which speaks the same protocol without Python
+     */
+    static List<String> command(CellposeTaskSettings settings) throws IOException {
+        if (settings.envType.equals("java")) {
+            String javaPath = System.getProperty("java.home") + separatorChar + "bin" + separatorChar + "java";
+            String classPath = codeSource(CellposeStandInWorker.class) + File.pathSeparator + codeSource(IJ.class);
+            return(Arrays.asList(javaPath, "-cp", classPath, CellposeStandInWorker.class.getName()));
+        }
+
+        String script = extractScript().getAbsolutePath();
+        if (settings.envType.equals("conda")) {
+            if (IJ.isWindows())
+                return(Arrays.asList("cmd.exe", "/C", "CALL", "conda.bat", "activate", settings.cellposeEnvDirectory, "&", "python", "-Xutf8", "-u", script));
+            String pythonPath = settings.cellposeEnvDirectory + separatorChar + "bin" + separatorChar + "python";
+            return(Arrays.asList(pythonPath, "-u", script));
+        } else if (settings.envType.equals("venv")) {
+            if (IJ.isWindows())
+                return(Arrays.asList(new File(settings.cellposeEnvDirectory, "Scripts/python.exe").toString(), "-u", script));
+            return(Arrays.asList(new File(settings.cellposeEnvDirectory, "bin/python").toString(), "-u", script));
+        }
+        throw new UnsupportedOperationException("Virtual env type unrecognized!");
+    }
+
+
+    /**
+     * Copy worker script from plugin resources into a temp file of its own
+     */
+    private static File extractScript() throws IOException {
+        File script = Files.createTempFile(Paths.get(IJ.getDirectory("Temp")), "cellpose_worker-", ".py").toFile();
+        try (InputStream in = CellposeWorker.class.getResourceAsStream("/cellpose_worker.py")) {
+            Files.copy(in, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        script.deleteOnExit();
+        return(script);
+    }
+
+
+    private static String codeSource(Class<?> c) {
+        try {
+            return(new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+        } catch (Exception e) {
+            return(System.getProperty("java.class.path"));
+        }
+    }
+
+
+    private void forwardLogs(InputStream in) {
+        Thread t = new Thread(name + "-logs") {
+            @Override
+            public void run() {
+                BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                try {
+                    for (String line = lines.readLine(); line != null; line = lines.readLine())
+                        logs.println(line);
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+
+    private int waitExitValue() {
+        try {
+            return(process.waitFor());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return(-1);
+        }
+    }
+
+}
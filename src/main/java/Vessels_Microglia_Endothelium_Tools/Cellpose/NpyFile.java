@@ -0,0 +1,111 @@
+package Vessels_Microglia_Endothelium_Tools.Cellpose;
+
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
+import ij.ImageStack;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Raw images exchanged with the Cellpose worker as .npy files (NumPy format version 1.0)
+ * Pixels follow the header without any encoding, so both sides memory-map them instead of decoding a TIFF
+ * Stacks are stored as (z, y, x) arrays of uint8, uint16 or float32 in native byte order
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class NpyFile {
+
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0};
+    private static final Pattern DESCR = Pattern.compile("'descr':\\s*'([<>|=])([uif])(\\d)'");
+    private static final Pattern FORTRAN = Pattern.compile("'fortran_order':\\s*(True|False)");
+    private static final Pattern SHAPE = Pattern.compile("'shape':\\s*\\(([^)]*)\\)");
+
+
+    /**
+     * Write stack into a .npy file
+     */
+    public static void write(File file, ImageStack stack) throws IOException {
+        int bitDepth = (stack.getBitDepth() == 24) ? 8 : stack.getBitDepth();
+        String order = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) ? "<" : ">";
+        String descr = (bitDepth == 8) ? "|u1" : (bitDepth == 16) ? order + "u2" : order + "f4";
+        String dict = "{'descr': '" + descr + "', 'fortran_order': False, 'shape': (" +
+                      stack.getSize() + ", " + stack.getHeight() + ", " + stack.getWidth() + "), }";
+        // Header is padded with spaces and ends with a newline, so that data is 64-byte aligned
+        int headerLength = MAGIC.length + 2 + dict.length() + 1;
+        int padding = (64 - headerLength % 64) % 64;
+        StringBuilder header = new StringBuilder(dict);
+        for (int i = 0; i < padding; i++)
+            header.append(' ');
+        header.append('\n');
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(MAGIC);
+            out.write(header.length() & 0xff);
+            out.write((header.length() >> 8) & 0xff);
+            out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+        MappedStack mapped = new MappedStack(file, headerLength + padding, stack.getWidth(), stack.getHeight(), stack.getSize(), bitDepth);
+        for (int z = 1; z <= stack.getSize(); z++)
+            mapped.setProcessor(stack.getProcessor(z), z);
+        mapped.release();
+    }
+
+
+    /**
+     * Map a .npy file written by the worker as a stack, without copying its pixels
+     * Closing the stack deletes the file
+     * @throws java.io.IOException if file is not a 2D/3D C-ordered uint8, uint16 or float32 array in native byte order
+     */
+    public static MappedStack open(File file) throws IOException {
+        String header;
+        long offset;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            if (magic[0] != MAGIC[0] || magic[1] != 'N' || magic[5] != 'Y')
+                throw new IOException(file + " is not a .npy file");
+            int major = magic[6];
+            int length = (major == 1) ? (raf.read() | raf.read() << 8) :
+                                        (raf.read() | raf.read() << 8 | raf.read() << 16 | raf.read() << 24);
+            byte[] bytes = new byte[length];
+            raf.readFully(bytes);
+            header = new String(bytes, StandardCharsets.US_ASCII);
+            offset = raf.getFilePointer();
+        }
+
+        Matcher descr = DESCR.matcher(header);
+        Matcher fortran = FORTRAN.matcher(header);
+        Matcher shape = SHAPE.matcher(header);
+        if (!descr.find() || !fortran.find() || !shape.find())
+            throw new IOException("Unsupported .npy header in " + file + ": " + header.trim());
+        int bitDepth = Integer.parseInt(descr.group(3)) * 8;
+        String type = descr.group(2);
+        boolean nativeOrder = descr.group(1).equals("|") || descr.group(1).equals("=") ||
+                              descr.group(1).equals((ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) ? "<" : ">");
+        boolean supported = (type.equals("u") && (bitDepth == 8 || bitDepth == 16)) || (type.equals("f") && bitDepth == 32);
+        if (!supported || !nativeOrder || fortran.group(1).equals("True"))
+            throw new IOException("Unsupported .npy array in " + file + ": " + header.trim());
+
+        String[] dims = shape.group(1).split(",");
+        int[] sizes = new int[3];
+        int nbDims = 0;
+        for (String dim: dims) {
+            if (dim.trim().isEmpty())
+                continue;
+            if (nbDims == sizes.length)
+                throw new IOException("Unsupported .npy shape in " + file + ": (" + shape.group(1) + ")");
+            sizes[nbDims++] = Integer.parseInt(dim.trim());
+        }
+        if (nbDims == 2)
+            return(new MappedStack(file, offset, sizes[1], sizes[0], 1, bitDepth));
+        if (nbDims == 3)
+            return(new MappedStack(file, offset, sizes[2], sizes[1], sizes[0], bitDepth));
+        throw new IOException("Unsupported .npy shape in " + file + ": (" + shape.group(1) + ")");
+    }
+
+}
@@ -0,0 +1,258 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+
+/**
+ * Per-image checkpoints of a run, kept in a checkpoints folder next to results files
+ * Intermediate images (vessels mask, skeleton, labels) are saved as soon as computed, so that an image interrupted
+ * by a crash restarts from its last completed stage
+ * Once an image is analyzed, its results rows are saved as parts, appended to results files, then a .done marker is written and intermediate images are deleted
+ * Every file is written under a temp name and renamed, so that a partially written file is never read back
+ * Memory-mapped images are saved as raw planes after a small header, and mapped again when reloaded instead of being read into memory
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class Checkpoint {
+
+    // Settings of run, written in results folder when run starts and compared before resuming it
+    public static final String SETTINGS = "settings.txt";
+    
+    private final File dir;
+
+
+    public Checkpoint(File outDir) {
+        dir = new File(outDir, "checkpoints");
+        dir.mkdirs();
+    }
+
+
+    /**
+     * Find latest results folder of imageDir named prefix followed by its date, containing checkpoints
+     * and started with the same settings, null if none
+     * Folders of runs whose prefix only begins with prefix (e.g. with a microglia channel) are ignored
+     */
+    public static File findPreviousRun(String imageDir, String prefix, String settings) throws IOException {
+        Pattern runName = Pattern.compile(Pattern.quote(prefix) + "\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}");
+        File[] runs = new File(imageDir).listFiles((d, name) -> runName.matcher(name).matches() && new File(d, name + File.separator + "checkpoints").isDirectory());
+        if (runs == null)
+            return(null);
+        File latest = null;
+        // Folder names end with their date, so that latest run comes last in alphabetical order
+        for (File run: runs)
+            if ((latest == null || run.getName().compareTo(latest.getName()) > 0) && sameSettings(run, settings))
+                latest = run;
+        return(latest);
+    }
+
+
+    /**
+     * Whether run folder runDir was started with the same settings, false if its settings are unknown
+     */
+    public static boolean sameSettings(File runDir, String settings) throws IOException {
+        File file = new File(runDir, SETTINGS);
+        if (!file.exists())
+            return(false);
+        return(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).equals(settings));
+    }
+    
+    
+    /**
+     * Write settings of run in its results folder
+     */
+    public void saveSettings(String settings) throws IOException {
+        File tmp = File.createTempFile(SETTINGS + "-", ".tmp", dir);
+        Files.write(tmp.toPath(), settings.getBytes(StandardCharsets.UTF_8));
+        move(tmp, new File(dir.getParentFile(), SETTINGS));
+    }
+
+
+    public boolean isDone(String rootName) {
+        return(new File(dir, rootName + ".done").exists());
+    }
+
+
+    /**
+     * Open intermediate image saved for image rootName, null if not saved yet
+     * Images saved from a mapped stack are reloaded as a mapped copy in mappedDir, so that closing them keeps the checkpoint
+     */
+    public ImagePlus load(String rootName, String name, File mappedDir) throws IOException {
+        File raw = new File(new File(dir, rootName), name + ".raw");
+        if (raw.exists())
+            return(loadMapped(raw, name, mappedDir));
+        File file = new File(new File(dir, rootName), name + ".tif");
+        if (!file.exists())
+            return(null);
+        ImagePlus img = IJ.openImage(file.getPath());
+        if (img == null)
+            file.delete();
+        return(img);
+    }
+
+
+    /**
+     * Save intermediate image of image rootName
+     */
+    public void save(String rootName, String name, ImagePlus img) throws IOException {
+        File imageDir = new File(dir, rootName);
+        imageDir.mkdirs();
+        File tmp = File.createTempFile(name + "-", ".tmp", imageDir);
+        if (img.getStack() instanceof MappedStack) {
+            saveMapped(tmp, img);
+            move(tmp, new File(imageDir, name + ".raw"));
+            return;
+        }
+        if (!new FileSaver(img).saveAsTiff(tmp.getPath())) {
+            tmp.delete();
+            throw new IOException("Could not save checkpoint " + name + " of image " + rootName);
+        }
+        move(tmp, new File(imageDir, name + ".tif"));
+    }
+
+
+    /**
+     * Write header (dimensions, bit depth and calibration) and planes of a mapped image, plane by plane
+     */
+    private void saveMapped(File file, ImagePlus img) throws IOException {
+        ImageStack stack = img.getStack();
+        Calibration cal = img.getCalibration();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(header)) {
+            out.writeInt(stack.getWidth());
+            out.writeInt(stack.getHeight());
+            out.writeInt(stack.getSize());
+            out.writeInt(stack.getBitDepth());
+            out.writeDouble(cal.pixelWidth);
+            out.writeDouble(cal.pixelHeight);
+            out.writeDouble(cal.pixelDepth);
+            out.writeUTF(cal.getUnit());
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(header.size());
+            header.writeTo(out);
+        }
+        MappedStack copy = new MappedStack(file, 4 + header.size(), stack.getWidth(), stack.getHeight(), stack.getSize(), stack.getBitDepth());
+        for (int z = 1; z <= stack.getSize(); z++)
+            copy.setPixels(stack.getPixels(z), z);
+        copy.release();
+    }
+
+
+    private ImagePlus loadMapped(File raw, String name, File mappedDir) throws IOException {
+        int headerSize, width, height, depth, bitDepth;
+        Calibration cal = new Calibration();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(raw))) {
+            headerSize = in.readInt();
+            width = in.readInt();
+            height = in.readInt();
+            depth = in.readInt();
+            bitDepth = in.readInt();
+            cal.pixelWidth = in.readDouble();
+            cal.pixelHeight = in.readDouble();
+            cal.pixelDepth = in.readDouble();
+            cal.setUnit(in.readUTF());
+        }
+        mappedDir.mkdirs();
+        File copy = File.createTempFile(name + "-", ".raw", mappedDir);
+        Files.copy(raw.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        ImagePlus img = new ImagePlus(name, new MappedStack(copy, 4 + headerSize, width, height, depth, bitDepth));
+        img.setCalibration(cal);
+        return(img);
+    }
+
+
+    /**
+     * Save results rows of image rootName, before it is marked as done
+     */
+    public void saveRows(String rootName, String globalRows, String vesselRows, String microRows) throws IOException {
+        write(rootName + "-globalResults.part", globalRows);
+        write(rootName + "-vesselsResults.part", vesselRows);
+        write(rootName + "-microgliaResults.part", microRows);
+    }
+
+
+    /**
+     * Mark image rootName as done, once its rows are saved and appended to results files, and delete its intermediate images
+     */
+    public void markDone(String rootName) throws IOException {
+        write(rootName + ".done", "");
+
+        File imageDir = new File(dir, rootName);
+        File[] images = imageDir.listFiles();
+        if (images != null)
+            for (File image: images)
+                image.delete();
+        imageDir.delete();
+    }
+
+
+    /**
+     * Append saved results rows of image rootName to results files
+     */
+    public void append(String rootName, BufferedWriter globalResults, BufferedWriter vesselResults, BufferedWriter microResults) throws IOException {
+        globalResults.write(read(rootName + "-globalResults.part"));
+        globalResults.flush();
+        vesselResults.write(read(rootName + "-vesselsResults.part"));
+        vesselResults.flush();
+        if (microResults != null) {
+            microResults.write(read(rootName + "-microgliaResults.part"));
+            microResults.flush();
+        }
+    }
+
+
+    /**
+     * Save additional results of image rootName, before it is committed
+     */
+    public void savePart(String rootName, String name, byte[] content) throws IOException {
+        write(rootName + "-" + name + ".part", content);
+    }
+
+
+    /**
+     * Read additional results saved for image rootName, null if none
+     */
+    public byte[] readPart(String rootName, String name) throws IOException {
+        File part = new File(dir, rootName + "-" + name + ".part");
+        return(part.exists() ? Files.readAllBytes(part.toPath()) : null);
+    }
+
+
+    private void write(String name, String content) throws IOException {
+        write(name, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private void write(String name, byte[] content) throws IOException {
+        File tmp = File.createTempFile(name + "-", ".tmp", dir);
+        Files.write(tmp.toPath(), content);
+        move(tmp, new File(dir, name));
+    }
+
+
+    private String read(String name) throws IOException {
+        return(new String(Files.readAllBytes(new File(dir, name).toPath()), StandardCharsets.UTF_8));
+    }
+
+
+    private void move(File tmp, File file) throws IOException {
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -0,0 +1,62 @@
+package Vessels_Microglia_Endothelium_Tools.Chunks;
+
+import java.awt.Rectangle;
+
+
+/**
+ * Box of a volume (core), with the halo needed around it to process it independently
+ * Coordinates are 0-based, upper bounds excluded
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class Chunk {
+
+    public final int index;
+    public final int x0, y0, z0, x1, y1, z1;
+    public final int hx0, hy0, hz0, hx1, hy1, hz1;
+
+
+    public Chunk(int index, int x0, int y0, int z0, int x1, int y1, int z1, int haloXY, int haloZ, int width, int height, int depth) {
+        this.index = index;
+        this.x0 = x0; this.y0 = y0; this.z0 = z0;
+        this.x1 = x1; this.y1 = y1; this.z1 = z1;
+        this.hx0 = Math.max(0, x0 - haloXY);
+        this.hy0 = Math.max(0, y0 - haloXY);
+        this.hz0 = Math.max(0, z0 - haloZ);
+        this.hx1 = Math.min(width, x1 + haloXY);
+        this.hy1 = Math.min(height, y1 + haloXY);
+        this.hz1 = Math.min(depth, z1 + haloZ);
+    }
+
+
+    /**
+     * XY bounds of chunk with its halo
+     */
+    public Rectangle haloBounds() {
+        return(new Rectangle(hx0, hy0, hx1 - hx0, hy1 - hy0));
+    }
+
+
+    /**
+     * XY bounds of chunk core, relative to chunk with its halo
+     */
+    public Rectangle coreBoundsInHalo() {
+        return(new Rectangle(x0 - hx0, y0 - hy0, x1 - x0, y1 - y0));
+    }
+
+
+    public boolean contains(int x, int y, int z) {
+        return(x >= x0 && x < x1 && y >= y0 && y < y1 && z >= z0 && z < z1);
+    }
+
+
+    public long nbVoxels() {
+        return((long) (x1 - x0) * (y1 - y0) * (z1 - z0));
+    }
+
+
+    @Override
+    public String toString() {
+        return("chunk " + index + " [" + x0 + "-" + x1 + ", " + y0 + "-" + y1 + ", " + z0 + "-" + z1 + "]");
+    }
+
+}
@@ -0,0 +1,406 @@
+package Vessels_Microglia_Endothelium_Tools.Chunks;
+
+import Vessels_Microglia_Endothelium_Tools.UnionFind;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+
+/**
+ * Split a volume into XY(Z) chunks with halos, process chunks in parallel and stitch results
+ * Connected components are labelled chunk by chunk, then merged across chunk borders
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ChunkEngine {
+
+    private final int chunkXY;
+    private final int chunkZ;
+    private final int nbThreads;
+
+
+    public ChunkEngine(int chunkXY, int chunkZ, int nbThreads) {
+        this.chunkXY = chunkXY;
+        this.chunkZ = chunkZ;
+        this.nbThreads = nbThreads;
+    }
+
+
+    /**
+     * Split volume into chunks with given halo
+     */
+    public List<Chunk> split(int width, int height, int depth, int haloXY, int haloZ) {
+        List<Chunk> chunks = new ArrayList<>();
+        for (int z = 0; z < depth; z += chunkZ)
+            for (int y = 0; y < height; y += chunkXY)
+                for (int x = 0; x < width; x += chunkXY)
+                    chunks.add(new Chunk(chunks.size(), x, y, z, Math.min(width, x + chunkXY), Math.min(height, y + chunkXY),
+                                         Math.min(depth, z + chunkZ), haloXY, haloZ, width, height, depth));
+        return(chunks);
+    }
+
+
+    /**
+     * Apply operation on each chunk with its halo and stitch chunks cores into an image of given bit depth
+     * Result is the same as on the whole image for filters with radius <= halo
+     */
+    public ImagePlus map(ImagePlus img, int haloXY, int haloZ, int bitDepth, UnaryOperator<ImagePlus> op) {
+        ImageStack in = img.getStack();
+        ImageStack out = ImageStack.create(img.getWidth(), img.getHeight(), in.getSize(), bitDepth);
+        run(split(img.getWidth(), img.getHeight(), in.getSize(), haloXY, haloZ), chunk -> {
+            ImagePlus imgChunk = crop(in, chunk);
+            imgChunk.setCalibration(img.getCalibration());
+            ImagePlus imgChunkOut = op.apply(imgChunk);
+            paste(imgChunkOut.getStack(), chunk, out, bitDepth);
+            imgChunk.flush();
+            imgChunkOut.flush();
+        });
+        ImagePlus imgOut = new ImagePlus(img.getShortTitle(), out);
+        imgOut.setCalibration(img.getCalibration());
+        return(imgOut);
+    }
+
+
+    /**
+     * Copy chunk with its halo into a new image
+     */
+    private ImagePlus crop(ImageStack in, Chunk chunk) {
+        ImageStack stack = new ImageStack(chunk.hx1 - chunk.hx0, chunk.hy1 - chunk.hy0);
+        for (int z = chunk.hz0; z < chunk.hz1; z++) {
+            ImageProcessor ip = in.getProcessor(z + 1);
+            ip.setRoi(chunk.haloBounds());
+            stack.addSlice(ip.crop());
+        }
+        return(new ImagePlus(chunk.toString(), stack));
+    }
+
+
+    /**
+     * Copy chunk core from processed chunk into output stack
+     */
+    private void paste(ImageStack chunkStack, Chunk chunk, ImageStack out, int bitDepth) {
+        for (int z = chunk.z0; z < chunk.z1; z++) {
+            ImageProcessor ip = chunkStack.getProcessor(z - chunk.hz0 + 1);
+            ip.setRoi(chunk.coreBoundsInHalo());
+            ImageProcessor core = ip.crop();
+            if (bitDepth == 8)
+                core = core.convertToByte(false);
+            else if (bitDepth == 16)
+                core = core.convertToShort(false);
+            else
+                core = core.convertToFloat();
+            out.getProcessor(z + 1).insert(core, chunk.x0, chunk.y0);
+        }
+    }
+
+
+    /**
+     * Apply operation on each chunk with its halo and count values of chunks cores, without keeping any output image
+     * Values are rounded to 16-bit: counts[v] is the number of voxels of value v
+     */
+    public long[] counts(ImagePlus img, int haloXY, int haloZ, UnaryOperator<ImagePlus> op) {
+        ImageStack in = img.getStack();
+        long[] counts = new long[65536];
+        run(split(img.getWidth(), img.getHeight(), in.getSize(), haloXY, haloZ), chunk -> {
+            ImagePlus imgChunk = crop(in, chunk);
+            imgChunk.setCalibration(img.getCalibration());
+            ImagePlus imgChunkOut = op.apply(imgChunk);
+            long[] chunkCounts = new long[counts.length];
+            Rectangle core = chunk.coreBoundsInHalo();
+            for (int z = chunk.z0; z < chunk.z1; z++) {
+                ImageProcessor ip = imgChunkOut.getStack().getProcessor(z - chunk.hz0 + 1);
+                for (int y = core.y; y < core.y + core.height; y++)
+                    for (int x = core.x; x < core.x + core.width; x++)
+                        chunkCounts[Math.max(0, Math.min(65535, Math.round(ip.getf(x, y))))]++;
+            }
+            imgChunk.flush();
+            imgChunkOut.flush();
+            synchronized (counts) {
+                for (int v = 0; v < counts.length; v++)
+                    counts[v] += chunkCounts[v];
+            }
+        });
+        return(counts);
+    }
+
+
+    /**
+     * Label 26-connected components of binary image chunk by chunk, merge labels across chunk borders
+     * and keep components with volume >= minVol
+     * Return a 16-bit image with labels numbered from 1, 32-bit if there are more than 65535 labels
+     */
+    public ImagePlus labelAndFilterSize(ImagePlus bin, double minVol, Calibration cal) {
+        Labels labels = label(bin.getStack(), minVol, cal);
+        int bitDepth = (labels.nbObjects > 65535) ? 32 : 16;
+        ImageStack out = ImageStack.create(bin.getWidth(), bin.getHeight(), bin.getNSlices(), bitDepth);
+        labels.write(out, false);
+        ImagePlus imgLabels = new ImagePlus(bin.getShortTitle() + "-labels", out);
+        imgLabels.setCalibration(cal);
+        return(imgLabels);
+    }
+
+
+    /**
+     * Keep 26-connected components of binary image with volume >= minVol, in place
+     * Voxels of kept components are set to 255, other voxels to 0
+     */
+    public void filterSize(ImagePlus bin, double minVol, Calibration cal) {
+        label(bin.getStack(), minVol, cal).write(bin.getStack(), true);
+    }
+
+
+    /**
+     * Label chunks independently, then merge labels touching each other across chunk borders and filter them by size
+     * Only labels of voxels on chunks faces are kept between both steps, chunks are labelled again when writing labels
+     */
+    private Labels label(ImageStack stack, double minVol, Calibration cal) {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        int depth = stack.getSize();
+
+        // Label chunks independently, keeping their faces
+        List<Chunk> chunks = split(width, height, depth, 0, 0);
+        long[][] chunkCounts = new long[chunks.size()][];
+        Faces[] faces = new Faces[chunks.size()];
+        run(chunks, chunk -> {
+            int[] chunkLabels = new int[(int) chunk.nbVoxels()];
+            chunkCounts[chunk.index] = labelChunk(stack, chunkLabels, chunk);
+            faces[chunk.index] = new Faces(chunk, chunkLabels);
+        });
+
+        // Give each chunk its own range of labels
+        Labels labels = new Labels(stack, chunks);
+        int nbLabels = 0;
+        for (Chunk chunk: chunks) {
+            labels.offsets[chunk.index] = nbLabels;
+            nbLabels += chunkCounts[chunk.index].length - 1;
+        }
+        labels.uf = new UnionFind(nbLabels + 1);
+        for (Chunk chunk: chunks)
+            for (int l = 1; l < chunkCounts[chunk.index].length; l++)
+                labels.uf.count(labels.uf.add(), chunkCounts[chunk.index][l]);
+
+        // Merge labels touching each other across chunk borders
+        for (Chunk chunk: chunks)
+            mergeBorders(faces, labels.offsets, chunk, labels.uf, width, height, depth);
+
+        // Filter components by size and number them compactly
+        long[] volumes = labels.uf.rootCounts();
+        double voxelVol = cal.pixelWidth * cal.pixelHeight * cal.pixelDepth;
+        labels.finalLabels = new int[labels.uf.size()];
+        for (int l = 1; l < labels.uf.size(); l++)
+            if (labels.uf.find(l) == l && volumes[l] * voxelVol >= minVol)
+                labels.finalLabels[l] = ++labels.nbObjects;
+        System.out.println("Nb objects remaining after size filtering: " + labels.nbObjects);
+        return(labels);
+    }
+
+
+    /**
+     * Components of a binary stack, labelled chunk by chunk and merged across chunks
+     */
+    private class Labels {
+        final ImageStack bin;
+        final List<Chunk> chunks;
+        final int[] offsets;
+        UnionFind uf;
+        int[] finalLabels;
+        int nbObjects = 0;
+
+        Labels(ImageStack bin, List<Chunk> chunks) {
+            this.bin = bin;
+            this.chunks = chunks;
+            this.offsets = new int[chunks.size()];
+        }
+
+        /**
+         * Label chunks again and write final labels of their voxels in out, or 255 if mask
+         * out can be the binary stack itself, each chunk being labelled before its voxels are written
+         */
+        void write(ImageStack out, boolean mask) {
+            run(chunks, chunk -> {
+                int[] chunkLabels = new int[(int) chunk.nbVoxels()];
+                labelChunk(bin, chunkLabels, chunk);
+                int i = 0;
+                for (int z = chunk.z0; z < chunk.z1; z++) {
+                    ImageProcessor ip = out.getProcessor(z + 1);
+                    for (int y = chunk.y0; y < chunk.y1; y++)
+                        for (int x = chunk.x0; x < chunk.x1; x++, i++) {
+                            int label = (chunkLabels[i] == 0) ? 0 : finalLabels[uf.find(chunkLabels[i] + offsets[chunk.index])];
+                            ip.setf(x, y, (mask && label != 0) ? 255 : label);
+                        }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Label 26-connected components inside chunk core into chunkLabels, indexed in chunk
+     * Return voxels count of each label, labels are numbered from 1 in chunk
+     */
+    private long[] labelChunk(ImageStack stack, int[] chunkLabels, Chunk chunk) {
+        int w = chunk.x1 - chunk.x0;
+        int h = chunk.y1 - chunk.y0;
+        UnionFind uf = new UnionFind();
+        for (int z = chunk.z0; z < chunk.z1; z++) {
+            ImageProcessor ip = stack.getProcessor(z + 1);
+            for (int y = chunk.y0; y < chunk.y1; y++) {
+                for (int x = chunk.x0; x < chunk.x1; x++) {
+                    if (ip.getf(x, y) == 0)
+                        continue;
+                    int label = 0;
+                    for (int dz = -1; dz <= 0; dz++)
+                        for (int dy = -1; dy <= 1; dy++)
+                            for (int dx = -1; dx <= 1; dx++) {
+                                // Only neighbours already visited in raster order
+                                if (dz == 0 && (dy > 0 || (dy == 0 && dx >= 0)))
+                                    continue;
+                                if (!chunk.contains(x+dx, y+dy, z+dz))
+                                    continue;
+                                int neighbour = chunkLabels[((z+dz-chunk.z0)*h + y+dy-chunk.y0)*w + x+dx-chunk.x0];
+                                if (neighbour != 0)
+                                    label = (label == 0) ? neighbour : uf.union(label, neighbour);
+                            }
+                    if (label == 0)
+                        label = uf.add();
+                    uf.count(label);
+                    chunkLabels[((z-chunk.z0)*h + y-chunk.y0)*w + x-chunk.x0] = label;
+                }
+            }
+        }
+
+        // Number roots compactly
+        long[] rootCounts = uf.rootCounts();
+        int[] compact = new int[uf.size()];
+        List<Long> counts = new ArrayList<>();
+        counts.add(0L);
+        for (int l = 1; l < uf.size(); l++) {
+            if (uf.find(l) == l) {
+                compact[l] = counts.size();
+                counts.add(rootCounts[l]);
+            }
+        }
+        for (int i = 0; i < chunkLabels.length; i++)
+            if (chunkLabels[i] != 0)
+                chunkLabels[i] = compact[uf.find(chunkLabels[i])];
+        return(counts.stream().mapToLong(Long::longValue).toArray());
+    }
+
+
+    /**
+     * Merge labels of chunk border voxels with labels of their 26-neighbours in other chunks
+     * Neighbours in other chunks are on the faces of their chunk
+     */
+    private void mergeBorders(Faces[] faces, int[] offsets, Chunk chunk, UnionFind uf, int width, int height, int depth) {
+        int nbX = (width + chunkXY - 1) / chunkXY;
+        int nbY = (height + chunkXY - 1) / chunkXY;
+        Faces chunkFaces = faces[chunk.index];
+        for (int z = chunk.z0; z < chunk.z1; z++) {
+            for (int y = chunk.y0; y < chunk.y1; y++) {
+                boolean zyBorder = (z == chunk.z0 || z == chunk.z1-1 || y == chunk.y0 || y == chunk.y1-1);
+                // Inside the chunk, only first and last columns are on the border
+                int xStep = (zyBorder || chunk.x1 - chunk.x0 < 2) ? 1 : chunk.x1 - chunk.x0 - 1;
+                for (int x = chunk.x0; x < chunk.x1; x += xStep) {
+                    int label = chunkFaces.get(x, y, z);
+                    if (label == 0)
+                        continue;
+                    for (int dz = -1; dz <= 1; dz++)
+                        for (int dy = -1; dy <= 1; dy++)
+                            for (int dx = -1; dx <= 1; dx++) {
+                                int nx = x+dx, ny = y+dy, nz = z+dz;
+                                if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 || nz >= depth || chunk.contains(nx, ny, nz))
+                                    continue;
+                                // Chunks are split in z, y, x order
+                                int other = ((nz / chunkZ) * nbY + ny / chunkXY) * nbX + nx / chunkXY;
+                                int neighbour = faces[other].get(nx, ny, nz);
+                                if (neighbour != 0)
+                                    uf.union(label + offsets[chunk.index], neighbour + offsets[other]);
+                            }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Chunk labels of the voxels on the 6 faces of a chunk
+     */
+    private static class Faces {
+        final Chunk chunk;
+        final int w, h, d;
+        // Faces z0, z1-1, y0, y1-1, x0 and x1-1
+        final int[][] faces = new int[6][];
+
+        Faces(Chunk chunk, int[] chunkLabels) {
+            this.chunk = chunk;
+            w = chunk.x1 - chunk.x0;
+            h = chunk.y1 - chunk.y0;
+            d = chunk.z1 - chunk.z0;
+            for (int f = 0; f < 2; f++) {
+                faces[f] = new int[w*h];
+                faces[2+f] = new int[w*d];
+                faces[4+f] = new int[h*d];
+            }
+            for (int z = 0; z < d; z++)
+                for (int y = 0; y < h; y++)
+                    for (int x = 0; x < w; x++) {
+                        int label = chunkLabels[(z*h + y)*w + x];
+                        if (z == 0) faces[0][y*w + x] = label;
+                        if (z == d-1) faces[1][y*w + x] = label;
+                        if (y == 0) faces[2][z*w + x] = label;
+                        if (y == h-1) faces[3][z*w + x] = label;
+                        if (x == 0) faces[4][z*h + y] = label;
+                        if (x == w-1) faces[5][z*h + y] = label;
+                    }
+        }
+
+        /**
+         * Chunk label of voxel (x, y, z) on a face of chunk
+         */
+        int get(int x, int y, int z) {
+            x -= chunk.x0;
+            y -= chunk.y0;
+            z -= chunk.z0;
+            if (z == 0) return(faces[0][y*w + x]);
+            if (z == d-1) return(faces[1][y*w + x]);
+            if (y == 0) return(faces[2][z*w + x]);
+            if (y == h-1) return(faces[3][z*w + x]);
+            if (x == 0) return(faces[4][z*h + y]);
+            if (x == w-1) return(faces[5][z*h + y]);
+            throw new IllegalArgumentException("Voxel " + x + "," + y + "," + z + " not on a face of " + chunk);
+        }
+    }
+
+
+    /**
+     * Run task on each chunk with a pool of threads
+     */
+    private void run(List<Chunk> chunks, Consumer<Chunk> task) {
+        ExecutorService pool = Executors.newFixedThreadPool(nbThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Chunk chunk: chunks)
+                futures.add(pool.submit(() -> task.accept(chunk)));
+            for (Future<?> future: futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Chunks processing interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Chunks processing failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import ij.measure.Calibration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Pre-scan of images before analysis
+ * OME metadata of all images are read in parallel, each thread with its own reader, so that an image missing
+ * a channel, a calibration or with a bit depth normalization rejects is reported before the run starts
+ * instead of failing when the image is reached
+ * Sizes read give an estimate of memory needed by each image, used to bound read-ahead, and of its runtime
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ImageScan {
+
+    // Heap used per voxel by intermediate images of an image analysis (masks, skeleton, labels, float distance maps)
+    static final int WORK_BYTES_PER_VOXEL = 16;
+
+    /**
+     * Metadata of one image
+     */
+    public static class ImageInfo {
+        public final String file;
+        public String[] channelNames;
+        public Calibration cal;
+        public int width, height, depth, bitDepth, channels;
+        public boolean floatingPoint;
+        // Metadata could not be read
+        public String error;
+
+        ImageInfo(String file) {
+            this.file = file;
+        }
+
+        public long voxels() {
+            return((long) width * height * depth);
+        }
+
+        /**
+         * Heap held by one channel, opened as a 16-bit stack
+         */
+        public long channelBytes() {
+            return(voxels() * 2);
+        }
+
+        /**
+         * Heap held while Bio-Formats opens all channels of image, at their own bit depth
+         */
+        public long openBytes() {
+            return(voxels() * bitDepth / 8 * channels);
+        }
+    }
+
+
+    private final Map<String, ImageInfo> images = new LinkedHashMap<>();
+
+
+    /**
+     * Read metadata of files with given number of threads
+     */
+    public static ImageScan scan(List<String> files, int threads, Tools tools) throws InterruptedException {
+        ImageScan scan = new ImageScan();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<ImageInfo>> infos = new ArrayList<>();
+            for (String file: files)
+                infos.add(pool.submit(() -> read(file, tools)));
+            for (Future<ImageInfo> info: infos) {
+                try {
+                    ImageInfo image = info.get();
+                    scan.images.put(image.file, image);
+                } catch (ExecutionException ex) {
+                    // read() reports its own errors
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return(scan);
+    }
+
+
+    private static ImageInfo read(String file, Tools tools) {
+        ImageInfo info = new ImageInfo(file);
+        ImageProcessorReader reader = new ImageProcessorReader();
+        try {
+            IMetadata meta = new ServiceFactory().getInstance(OMEXMLService.class).createOMEXMLMetadata();
+            reader.setMetadataStore(meta);
+            info.channelNames = tools.findChannels(file, meta, reader);
+            info.width = reader.getSizeX();
+            info.height = reader.getSizeY();
+            info.depth = reader.getSizeZ();
+            info.channels = reader.getSizeC();
+            info.bitDepth = FormatTools.getBytesPerPixel(reader.getPixelType()) * 8;
+            info.floatingPoint = FormatTools.isFloatingPoint(reader.getPixelType());
+            if (meta.getPixelsPhysicalSizeX(0) == null)
+                info.error = "no XY calibration";
+            else
+                info.cal = tools.findImageCalib(meta);
+        } catch (Exception ex) {
+            info.error = "metadata could not be read (" + ex.getMessage() + ")";
+        } finally {
+            try {
+                reader.close();
+            } catch (Exception ex) {
+            }
+        }
+        return(info);
+    }
+
+
+    public ImageInfo get(String file) {
+        return(images.get(file));
+    }
+
+
+    /**
+     * Problems preventing images from being analyzed with selected channels
+     * channelNames are channels of first image, as shown in dialog box
+     */
+    public List<String> validate(String[] channelNames, String[] channels, boolean normalization) {
+        List<String> problems = new ArrayList<>();
+        for (ImageInfo image: images.values()) {
+            String name = FilenameUtils.getName(image.file);
+            if (image.error != null) {
+                problems.add(name + ": " + image.error);
+                continue;
+            }
+            for (String channel: channels) {
+                if (channel.equals("None"))
+                    continue;
+                int index = Arrays.asList(channelNames).indexOf(channel);
+                // Last channel name is "None"
+                if (index >= image.channelNames.length - 1 || !image.channelNames[index].equals(channel))
+                    problems.add(name + ": no channel " + channel + " at position " + index + " (image channels: " +
+                                 String.join(", ", Arrays.copyOf(image.channelNames, image.channelNames.length - 1)) + ")");
+            }
+            if (normalization && (image.floatingPoint || (image.bitDepth != 8 && image.bitDepth != 16)))
+                problems.add(name + ": " + (image.floatingPoint ? "32-bit float" : image.bitDepth + "-bit") +
+                             " image, only 8-bit and 16-bit images can be normalized");
+        }
+        return(problems);
+    }
+
+
+    /**
+     * Differences between images that do not prevent analysis but make results harder to compare
+     */
+    public List<String> warnings(boolean normalization) {
+        List<String> warnings = new ArrayList<>();
+        ImageInfo first = null;
+        for (ImageInfo image: images.values()) {
+            if (image.error != null)
+                continue;
+            if (first == null) {
+                first = image;
+                continue;
+            }
+            String name = FilenameUtils.getName(image.file);
+            if (differ(image.cal.pixelWidth, first.cal.pixelWidth) || differ(image.cal.pixelDepth, first.cal.pixelDepth))
+                warnings.add(name + ": calibration " + image.cal.pixelWidth + " x " + image.cal.pixelDepth + " µm differs from " +
+                             first.cal.pixelWidth + " x " + first.cal.pixelDepth + " µm of " + FilenameUtils.getName(first.file));
+            if (normalization && image.bitDepth != first.bitDepth)
+                warnings.add(name + ": " + image.bitDepth + "-bit image normalized with " + first.bitDepth + "-bit images");
+        }
+        return(warnings);
+    }
+
+
+    private static boolean differ(double a, double b) {
+        return(Math.abs(a - b) > 1e-3 * Math.max(Math.abs(a), Math.abs(b)));
+    }
+
+
+    /**
+     * Estimated heap needed to analyze image, loadedChannels of its channels being held in heap
+     * Channels are opened at once by Bio-Formats, so that all of them are held while image is opened
+     */
+    public long peakBytes(String file, int loadedChannels) {
+        ImageInfo image = images.get(file);
+        if (loadedChannels == 0)
+            return(image.voxels() * WORK_BYTES_PER_VOXEL);
+        return(Math.max(image.openBytes(), image.channelBytes() * loadedChannels + image.voxels() * WORK_BYTES_PER_VOXEL));
+    }
+
+
+    /**
+     * Number of images that can be read ahead within heap, at most readAhead
+     * Largest images are assumed, so that read-ahead images and the one analyzed always fit together with
+     * the images kept open by overlay writing (overlayThreads writing and overlayQueue waiting) and the one
+     * being opened by the reader thread, with all its channels
+     */
+    public int readAheadDepth(List<String> files, int readAhead, int loadedChannels, int overlayThreads, int overlayQueue) {
+        long maxPeak = 0, maxLoaded = 0, maxOpen = 0;
+        for (String file: files) {
+            maxPeak = Math.max(maxPeak, peakBytes(file, loadedChannels));
+            maxLoaded = Math.max(maxLoaded, images.get(file).channelBytes() * loadedChannels);
+            maxOpen = Math.max(maxOpen, images.get(file).openBytes());
+        }
+        if (maxLoaded == 0)
+            return(readAhead);
+        long free = Runtime.getRuntime().maxMemory() - maxPeak - (overlayThreads + overlayQueue) * maxLoaded - Math.max(maxLoaded, maxOpen);
+        return((int) Math.max(0, Math.min(readAhead, free / maxLoaded)));
+    }
+
+
+    /**
+     * Plan of run printed before analysis: size, share of voxels and estimated heap of each image
+     * Images runtimes scale with their voxels, the rate being measured on first images analyzed
+     */
+    public List<String> plan(List<String> files, int loadedChannels) {
+        List<String> plan = new ArrayList<>();
+        long total = Math.max(1, voxels(files));
+        for (String file: files) {
+            ImageInfo image = images.get(file);
+            plan.add(FilenameUtils.getName(file) + ": " + image.width + " x " + image.height + " x " + image.depth + ", " +
+                     String.format("%.1f", 100.0 * image.voxels() / total) + "% of run time, about " + (peakBytes(file, loadedChannels) >> 20) + " MB");
+        }
+        return(plan);
+    }
+
+
+    public long voxels(List<String> files) {
+        long voxels = 0;
+        for (String file: files)
+            voxels += images.get(file).voxels();
+        return(voxels);
+    }
+
+
+    /**
+     * Remaining runtime extrapolated from time spent on voxels already analyzed
+     */
+    public static String remainingTime(long doneVoxels, long elapsedMs, long remainingVoxels) {
+        if (doneVoxels == 0)
+            return("unknown");
+        long s = (long) ((double) elapsedMs * remainingVoxels / doneVoxels / 1000);
+        return(String.format("%dh%02dm%02ds", s / 3600, (s / 60) % 60, s % 60));
+    }
+
+}
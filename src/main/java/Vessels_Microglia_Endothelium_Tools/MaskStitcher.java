@@ -0,0 +1,223 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/**
+ * Stitch 2D labels of a 16-bit stack into 3D labels, working on label planes in place
+ * Overlaps between labels of consecutive slices are counted for all slice pairs in parallel,
+ * each label of slice z+1 being associated with the label of slice z it overlaps most, if overlap covers at least
+ * minColoc of its area and that label of slice z is not overlapped more by another label
+ * Label chains are then resolved in one sequential pass, unassociated labels getting new labels
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class MaskStitcher {
+
+    private final double minColoc;
+
+
+    public MaskStitcher(double minColoc) {
+        this.minColoc = minColoc;
+    }
+
+
+    /**
+     * Relabel stack of img so that objects overlapping across slices share the same label
+     * Stack is converted to 32-bit if stitched labels don't fit 16 bits anymore
+     */
+    public void stitch(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        int nSlices = stack.getSize();
+        if (img.getBitDepth() != 16)
+            throw new IllegalArgumentException("Labels image " + img.getTitle() + " is not 16-bit");
+        short[][] planes = new short[nSlices][];
+        for (int z = 0; z < nSlices; z++)
+            planes[z] = (short[]) stack.getPixels(z + 1);
+        boolean[][] present = new boolean[nSlices][];
+        IntStream.range(0, nSlices).parallel().forEach(z -> present[z] = labelsPresent(planes[z]));
+        int[] maxLabels = Arrays.stream(present).mapToInt(p -> p.length - 1).toArray();
+
+        // Association of each label of slice z+1 with a label of slice z (0 if none), all slice pairs in parallel
+        int[][] associations = new int[nSlices][];
+        associations[0] = new int[maxLabels[0] + 1];
+        IntStream.range(1, nSlices).parallel().forEach(z ->
+            associations[z] = associate(planes[z-1], maxLabels[z-1], planes[z], maxLabels[z]));
+
+        // Resolve chains slice after slice
+        int[][] labels = new int[nSlices][];
+        labels[0] = new int[maxLabels[0] + 1];
+        for (int l = 1; l <= maxLabels[0]; l++)
+            labels[0][l] = l;
+        int maxLabel = maxLabels[0];
+        for (int z = 1; z < nSlices; z++) {
+            labels[z] = new int[maxLabels[z] + 1];
+            for (int l = 1; l <= maxLabels[z]; l++) {
+                if (!present[z][l])
+                    continue;
+                int previous = associations[z][l];
+                labels[z][l] = (previous != 0) ? labels[z-1][previous] : ++maxLabel;
+            }
+        }
+
+        // Relabel planes
+        if (maxLabel <= 0xffff) {
+            IntStream.range(0, nSlices).parallel().forEach(z -> {
+                short[] plane = planes[z];
+                int[] lut = labels[z];
+                for (int i = 0; i < plane.length; i++)
+                    plane[i] = (short) lut[plane[i] & 0xffff];
+            });
+            for (int z = 0; z < nSlices; z++)
+                stack.setPixels(planes[z], z + 1);
+        } else {
+            ImageStack floatStack = new ImageStack(stack.getWidth(), stack.getHeight());
+            for (int z = 0; z < nSlices; z++) {
+                short[] plane = planes[z];
+                float[] floatPlane = new float[plane.length];
+                for (int i = 0; i < plane.length; i++)
+                    floatPlane[i] = labels[z][plane[i] & 0xffff];
+                floatStack.addSlice(stack.getSliceLabel(z + 1), floatPlane);
+            }
+            img.setStack(floatStack);
+        }
+    }
+
+
+    /**
+     * Associate each label of plane2 with the label of plane1 it overlaps most
+     */
+    private int[] associate(short[] plane1, int maxLabel1, short[] plane2, int maxLabel2) {
+        int[] areas = new int[maxLabel2 + 1];
+        PairCounts overlaps = new PairCounts();
+        for (int i = 0; i < plane2.length; i++) {
+            int l2 = plane2[i] & 0xffff;
+            if (l2 == 0)
+                continue;
+            areas[l2]++;
+            int l1 = plane1[i] & 0xffff;
+            if (l1 != 0)
+                overlaps.increment(l1, l2);
+        }
+
+        // Best candidate of each label of plane2, then best claimant of each label of plane1
+        int[] best = new int[maxLabel2 + 1];
+        int[] bestOverlap = new int[maxLabel2 + 1];
+        int[] claimOverlap = new int[maxLabel1 + 1];
+        int[] claimant = new int[maxLabel1 + 1];
+        for (int k = 0; k < overlaps.capacity(); k++) {
+            if (!overlaps.used(k))
+                continue;
+            int l1 = overlaps.first(k), l2 = overlaps.second(k), count = overlaps.count(k);
+            if (count > bestOverlap[l2] || (count == bestOverlap[l2] && l1 < best[l2])) {
+                best[l2] = l1;
+                bestOverlap[l2] = count;
+            }
+        }
+        for (int l2 = 1; l2 <= maxLabel2; l2++) {
+            int l1 = best[l2];
+            if (l1 == 0 || bestOverlap[l2] < minColoc * areas[l2])
+                continue;
+            if (bestOverlap[l2] > claimOverlap[l1]) {
+                claimOverlap[l1] = bestOverlap[l2];
+                claimant[l1] = l2;
+            }
+        }
+        int[] associations = new int[maxLabel2 + 1];
+        for (int l1 = 1; l1 <= maxLabel1; l1++)
+            if (claimant[l1] != 0)
+                associations[claimant[l1]] = l1;
+        return(associations);
+    }
+
+
+    /**
+     * Flags of labels present in plane, up to its max label
+     */
+    private static boolean[] labelsPresent(short[] plane) {
+        boolean[] present = new boolean[0x10000];
+        int max = 0;
+        for (short v: plane) {
+            int l = v & 0xffff;
+            present[l] = true;
+            max = Math.max(max, l);
+        }
+        return(Arrays.copyOf(present, max + 1));
+    }
+
+
+    /**
+     * Open-addressing hash of (label1, label2) pairs to their overlap count, without boxing
+     */
+    private static class PairCounts {
+
+        private long[] keys = new long[256];
+        private int[] counts = new int[256];
+        private int size = 0;
+
+
+        void increment(int l1, int l2) {
+            long key = ((long) l1 << 32) | l2;
+            int k = slot(keys, key);
+            if (counts[k] == 0) {
+                keys[k] = key;
+                size++;
+            }
+            counts[k]++;
+            if (size > keys.length / 2)
+                grow();
+        }
+
+
+        int capacity() {
+            return(keys.length);
+        }
+
+
+        boolean used(int k) {
+            return(counts[k] != 0);
+        }
+
+
+        int first(int k) {
+            return((int) (keys[k] >>> 32));
+        }
+
+
+        int second(int k) {
+            return((int) keys[k]);
+        }
+
+
+        int count(int k) {
+            return(counts[k]);
+        }
+
+
+        private int slot(long[] table, long key) {
+            int mask = table.length - 1;
+            int k = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (table[k] != 0 && table[k] != key)
+                k = (k + 1) & mask;
+            return(k);
+        }
+
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new int[oldCounts.length * 2];
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldCounts[k] != 0) {
+                    int slot = slot(keys, oldKeys[k]);
+                    keys[slot] = oldKeys[k];
+                    counts[slot] = oldCounts[k];
+                }
+            }
+        }
+    }
+
+}
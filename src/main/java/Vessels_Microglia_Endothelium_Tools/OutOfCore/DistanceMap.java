@@ -0,0 +1,66 @@
+package Vessels_Microglia_Endothelium_Tools.OutOfCore;
+
+import ij.ImagePlus;
+import mcib3d.geom.Point3D;
+import mcib3d.geom2.VoxelInt;
+import mcib3d.image3d.ImageFloat;
+
+
+/**
+ * Distance map read voxel by voxel, either held in memory or memory-mapped in out-of-core mode
+ * Mapped distance maps are only read at the measured voxels, never copied into memory
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class DistanceMap {
+
+    private final ImageFloat edt;
+    private final MappedStack mapped;
+
+
+    public DistanceMap(ImageFloat edt) {
+        this.edt = edt;
+        this.mapped = null;
+    }
+
+
+    public DistanceMap(MappedStack mapped) {
+        this.edt = null;
+        this.mapped = mapped;
+    }
+
+
+    /**
+     * Distance at voxel (x, y, z), 0-based
+     */
+    public double getPixel(int x, int y, int z) {
+        return((mapped == null) ? edt.getPixel(x, y, z) : mapped.getValue(x, y, z));
+    }
+
+
+    /**
+     * Distance at voxel nearest to point
+     */
+    public double getPixel(Point3D point) {
+        return((mapped == null) ? edt.getPixel(point) : mapped.getValue(point.getRoundX(), point.getRoundY(), point.getRoundZ()));
+    }
+
+
+    public double getPixel(VoxelInt voxel) {
+        return(getPixel(voxel.getX(), voxel.getY(), voxel.getZ()));
+    }
+
+
+    /**
+     * Close distance map, deleting its backing file if mapped
+     */
+    public void close() {
+        if (mapped != null) {
+            mapped.close();
+            return;
+        }
+        ImagePlus img = edt.getImagePlus();
+        img.flush();
+        img.close();
+    }
+
+}
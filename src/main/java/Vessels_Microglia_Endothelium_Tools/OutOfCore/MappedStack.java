@@ -0,0 +1,350 @@
+package Vessels_Microglia_Endothelium_Tools.OutOfCore;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Image stack stored as uncompressed planes in a memory-mapped file
+ * Planes are read and written on demand, so stack size is bounded by disk space and not by heap size
+ * 32-bit stacks can be accessed either as float values or as raw int values (labels)
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class MappedStack extends VirtualStack {
+
+    private final int depth;
+    private final int bitDepth;
+    private final int bytesPerPixel;
+    private final long planeBytes;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer[] planes;
+
+
+    public MappedStack(File file, int width, int height, int depth, int bitDepth) throws IOException {
+        this(file, 0, width, height, depth, bitDepth);
+    }
+
+
+    /**
+     * Map planes stored after offset bytes of file (e.g. after a file header)
+     */
+    public MappedStack(File file, long offset, int width, int height, int depth, int bitDepth) throws IOException {
+        super(width, height, null, file.getParent());
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+            throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+        this.depth = depth;
+        this.bitDepth = bitDepth;
+        this.bytesPerPixel = bitDepth / 8;
+        this.planeBytes = (long) width * height * bytesPerPixel;
+        if (planeBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Plane too large to be mapped: " + width + "x" + height);
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < offset + planeBytes * depth)
+            raf.setLength(offset + planeBytes * depth);
+        FileChannel channel = raf.getChannel();
+        this.planes = new MappedByteBuffer[depth];
+        for (int z = 0; z < depth; z++)
+            planes[z] = (MappedByteBuffer) channel.map(FileChannel.MapMode.READ_WRITE, offset + z * planeBytes, planeBytes).order(ByteOrder.nativeOrder());
+    }
+
+
+    /**
+     * Create an empty mapped stack in a temporary file of given directory
+     */
+    public static MappedStack create(File dir, String name, int width, int height, int depth, int bitDepth) throws IOException {
+        File file = File.createTempFile(name + "-", ".raw", dir);
+        return(new MappedStack(file, width, height, depth, bitDepth));
+    }
+
+
+    /**
+     * Create an empty mapped stack with same dimensions as given stack
+     */
+    public static MappedStack createSameDimensions(File dir, String name, ImageStack stack, int bitDepth) throws IOException {
+        return(create(dir, name, stack.getWidth(), stack.getHeight(), stack.getSize(), bitDepth));
+    }
+
+
+    /**
+     * Stage one channel of the image opened in reader into a mapped 16-bit stack, plane by plane
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public static MappedStack fromReader(ImageProcessorReader reader, int channel, File dir, String name) throws FormatException, IOException {
+        int width = reader.getSizeX();
+        int height = reader.getSizeY();
+        int depth = reader.getSizeZ();
+        int pixelType = reader.getPixelType();
+        int bpp = FormatTools.getBytesPerPixel(pixelType);
+        boolean isFloat = FormatTools.isFloatingPoint(pixelType);
+        ByteOrder order = reader.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+        MappedStack stack = create(dir, name, width, height, depth, 16);
+        for (int z = 0; z < depth; z++) {
+            ByteBuffer in = ByteBuffer.wrap(reader.openBytes(reader.getIndex(z, channel, 0))).order(order);
+            ByteBuffer out = stack.plane(z);
+            for (int i = 0; i < width*height; i++) {
+                int value;
+                if (bpp == 1)
+                    value = in.get() & 0xff;
+                else if (bpp == 2)
+                    value = in.getShort() & 0xffff;
+                else if (isFloat)
+                    value = (int) in.getFloat();
+                else
+                    value = in.getInt();
+                out.putShort((short) Math.max(0, Math.min(65535, value)));
+            }
+        }
+        return(stack);
+    }
+
+
+    /**
+     * Stage an in-memory stack into a mapped stack of same bit depth
+     */
+    public static MappedStack fromImagePlus(ImagePlus img, File dir) throws IOException {
+        ImageStack in = img.getStack();
+        int bitDepth = (img.getBitDepth() == 24) ? 8 : img.getBitDepth();
+        MappedStack stack = createSameDimensions(dir, img.getShortTitle(), in, bitDepth);
+        for (int z = 1; z <= in.getSize(); z++)
+            stack.setProcessor(in.getProcessor(z), z);
+        return(stack);
+    }
+
+
+    /**
+     * Return a view of plane z (0-based) with its own position and native byte order
+     */
+    private ByteBuffer plane(int z) {
+        return(planes[z].duplicate().order(ByteOrder.nativeOrder()));
+    }
+
+
+    @Override
+    public int getSize() {
+        return(depth);
+    }
+
+
+    @Override
+    public int getBitDepth() {
+        return(bitDepth);
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return(null);
+    }
+
+
+    @Override
+    public Object getPixels(int n) {
+        ByteBuffer buf = plane(n-1);
+        int size = getWidth()*getHeight();
+        switch (bitDepth) {
+            case 8 :
+                byte[] bytes = new byte[size];
+                buf.get(bytes);
+                return(bytes);
+            case 16 :
+                short[] shorts = new short[size];
+                buf.asShortBuffer().get(shorts);
+                return(shorts);
+            default :
+                float[] floats = new float[size];
+                buf.asFloatBuffer().get(floats);
+                return(floats);
+        }
+    }
+
+
+    @Override
+    public void setPixels(Object pixels, int n) {
+        ByteBuffer buf = plane(n-1);
+        switch (bitDepth) {
+            case 8 :
+                buf.put((byte[]) pixels);
+                break;
+            case 16 :
+                buf.asShortBuffer().put((short[]) pixels);
+                break;
+            default :
+                buf.asFloatBuffer().put((float[]) pixels);
+        }
+    }
+
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Object pixels = getPixels(n);
+        switch (bitDepth) {
+            case 8 :
+                return(new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels));
+            case 16 :
+                return(new ShortProcessor(getWidth(), getHeight(), (short[]) pixels, null));
+            default :
+                return(new FloatProcessor(getWidth(), getHeight(), (float[]) pixels));
+        }
+    }
+
+
+    /**
+     * Write processor into plane n (1-based), converting it to stack bit depth without scaling
+     */
+    @Override
+    public void setProcessor(ImageProcessor ip, int n) {
+        switch (bitDepth) {
+            case 8 :
+                setPixels(ip.convertToByte(false).getPixels(), n);
+                break;
+            case 16 :
+                setPixels(ip.convertToShort(false).getPixels(), n);
+                break;
+            default :
+                setPixels(ip.convertToFloat().getPixels(), n);
+        }
+    }
+
+
+    /**
+     * Get value of voxel (x, y, z), 0-based
+     */
+    public double getValue(int x, int y, int z) {
+        if (x < 0 || x >= getWidth() || y < 0 || y >= getHeight() || z < 0 || z >= depth)
+            return(0);
+        int index = (y*getWidth() + x) * bytesPerPixel;
+        ByteBuffer buf = planes[z];
+        switch (bitDepth) {
+            case 8 :
+                return(buf.get(index) & 0xff);
+            case 16 :
+                return(buf.getShort(index) & 0xffff);
+            default :
+                return(buf.getFloat(index));
+        }
+    }
+
+
+    /**
+     * Set value of voxel (x, y, z), 0-based
+     */
+    public void setValue(int x, int y, int z, double value) {
+        if (x < 0 || x >= getWidth() || y < 0 || y >= getHeight() || z < 0 || z >= depth)
+            return;
+        int index = (y*getWidth() + x) * bytesPerPixel;
+        ByteBuffer buf = planes[z];
+        switch (bitDepth) {
+            case 8 :
+                buf.put(index, (byte) Math.max(0, Math.min(255, value)));
+                break;
+            case 16 :
+                buf.putShort(index, (short) Math.max(0, Math.min(65535, value)));
+                break;
+            default :
+                buf.putFloat(index, (float) value);
+        }
+    }
+
+
+    /**
+     * Read a row of plane z (0-based) as float values
+     */
+    public void getRow(int y, int z, float[] row) {
+        ByteBuffer buf = plane(z);
+        int width = getWidth();
+        buf.position(y*width*bytesPerPixel);
+        for (int x = 0; x < width; x++) {
+            switch (bitDepth) {
+                case 8 :
+                    row[x] = buf.get() & 0xff;
+                    break;
+                case 16 :
+                    row[x] = buf.getShort() & 0xffff;
+                    break;
+                default :
+                    row[x] = buf.getFloat();
+            }
+        }
+    }
+
+
+    /**
+     * Write a row of float values in a 32-bit plane z (0-based)
+     */
+    public void setRow(int y, int z, float[] row) {
+        ByteBuffer buf = plane(z);
+        buf.position(y*getWidth()*bytesPerPixel);
+        buf.asFloatBuffer().put(row, 0, getWidth());
+    }
+
+
+    /**
+     * Read plane z (0-based) of a 32-bit stack as raw int values
+     */
+    public void getInts(int z, int[] values) {
+        plane(z).asIntBuffer().get(values);
+    }
+
+
+    /**
+     * Write raw int values in plane z (0-based) of a 32-bit stack
+     */
+    public void setInts(int z, int[] values) {
+        plane(z).asIntBuffer().put(values);
+    }
+
+
+    /**
+     * Copy slices [z0, z1[ (0-based) into an in-memory image
+     */
+    public ImagePlus getSlab(int z0, int z1) {
+        ImageStack slab = new ImageStack(getWidth(), getHeight());
+        for (int z = z0; z < z1; z++)
+            slab.addSlice(getProcessor(z+1));
+        return(new ImagePlus("slab-" + z0 + "-" + z1, slab));
+    }
+
+
+    /**
+     * Close backing file, keeping it on disk
+     * Planes remain readable until the stack is garbage collected
+     */
+    public void release() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            System.out.println("WARNING: could not close mapped file " + file + ": " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Release mapping and delete backing file
+     */
+    public void close() {
+        release();
+        // On Windows, mapped files can't be deleted before being garbage collected, left to deleteOnExit then
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+}
@@ -0,0 +1,343 @@
+package Vessels_Microglia_Endothelium_Tools.OutOfCore;
+
+import Vessels_Microglia_Endothelium_Tools.UnionFind;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.AutoThresholder;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+
+/**
+ * Out-of-core operations on mapped stacks: filtering, thresholding, labelling and distance maps
+ * Stacks are processed slab by slab (or plane by plane), so only a few planes are in memory at once
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class SlabProcessor {
+
+    // Squared distance given to voxels without any source in a distance map line
+    private static final float FAR = 1e20f;
+
+    private final File dir;
+    private final int slabDepth;
+
+
+    public SlabProcessor(File dir, int slabDepth) {
+        this.dir = dir;
+        this.slabDepth = slabDepth;
+        dir.mkdirs();
+    }
+
+
+    /**
+     * Apply filter slab by slab
+     * Each slab is extended by halo slices on both sides, so that 3D filters with a Z radius <= halo give
+     * the same result as on the whole stack
+     */
+    public MappedStack filter(MappedStack in, String name, int halo, int bitDepth, UnaryOperator<ImagePlus> filter) throws IOException {
+        MappedStack out = MappedStack.createSameDimensions(dir, name, in, bitDepth);
+        int depth = in.getSize();
+        for (int z0 = 0; z0 < depth; z0 += slabDepth) {
+            int z1 = Math.min(depth, z0 + slabDepth);
+            int h0 = Math.max(0, z0 - halo);
+            int h1 = Math.min(depth, z1 + halo);
+
+            ImagePlus slab = in.getSlab(h0, h1);
+            ImagePlus slabOut = filter.apply(slab);
+            ImageStack stackOut = slabOut.getStack();
+            for (int z = z0; z < z1; z++)
+                out.setProcessor(stackOut.getProcessor(z - h0 + 1), z + 1);
+
+            slab.flush();
+            slabOut.flush();
+        }
+        return(out);
+    }
+
+
+    /**
+     * Get min and max values of stack
+     */
+    public double[] minMax(MappedStack in) {
+        int width = in.getWidth();
+        double[][] minMax = new double[in.getSize()][];
+        IntStream.range(0, in.getSize()).parallel().forEach(z -> {
+            float[] row = new float[width];
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int y = 0; y < in.getHeight(); y++) {
+                in.getRow(y, z, row);
+                for (float v: row) {
+                    if (v < min) min = v;
+                    if (v > max) max = v;
+                }
+            }
+            minMax[z] = new double[]{min, max};
+        });
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (double[] mm: minMax) {
+            min = Math.min(min, mm[0]);
+            max = Math.max(max, mm[1]);
+        }
+        return(new double[]{min, max});
+    }
+
+
+    /**
+     * Compute histogram of stack with given number of bins between min and max
+     */
+    public long[] histogram(MappedStack in, double min, double max, int nbBins) {
+        int width = in.getWidth();
+        double scale = (max > min) ? (nbBins - 1) / (max - min) : 0;
+        long[][] histograms = new long[in.getSize()][];
+        IntStream.range(0, in.getSize()).parallel().forEach(z -> {
+            float[] row = new float[width];
+            long[] histogram = new long[nbBins];
+            for (int y = 0; y < in.getHeight(); y++) {
+                in.getRow(y, z, row);
+                for (float v: row)
+                    histogram[(int) ((v - min) * scale)]++;
+            }
+            histograms[z] = histogram;
+        });
+        long[] histogram = new long[nbBins];
+        for (long[] h: histograms)
+            for (int i = 0; i < nbBins; i++)
+                histogram[i] += h[i];
+        return(histogram);
+    }
+
+
+    /**
+     * Get automatic threshold of stack, computed on a 256-bin histogram between min and max
+     */
+    public double getThreshold(MappedStack in, String method) {
+        double[] minMax = minMax(in);
+        long[] histogram = histogram(in, minMax[0], minMax[1], 256);
+        return(getThreshold(histogram, minMax[0], minMax[1], method));
+    }
+
+
+    /**
+     * Convert a histogram between min and max into a threshold value
+     * Voxels in bins above the automatic threshold bin are foreground
+     */
+    public static double getThreshold(long[] histogram, double min, double max, String method) {
+        // AutoThresholder needs int counts, rescale them if stack has more than 2^31 voxels in one bin
+        long maxCount = Arrays.stream(histogram).max().getAsLong();
+        double factor = (maxCount > Integer.MAX_VALUE) ? (double) maxCount / Integer.MAX_VALUE : 1;
+        int[] counts = new int[histogram.length];
+        for (int i = 0; i < histogram.length; i++)
+            counts[i] = (int) (histogram[i] / factor);
+
+        int bin = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(method), counts);
+        return(min + (bin + 1) * (max - min) / (histogram.length - 1));
+    }
+
+
+    /**
+     * Binarize stack with automatic threshold computed on the whole stack histogram
+     */
+    public MappedStack threshold(MappedStack in, String method) throws IOException {
+        return(threshold(in, getThreshold(in, method)));
+    }
+
+
+    /**
+     * Binarize stack with given threshold (voxels >= threshold are set to 1)
+     */
+    public MappedStack threshold(MappedStack in, double threshold) throws IOException {
+        MappedStack out = MappedStack.createSameDimensions(dir, "threshold", in, 8);
+        int width = in.getWidth();
+        int height = in.getHeight();
+        IntStream.range(0, in.getSize()).parallel().forEach(z -> {
+            float[] row = new float[width];
+            byte[] bin = new byte[width*height];
+            for (int y = 0; y < height; y++) {
+                in.getRow(y, z, row);
+                for (int x = 0; x < width; x++)
+                    if (row[x] >= threshold)
+                        bin[y*width + x] = 1;
+            }
+            out.setPixels(bin, z + 1);
+        });
+        return(out);
+    }
+
+
+    /**
+     * Label 26-connected components of binary stack and keep components with volume >= minVol
+     * Two passes: provisional labels with union-find going down the stack, then resolution and size filtering
+     */
+    public MappedStack labelAndFilterSize(MappedStack bin, double minVol, Calibration cal) throws IOException {
+        int width = bin.getWidth();
+        int height = bin.getHeight();
+        int depth = bin.getSize();
+        MappedStack labels = MappedStack.createSameDimensions(dir, "labels", bin, 32);
+        UnionFind uf = new UnionFind();
+
+        int[] prev = new int[width*height];
+        int[] cur = new int[width*height];
+        float[] row = new float[width];
+        for (int z = 0; z < depth; z++) {
+            for (int y = 0; y < height; y++) {
+                bin.getRow(y, z, row);
+                for (int x = 0; x < width; x++) {
+                    int i = y*width + x;
+                    if (row[x] == 0) {
+                        cur[i] = 0;
+                        continue;
+                    }
+                    int label = 0;
+                    // Already visited neighbours in current plane
+                    if (x > 0) label = merge(uf, label, cur[i-1]);
+                    if (y > 0) {
+                        for (int dx = -1; dx <= 1; dx++)
+                            if (x+dx >= 0 && x+dx < width)
+                                label = merge(uf, label, cur[i-width+dx]);
+                    }
+                    // Neighbours in previous plane
+                    if (z > 0) {
+                        for (int dy = -1; dy <= 1; dy++)
+                            for (int dx = -1; dx <= 1; dx++)
+                                if (x+dx >= 0 && x+dx < width && y+dy >= 0 && y+dy < height)
+                                    label = merge(uf, label, prev[i+dy*width+dx]);
+                    }
+                    if (label == 0)
+                        label = uf.add();
+                    uf.count(label);
+                    cur[i] = label;
+                }
+            }
+            labels.setInts(z, cur);
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+
+        long[] volumes = uf.rootCounts();
+        double voxelVol = cal.pixelWidth * cal.pixelHeight * cal.pixelDepth;
+        MappedStack out = MappedStack.createSameDimensions(dir, "mask", bin, 8);
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            int[] planeLabels = new int[width*height];
+            byte[] mask = new byte[width*height];
+            labels.getInts(z, planeLabels);
+            for (int i = 0; i < planeLabels.length; i++)
+                if (planeLabels[i] != 0 && volumes[uf.find(planeLabels[i])] * voxelVol >= minVol)
+                    mask[i] = (byte) 255;
+            out.setPixels(mask, z + 1);
+        });
+        labels.close();
+        return(out);
+    }
+
+
+    private int merge(UnionFind uf, int label, int neighbour) {
+        if (neighbour == 0)
+            return(label);
+        return((label == 0) ? neighbour : uf.union(label, neighbour));
+    }
+
+
+    /**
+     * Compute (inverse) euclidean distance map of binary stack in calibrated units
+     * Distance of each object voxel to the nearest background voxel (or the reverse if inverse)
+     * Separable exact transform (Felzenszwalb & Huttenlocher): X and Y lines plane by plane, then Z lines row by row
+     */
+    public MappedStack distanceMap(MappedStack bin, boolean inverse, Calibration cal) throws IOException {
+        int width = bin.getWidth();
+        int height = bin.getHeight();
+        int depth = bin.getSize();
+        MappedStack out = MappedStack.createSameDimensions(dir, "edt", bin, 32);
+        double sx = cal.pixelWidth * cal.pixelWidth;
+        double sy = cal.pixelHeight * cal.pixelHeight;
+        double sz = cal.pixelDepth * cal.pixelDepth;
+
+        // Squared distances in XY planes
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            float[] f = new float[width*height];
+            float[] row = new float[width];
+            for (int y = 0; y < height; y++) {
+                bin.getRow(y, z, row);
+                for (int x = 0; x < width; x++)
+                    f[y*width + x] = ((row[x] != 0) == inverse) ? 0 : FAR;
+            }
+            Line line = new Line(Math.max(width, height));
+            for (int y = 0; y < height; y++)
+                line.transform(f, y*width, 1, width, sx);
+            for (int x = 0; x < width; x++)
+                line.transform(f, x, width, height, sy);
+            out.setPixels(f, z + 1);
+        });
+
+        // Squared distances along Z, then square root
+        IntStream.range(0, height).parallel().forEach(y -> {
+            float[] rows = new float[depth*width];
+            float[] row = new float[width];
+            for (int z = 0; z < depth; z++) {
+                out.getRow(y, z, row);
+                System.arraycopy(row, 0, rows, z*width, width);
+            }
+            Line line = new Line(depth);
+            for (int x = 0; x < width; x++)
+                line.transform(rows, x, width, depth, sz);
+            for (int z = 0; z < depth; z++) {
+                for (int x = 0; x < width; x++)
+                    row[x] = (float) Math.sqrt(rows[z*width + x]);
+                out.setRow(y, z, row);
+            }
+        });
+        return(out);
+    }
+
+
+    /**
+     * 1D squared distance transform of sampled function (lower envelope of parabolas)
+     */
+    private static class Line {
+
+        private final float[] d;
+        private final int[] v;
+        private final double[] zz;
+
+        Line(int size) {
+            d = new float[size];
+            v = new int[size];
+            zz = new double[size + 1];
+        }
+
+        void transform(float[] f, int offset, int stride, int n, double s) {
+            int k = 0;
+            v[0] = 0;
+            zz[0] = -Double.MAX_VALUE;
+            zz[1] = Double.MAX_VALUE;
+            for (int q = 1; q < n; q++) {
+                double fq = f[offset + q*stride] + s*q*q;
+                int p = v[k];
+                double inter = (fq - (f[offset + p*stride] + s*p*p)) / (2*s*(q - p));
+                while (inter <= zz[k]) {
+                    k--;
+                    p = v[k];
+                    inter = (fq - (f[offset + p*stride] + s*p*p)) / (2*s*(q - p));
+                }
+                k++;
+                v[k] = q;
+                zz[k] = inter;
+                zz[k+1] = Double.MAX_VALUE;
+            }
+            k = 0;
+            for (int q = 0; q < n; q++) {
+                while (zz[k+1] < q)
+                    k++;
+                int p = v[k];
+                d[q] = (float) Math.min(FAR, s*(q - p)*(q - p) + f[offset + p*stride]);
+            }
+            for (int q = 0; q < n; q++)
+                f[offset + q*stride] = d[q];
+        }
+    }
+
+}
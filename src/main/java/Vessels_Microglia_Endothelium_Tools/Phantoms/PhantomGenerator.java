@@ -0,0 +1,370 @@
+package Vessels_Microglia_Endothelium_Tools.Phantoms;
+
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.FileSaver;
+import ij.io.RoiEncoder;
+import ij.measure.Calibration;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+
+/**
+ * Generate synthetic images for scale and accuracy testing, with their ground truth
+ * Each phantom is a 3-channel 16-bit stack (vessels, microglia, endothelial nuclei):
+ * - vessels: branching trees of tubes, radius and length decreasing at each branching
+ * - microglia: blobs placed at a controlled distance from the surface of a vessel (negative if overlapping it)
+ * - endothelial nuclei: ellipsoids elongated along vessels, lying on vessels walls
+ * Channels are built in a memory-mapped stack, so that phantoms can be larger than memory
+ * Writes for each phantom <name>.tif, <name>.zip (ROI translated across stack, as expected by the plugin)
+ * and <name>_vessels.csv, <name>_microglia.csv, <name>_nuclei.csv ground truth files (µm)
+ * Usage: PhantomGenerator outDir [key=value...], see fields for keys
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class PhantomGenerator {
+
+    // Stack size (voxels) and calibration (µm)
+    public int width = 256;
+    public int height = 256;
+    public int depth = 256;
+    public double pixelWidth = 0.5;
+    public double pixelDepth = 1;
+    // Number of phantoms and seed of the first one
+    public int count = 1;
+    public long seed = 1;
+    // Vessels: trees per 256^3 voxels, branching levels, radius and length of trunks (µm)
+    public double treeDensity = 4;
+    public int levels = 4;
+    public double trunkRadius = 4;
+    public double trunkLength = 60;
+    // Microglia per 256^3 voxels, radius and distance range to nearest vessel surface (µm)
+    public double microDensity = 30;
+    public double microRadius = 4;
+    public double microMinDist = -3;
+    public double microMaxDist = 20;
+    // Endothelial nuclei per 256^3 voxels, half-axes along and across vessel (µm)
+    public double nucleiDensity = 60;
+    public double nucleusLength = 5;
+    public double nucleusWidth = 2;
+    // Intensities
+    public int background = 300;
+    public double noise = 100;
+    public int vesselIntensity = 3000;
+    public int microIntensity = 2500;
+    public int nucleusIntensity = 2000;
+
+    private static final int CHANNELS = 3;
+
+
+    /**
+     * Vessel segment, coordinates in µm
+     */
+    private static class Segment {
+        final int id, parent;
+        final double[] start, end;
+        final double radius;
+
+        Segment(int id, int parent, double[] start, double[] end, double radius) {
+            this.id = id;
+            this.parent = parent;
+            this.start = start;
+            this.end = end;
+            this.radius = radius;
+        }
+
+        double length() {
+            return(norm(sub(end, start)));
+        }
+
+        /**
+         * Distance from p to segment axis
+         */
+        double distance(double[] p) {
+            double[] axis = sub(end, start);
+            double t = Math.max(0, Math.min(1, dot(sub(p, start), axis) / dot(axis, axis)));
+            return(norm(sub(p, add(start, scale(axis, t)))));
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: PhantomGenerator outDir [key=value...]");
+            return;
+        }
+        PhantomGenerator generator = new PhantomGenerator();
+        for (int i = 1; i < args.length; i++) {
+            String[] keyValue = args[i].split("=", 2);
+            java.lang.reflect.Field field = PhantomGenerator.class.getField(keyValue[0]);
+            if (field.getType() == int.class)
+                field.setInt(generator, Integer.parseInt(keyValue[1]));
+            else if (field.getType() == long.class)
+                field.setLong(generator, Long.parseLong(keyValue[1]));
+            else
+                field.setDouble(generator, Double.parseDouble(keyValue[1]));
+        }
+        File outDir = new File(args[0]);
+        outDir.mkdirs();
+        for (int i = 0; i < generator.count; i++) {
+            long start = System.currentTimeMillis();
+            String name = String.format("phantom_%dx%dx%d_%03d", generator.width, generator.height, generator.depth, i);
+            generator.generate(outDir, name, generator.seed + i);
+            System.out.println(name + " generated in " + (System.currentTimeMillis() - start) / 1000.0 + " s");
+        }
+    }
+
+
+    /**
+     * Generate phantom name in outDir
+     */
+    public void generate(File outDir, String name, long seed) throws IOException {
+        Random rng = new Random(seed);
+        double volumeRatio = (double) width * height * depth / (256.0 * 256 * 256);
+        double[] size = {width*pixelWidth, height*pixelWidth, depth*pixelDepth};
+
+        MappedStack stack = MappedStack.create(outDir, name, width, height, depth*CHANNELS, 16);
+        try {
+            // Vessels
+            List<Segment> segments = new ArrayList<>();
+            int nbTrees = Math.max(1, (int) Math.round(treeDensity * volumeRatio));
+            for (int t = 0; t < nbTrees; t++) {
+                double[] root = {rng.nextDouble()*size[0], rng.nextDouble()*size[1], rng.nextDouble()*size[2]};
+                grow(segments, -1, root, randomDirection(rng), trunkRadius, trunkLength, levels, rng);
+            }
+            for (Segment s: segments)
+                drawTube(stack, 0, s, vesselIntensity);
+            writeSegments(new File(outDir, name + "_vessels.csv"), segments);
+
+            // Microglia
+            int nbMicro = (int) Math.round(microDensity * volumeRatio);
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(new File(outDir, name + "_microglia.csv")))) {
+                out.write("Cell ID\tX (µm)\tY (µm)\tZ (µm)\tRadius (µm)\tCentroid distance to vessel surface (µm)\tBorder distance to vessel surface (µm)\n");
+                for (int m = 1; m <= nbMicro; m++) {
+                    Segment s = segments.get(rng.nextInt(segments.size()));
+                    double dist = microMinDist + rng.nextDouble()*(microMaxDist - microMinDist);
+                    double[] center = besideSegment(s, s.radius + microRadius + dist, rng);
+                    drawEllipsoid(stack, 1, center, null, microRadius, microRadius, microIntensity);
+                    // Nearest vessel may be another one than s
+                    double surfaceDist = Double.MAX_VALUE;
+                    for (Segment other: segments)
+                        surfaceDist = Math.min(surfaceDist, other.distance(center) - other.radius);
+                    out.write(m+"\t"+center[0]+"\t"+center[1]+"\t"+center[2]+"\t"+microRadius+"\t"+surfaceDist+"\t"+(surfaceDist - microRadius)+"\n");
+                }
+            }
+
+            // Endothelial nuclei
+            int nbNuclei = (int) Math.round(nucleiDensity * volumeRatio);
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(new File(outDir, name + "_nuclei.csv")))) {
+                out.write("Nucleus ID\tX (µm)\tY (µm)\tZ (µm)\tVessel segment ID\n");
+                for (int n = 1; n <= nbNuclei; n++) {
+                    Segment s = segments.get(rng.nextInt(segments.size()));
+                    double[] center = besideSegment(s, s.radius, rng);
+                    drawEllipsoid(stack, 2, center, unit(sub(s.end, s.start)), nucleusLength, nucleusWidth, nucleusIntensity);
+                    out.write(n+"\t"+center[0]+"\t"+center[1]+"\t"+center[2]+"\t"+s.id+"\n");
+                }
+            }
+
+            addBackground(stack, seed);
+
+            ImagePlus img = new ImagePlus(name, stack);
+            img.setDimensions(CHANNELS, depth, 1);
+            img.setOpenAsHyperStack(true);
+            Calibration cal = new Calibration();
+            cal.pixelWidth = pixelWidth;
+            cal.pixelHeight = pixelWidth;
+            cal.pixelDepth = pixelDepth;
+            cal.setUnit("microns");
+            img.setCalibration(cal);
+            if (!new FileSaver(img).saveAsTiffStack(new File(outDir, name + ".tif").getPath()))
+                throw new IOException("Could not save " + name + ".tif");
+            writeRois(new File(outDir, name + ".zip"), rng);
+        } finally {
+            stack.close();
+        }
+    }
+
+
+    /**
+     * Add segment then its two children, until no level is left or segment leaves the stack
+     */
+    private void grow(List<Segment> segments, int parent, double[] start, double[] dir, double radius, double length, int level, Random rng) {
+        double[] end = add(start, scale(dir, length));
+        Segment s = new Segment(segments.size() + 1, parent, start, end, radius);
+        segments.add(s);
+        if (level <= 1 || !inside(end))
+            return;
+        // Murray's law for two equal children
+        double childRadius = radius / Math.cbrt(2);
+        for (int c = 0; c < 2; c++) {
+            double[] childDir = unit(add(dir, scale(randomDirection(rng), 0.8)));
+            grow(segments, s.id, end, childDir, childRadius, length * (0.6 + 0.3*rng.nextDouble()), level - 1, rng);
+        }
+    }
+
+
+    private boolean inside(double[] p) {
+        return(p[0] >= 0 && p[0] < width*pixelWidth && p[1] >= 0 && p[1] < height*pixelWidth && p[2] >= 0 && p[2] < depth*pixelDepth);
+    }
+
+
+    /**
+     * Point at distance dist from axis of segment, at a random position along it and in a random direction around it
+     */
+    private static double[] besideSegment(Segment s, double dist, Random rng) {
+        double[] axis = unit(sub(s.end, s.start));
+        double[] along = add(s.start, scale(sub(s.end, s.start), rng.nextDouble()));
+        double[] r = randomDirection(rng);
+        double[] perp = sub(r, scale(axis, dot(r, axis)));
+        if (norm(perp) < 1e-6)
+            perp = Math.abs(axis[0]) < 0.9 ? new double[] {1, 0, 0} : new double[] {0, 1, 0};
+        perp = unit(sub(perp, scale(axis, dot(perp, axis))));
+        return(add(along, scale(perp, dist)));
+    }
+
+
+    /**
+     * Draw tube around segment in channel c, with a one voxel soft edge
+     */
+    private void drawTube(MappedStack stack, int c, Segment s, int intensity) {
+        double margin = s.radius + pixelWidth;
+        int[] min = voxel(new double[] {Math.min(s.start[0], s.end[0]) - margin, Math.min(s.start[1], s.end[1]) - margin, Math.min(s.start[2], s.end[2]) - margin});
+        int[] max = voxel(new double[] {Math.max(s.start[0], s.end[0]) + margin, Math.max(s.start[1], s.end[1]) + margin, Math.max(s.start[2], s.end[2]) + margin});
+        for (int z = min[2]; z <= max[2]; z++)
+            for (int y = min[1]; y <= max[1]; y++)
+                for (int x = min[0]; x <= max[0]; x++) {
+                    double d = s.distance(new double[] {x*pixelWidth, y*pixelWidth, z*pixelDepth});
+                    draw(stack, c, x, y, z, intensity * Math.max(0, Math.min(1, (s.radius + pixelWidth - d) / pixelWidth)));
+                }
+    }
+
+
+    /**
+     * Draw ellipsoid in channel c, with half-axis a along axis (any direction if null) and b across it
+     */
+    private void drawEllipsoid(MappedStack stack, int c, double[] center, double[] axis, double a, double b, int intensity) {
+        double margin = Math.max(a, b) + pixelWidth;
+        int[] min = voxel(sub(center, new double[] {margin, margin, margin}));
+        int[] max = voxel(add(center, new double[] {margin, margin, margin}));
+        for (int z = min[2]; z <= max[2]; z++)
+            for (int y = min[1]; y <= max[1]; y++)
+                for (int x = min[0]; x <= max[0]; x++) {
+                    double[] d = sub(new double[] {x*pixelWidth, y*pixelWidth, z*pixelDepth}, center);
+                    double r;
+                    if (axis == null) {
+                        r = norm(d) / a;
+                    } else {
+                        double par = dot(d, axis);
+                        double perp = norm(sub(d, scale(axis, par)));
+                        r = Math.sqrt(par*par/(a*a) + perp*perp/(b*b));
+                    }
+                    draw(stack, c, x, y, z, intensity * Math.max(0, Math.min(1, (1 - r) * b / pixelWidth + 1)));
+                }
+    }
+
+
+    private void draw(MappedStack stack, int c, int x, int y, int z, double value) {
+        if (value <= 0 || x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= depth)
+            return;
+        int plane = z*CHANNELS + c;
+        if (stack.getValue(x, y, plane) < value)
+            stack.setValue(x, y, plane, value);
+    }
+
+
+    /**
+     * Add background and gaussian noise, planes in parallel, each plane with its own seeded generator
+     */
+    private void addBackground(MappedStack stack, long seed) {
+        IntStream.range(0, depth*CHANNELS).parallel().forEach(p -> {
+            Random rng = new Random(seed * 31 + p);
+            short[] pixels = (short[]) stack.getPixels(p + 1);
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (short) Math.max(0, Math.min(65535, (pixels[i] & 0xffff) + background + noise*rng.nextGaussian()));
+            stack.setPixels(pixels, p + 1);
+        });
+    }
+
+
+    /**
+     * ROI of the central part of the stack, with its translated copy (suffix _2) at the last slice
+     */
+    private void writeRois(File zip, Random rng) throws IOException {
+        Roi roi = new Roi(width/8, height/8, width*3/4 - width/16, height*3/4 - height/16);
+        roi.setName("phantom");
+        Roi roi2 = (Roi) roi.clone();
+        roi2.setLocation(roi.getBounds().x + width/16 * rng.nextDouble(), roi.getBounds().y + height/16 * rng.nextDouble());
+        roi2.setName("phantom_2");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            for (Roi r: new Roi[] {roi, roi2}) {
+                out.putNextEntry(new ZipEntry(r.getName() + ".roi"));
+                out.write(RoiEncoder.saveAsByteArray(r));
+                out.closeEntry();
+            }
+        }
+    }
+
+
+    private void writeSegments(File csv, List<Segment> segments) throws IOException {
+        double totalLength = 0;
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(csv))) {
+            out.write("Segment ID\tParent ID\tX start (µm)\tY start (µm)\tZ start (µm)\tX end (µm)\tY end (µm)\tZ end (µm)\tLength (µm)\tRadius (µm)\n");
+            for (Segment s: segments) {
+                out.write(s.id+"\t"+s.parent+"\t"+s.start[0]+"\t"+s.start[1]+"\t"+s.start[2]+"\t"+s.end[0]+"\t"+s.end[1]+"\t"+s.end[2]+
+                          "\t"+s.length()+"\t"+s.radius+"\n");
+                totalLength += s.length();
+            }
+            out.write("Total\t\t\t\t\t\t\t\t"+totalLength+"\t\n");
+        }
+    }
+
+
+    private int[] voxel(double[] p) {
+        return(new int[] {(int) Math.round(p[0]/pixelWidth), (int) Math.round(p[1]/pixelWidth), (int) Math.round(p[2]/pixelDepth)});
+    }
+
+
+    private static double[] randomDirection(Random rng) {
+        return(unit(new double[] {rng.nextGaussian(), rng.nextGaussian(), rng.nextGaussian()}));
+    }
+
+
+    private static double[] add(double[] a, double[] b) {
+        return(new double[] {a[0] + b[0], a[1] + b[1], a[2] + b[2]});
+    }
+
+
+    private static double[] sub(double[] a, double[] b) {
+        return(new double[] {a[0] - b[0], a[1] - b[1], a[2] - b[2]});
+    }
+
+
+    private static double[] scale(double[] a, double s) {
+        return(new double[] {a[0]*s, a[1]*s, a[2]*s});
+    }
+
+
+    private static double dot(double[] a, double[] b) {
+        return(a[0]*b[0] + a[1]*b[1] + a[2]*b[2]);
+    }
+
+
+    private static double norm(double[] a) {
+        return(Math.sqrt(dot(a, a)));
+    }
+
+
+    private static double[] unit(double[] a) {
+        return(scale(a, 1 / norm(a)));
+    }
+
+}
@@ -32,9 +32,20 @@ import ij.io.FileSaver;
 import ij.process.ByteProcessor;
 import ij.process.ShortProcessor;
 import java.awt.image.ColorModel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 import org.apache.commons.io.FilenameUtils;
 import util.BatchOpener;
@@ -620,5 +631,171 @@ public class QuantileBasedNormalization {
 
 
     }
-	
+
+
+    /* Sharded normalization over several nodes: frequencies and
+       quantiles of each image are saved to a small statistics file
+       (phase 1, each node on its own images), quantile means of the
+       whole cohort are computed from all statistics files (reduce,
+       same result on every node) and each node then remaps its own
+       images (phase 2).  Normalized images are the same as with
+       run(), up to the random choice between the two values around
+       each mean. */
+
+    static final String STATISTICS_EXTENSION = ".qbn";
+    static final int NUMBER_OF_QUANTILES = 256;
+
+
+    /**
+     * Phase 1: save frequencies and quantiles of each image of listFiles
+     */
+    public void computeStatistics(String dir, List<String> listFiles, String channel) throws IOException {
+            for (String f : listFiles) {
+                    String fileName = dir + FilenameUtils.getBaseName(f)+channel;
+                    System.out.println("Calculating statistics of "+fileName+".tif");
+                    ImagePlus imagePlus = BatchOpener.open(fileName+".tif")[0];
+                    int possibleImageValues = possibleValues(imagePlus);
+                    long [] frequencies = new long[possibleImageValues];
+                    ImageStack stack = imagePlus.getStack();
+                    for( int z=0; z<imagePlus.getStackSize(); ++z ) {
+                            Object pixels = stack.getPixels(z+1);
+                            if (possibleImageValues == POSSIBLE_8_BIT_VALUES) {
+                                    for( byte value : (byte[])pixels )
+                                            ++frequencies[value&0xFF];
+                            } else {
+                                    for( short value : (short[])pixels )
+                                            ++frequencies[value&0xFFFF];
+                            }
+                    }
+                    long pointsInImage = (long)imagePlus.getWidth()*imagePlus.getHeight()*imagePlus.getStackSize();
+                    long [] sumValuesInQuantile = new long[NUMBER_OF_QUANTILES];
+                    long [] numberOfValuesInQuantile = new long[NUMBER_OF_QUANTILES];
+                    divideIntoQuantiles(NUMBER_OF_QUANTILES, frequencies, pointsInImage, sumValuesInQuantile, numberOfValuesInQuantile);
+                    imagePlus.close();
+
+                    // Written to a temporary file first, so that other nodes never read a partial file
+                    File statistics = new File(fileName+STATISTICS_EXTENSION);
+                    File tmp = new File(fileName+STATISTICS_EXTENSION+".tmp");
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                            out.writeInt(possibleImageValues);
+                            out.writeLong(pointsInImage);
+                            for( long v : frequencies ) out.writeLong(v);
+                            for( long v : sumValuesInQuantile ) out.writeLong(v);
+                            for( long v : numberOfValuesInQuantile ) out.writeLong(v);
+                    }
+                    Files.move(tmp.toPath(), statistics.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+    }
+
+
+    /**
+     * Reduce: mean of each quantile over all images of the cohort, from their statistics files
+     * Means are also written to quantileMeans.txt, for reference
+     */
+    public double[] reduceStatistics(String dir, List<String> listFiles, String channel) throws IOException {
+            long [] sum = new long[NUMBER_OF_QUANTILES];
+            long [] values = new long[NUMBER_OF_QUANTILES];
+            int possibleImageValues = -1;
+            for (String f : listFiles) {
+                    ImageStatistics statistics = readStatistics(dir + FilenameUtils.getBaseName(f)+channel);
+                    if (possibleImageValues > 0 && possibleImageValues != statistics.possibleValues)
+                            throw new IllegalStateException("Images of "+dir+" don't all have the same bit depth");
+                    possibleImageValues = statistics.possibleValues;
+                    for( int q = 0; q < NUMBER_OF_QUANTILES; ++q ) {
+                            sum[q] += statistics.sumValuesInQuantile[q];
+                            values[q] += statistics.numberOfValuesInQuantile[q];
+                    }
+            }
+            double [] quantileMeans = new double[NUMBER_OF_QUANTILES];
+            StringBuilder means = new StringBuilder();
+            for( int q = 0; q < NUMBER_OF_QUANTILES; ++q ) {
+                    quantileMeans[q] = sum[q] / (double)values[q];
+                    means.append(quantileMeans[q]).append('\n');
+            }
+            // Every node writes the same means: each one writes its own temporary file, renamed atomically
+            File tmp = File.createTempFile("quantileMeans-", ".tmp", new File(dir));
+            Files.write(tmp.toPath(), means.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), new File(dir, "quantileMeans.txt").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return quantileMeans;
+    }
+
+
+    /**
+     * Phase 2: remap each image of listFiles with cohort quantile means
+     */
+    public void remap(String dir, List<String> listFiles, String channel, double[] quantileMeans) throws IOException {
+            for (String f : listFiles) {
+                    String fileName = dir + FilenameUtils.getBaseName(f)+channel;
+                    System.out.println("Remapping "+fileName+".tif");
+                    ImageStatistics statistics = readStatistics(fileName);
+                    ImagePlus imagePlus = BatchOpener.open(fileName+".tif")[0];
+
+                    Replacements [] meanReplacements = new Replacements[statistics.possibleValues];
+                    for( int value = 0; value < statistics.possibleValues; ++value )
+                            meanReplacements[value] = new Replacements(statistics.possibleValues);
+                    Replacements [] rankReplacements = new Replacements[statistics.possibleValues];
+                    for( int value = 0; value < statistics.possibleValues; ++value )
+                            rankReplacements[value] = new Replacements(NUMBER_OF_QUANTILES);
+
+                    generateReplacements(imagePlus,
+                                         NUMBER_OF_QUANTILES,
+                                         statistics.pointsInImage,
+                                         statistics.frequencies,
+                                         statistics.sumValuesInQuantile,
+                                         statistics.numberOfValuesInQuantile,
+                                         quantileMeans,
+                                         rankReplacements,
+                                         meanReplacements);
+                    ImagePlus newImage = remapImage(imagePlus, NUMBER_OF_QUANTILES, false, true, rankReplacements, meanReplacements);
+
+                    boolean saved;
+                    if (newImage.getStackSize() == 1)
+                            saved = new FileSaver(newImage).saveAsTiff(fileName+"-normalized.tif");
+                    else
+                            saved = new FileSaver(newImage).saveAsTiffStack(fileName+"-normalized.tif");
+                    newImage.close();
+                    imagePlus.close();
+                    if( ! saved )
+                            throw new IOException("Could not save "+fileName+"-normalized.tif");
+            }
+    }
+
+
+    private int possibleValues(ImagePlus imagePlus) {
+            int type = imagePlus.getType();
+            if( (type == ImagePlus.GRAY8) || (type == ImagePlus.COLOR_256) )
+                    return POSSIBLE_8_BIT_VALUES;
+            if( type == ImagePlus.GRAY16 )
+                    return POSSIBLE_16_BIT_VALUES;
+            throw new IllegalArgumentException("Error processing '"+imagePlus.getTitle()+"': only 8-bit and 16-bit images can be normalized");
+    }
+
+
+    private ImageStatistics readStatistics(String fileName) throws IOException {
+            File file = new File(fileName+STATISTICS_EXTENSION);
+            if( ! file.exists() )
+                    throw new IllegalStateException("No normalization statistics for "+fileName+".tif, statistics phase must be run on all shards first");
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    ImageStatistics statistics = new ImageStatistics();
+                    statistics.possibleValues = in.readInt();
+                    statistics.pointsInImage = in.readLong();
+                    statistics.frequencies = new long[statistics.possibleValues];
+                    for( int i = 0; i < statistics.possibleValues; ++i ) statistics.frequencies[i] = in.readLong();
+                    statistics.sumValuesInQuantile = new long[NUMBER_OF_QUANTILES];
+                    for( int q = 0; q < NUMBER_OF_QUANTILES; ++q ) statistics.sumValuesInQuantile[q] = in.readLong();
+                    statistics.numberOfValuesInQuantile = new long[NUMBER_OF_QUANTILES];
+                    for( int q = 0; q < NUMBER_OF_QUANTILES; ++q ) statistics.numberOfValuesInQuantile[q] = in.readLong();
+                    return statistics;
+            }
+    }
+
+
+    static class ImageStatistics {
+            int possibleValues;
+            long pointsInImage;
+            long [] frequencies;
+            long [] sumValuesInQuantile;
+            long [] numberOfValuesInQuantile;
+    }
+
 }
@@ -0,0 +1,129 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import java.util.Arrays;
+
+
+/**
+ * Mergeable quantile sketch of non-negative values, with relative accuracy
+ * Values are counted in logarithmic buckets [gamma^(i-1), gamma^i], with gamma = (1+accuracy)/(1-accuracy),
+ * so that any quantile is returned within accuracy of its true value (DDSketch). Memory only depends on
+ * the range of values (about 460 buckets from 0.1 to 1000 µm at 1%), not on their number, and sketches
+ * with same accuracy are merged by adding their counts, e.g. to get quantiles of several ROIs or images
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class QuantileSketch {
+
+    // Values below are counted as 0
+    private static final double MIN_VALUE = 1e-9;
+
+    private final double accuracy, gamma, logGamma;
+    private long[] counts = new long[0];
+    private int offset;
+    private long zeroCount, count;
+
+
+    /**
+     * Sketch with given relative accuracy (e.g. 0.01 for 1%)
+     */
+    public QuantileSketch(double accuracy) {
+        if (accuracy <= 0 || accuracy >= 1)
+            throw new IllegalArgumentException("Sketch accuracy must be between 0 and 1");
+        this.accuracy = accuracy;
+        gamma = (1 + accuracy) / (1 - accuracy);
+        logGamma = Math.log(gamma);
+    }
+
+
+    public void add(double value) {
+        if (value < 0 || Double.isNaN(value))
+            throw new IllegalArgumentException("Sketch only counts non-negative values, not " + value);
+        count++;
+        if (value < MIN_VALUE) {
+            zeroCount++;
+            return;
+        }
+        int index = (int) Math.ceil(Math.log(value) / logGamma);
+        grow(index, index);
+        counts[index - offset]++;
+    }
+
+
+    /**
+     * Add counts of other sketch, which must have the same accuracy
+     */
+    public void merge(QuantileSketch other) {
+        if (other.accuracy != accuracy)
+            throw new IllegalArgumentException("Sketches with different accuracies cannot be merged");
+        if (other.count == 0)
+            return;
+        count += other.count;
+        zeroCount += other.zeroCount;
+        int first = -1, last = -1;
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] != 0) {
+                if (first < 0) first = i;
+                last = i;
+            }
+        }
+        if (first < 0)
+            return;
+        grow(first + other.offset, last + other.offset);
+        for (int i = first; i <= last; i++)
+            counts[i + other.offset - offset] += other.counts[i];
+    }
+
+
+    /**
+     * Forget all values, keeping buckets already allocated
+     */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        zeroCount = 0;
+        count = 0;
+    }
+
+
+    public long getCount() {
+        return(count);
+    }
+
+
+    /**
+     * Quantile q (0 to 1), NaN if sketch is empty
+     */
+    public double quantile(double q) {
+        if (count == 0)
+            return(Double.NaN);
+        double rank = Math.max(0, Math.min(1, q)) * (count - 1);
+        long cumulated = zeroCount;
+        if (cumulated > rank)
+            return(0);
+        for (int i = 0; i < counts.length; i++) {
+            cumulated += counts[i];
+            if (cumulated > rank)
+                return(2 * Math.pow(gamma, i + offset) / (gamma + 1));
+        }
+        return(2 * Math.pow(gamma, counts.length - 1 + offset) / (gamma + 1));
+    }
+
+
+    /**
+     * Make sure buckets from index first to last exist
+     */
+    private void grow(int first, int last) {
+        if (counts.length == 0) {
+            counts = new long[last - first + 1];
+            offset = first;
+            return;
+        }
+        int newFirst = Math.min(first, offset);
+        int newLast = Math.max(last, offset + counts.length - 1);
+        if (newFirst == offset && newLast == offset + counts.length - 1)
+            return;
+        long[] newCounts = new long[newLast - newFirst + 1];
+        System.arraycopy(counts, 0, newCounts, offset - newFirst, counts.length);
+        counts = newCounts;
+        offset = newFirst;
+    }
+
+}
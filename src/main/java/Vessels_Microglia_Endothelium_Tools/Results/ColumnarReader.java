@@ -0,0 +1,182 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Reader of columnar results files written by ColumnarWriter
+ * Only the header and the index of row groups are read when opening a file, an image or a ROI
+ * being then loaded from its own row group without reading the rest of the file:
+ *   try (ColumnarReader reader = new ColumnarReader(new File("vesselsResults.vmc"))) {
+ *       double[] lengths = reader.readRoi("image1", "roi").getDoubles("Branch length (µm)");
+ *   }
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ColumnarReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final String[] columns;
+    private final Map<String, RowGroup> groups = new LinkedHashMap<>();
+
+
+    public ColumnarReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        if (file.readInt() != ColumnarWriter.MAGIC)
+            throw new IOException(path + " is not a columnar results file");
+        if (file.readInt() != ColumnarWriter.VERSION)
+            throw new IOException("Unsupported version of columnar results file " + path);
+        columns = new String[file.readInt()];
+        for (int c = 0; c < columns.length; c++)
+            columns[c] = file.readUTF();
+
+        // Index of row groups, at the position written in the last 8 bytes
+        if (file.length() < 8)
+            throw new IOException(path + " is incomplete");
+        file.seek(file.length() - 8);
+        file.seek(file.readLong());
+        int nGroups = file.readInt();
+        for (int g = 0; g < nGroups; g++) {
+            RowGroup group = new RowGroup();
+            String image = file.readUTF();
+            group.position = file.readLong();
+            group.length = file.readInt();
+            group.rows = file.readInt();
+            int nRois = file.readInt();
+            for (int r = 0; r < nRois; r++)
+                group.rois.put(file.readUTF(), new int[] {file.readInt(), file.readInt()});
+            groups.put(image, group);
+        }
+    }
+
+
+    public String[] columns() {
+        return(columns.clone());
+    }
+
+
+    public List<String> images() {
+        return(new ArrayList<>(groups.keySet()));
+    }
+
+
+    public List<String> rois(String image) {
+        return(new ArrayList<>(group(image).rois.keySet()));
+    }
+
+
+    /**
+     * Number of rows of image, without reading them
+     */
+    public int rows(String image) {
+        return(group(image).rows);
+    }
+
+
+    public ColumnarTable readAll() throws IOException {
+        List<ColumnarTable> tables = new ArrayList<>();
+        for (String image: groups.keySet())
+            tables.add(readImage(image));
+        return(ColumnarTable.concat(columns, tables));
+    }
+
+
+    public ColumnarTable readImage(String image) throws IOException {
+        RowGroup group = group(image);
+        byte[] bytes = new byte[group.length];
+        synchronized (file) {
+            file.seek(group.position);
+            file.readFully(bytes);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        // Rows and ROIs ranges, already known from index
+        in.readInt();
+        int nRois = in.readInt();
+        for (int r = 0; r < nRois; r++) {
+            in.readUTF();
+            in.readInt();
+            in.readInt();
+        }
+        boolean compressed = in.readBoolean();
+        int length = in.readInt();
+        InputStream columnBytes = new ByteArrayInputStream(bytes, bytes.length - length, length);
+        DataInputStream columnsIn = new DataInputStream(compressed ? new InflaterInputStream(columnBytes) : columnBytes);
+
+        byte[] types = new byte[columns.length];
+        Object[] data = new Object[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            types[c] = columnsIn.readByte();
+            data[c] = readColumn(columnsIn, types[c], group.rows);
+        }
+        return(new ColumnarTable(columns, types, data, group.rows));
+    }
+
+
+    public ColumnarTable readRoi(String image, String roi) throws IOException {
+        int[] range = group(image).rois.get(roi);
+        if (range == null)
+            throw new IllegalArgumentException("No ROI " + roi + " in image " + image);
+        return(readImage(image).slice(range[0], range[1]));
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+
+    private RowGroup group(String image) {
+        RowGroup group = groups.get(image);
+        if (group == null)
+            throw new IllegalArgumentException("No image " + image + " in results file");
+        return(group);
+    }
+
+
+    private static Object readColumn(DataInputStream in, byte type, int rows) throws IOException {
+        switch (type) {
+            case ColumnarWriter.INT:
+                int[] ints = new int[rows];
+                for (int r = 0; r < rows; r++)
+                    ints[r] = in.readInt();
+                return(ints);
+            case ColumnarWriter.DOUBLE:
+                double[] doubles = new double[rows];
+                for (int r = 0; r < rows; r++)
+                    doubles[r] = in.readDouble();
+                return(doubles);
+            case ColumnarWriter.BOOLEAN:
+                boolean[] booleans = new boolean[rows];
+                for (int r = 0; r < rows; r++)
+                    booleans[r] = in.readBoolean();
+                return(booleans);
+            default:
+                String[] dictionary = new String[in.readInt()];
+                for (int i = 0; i < dictionary.length; i++)
+                    dictionary[i] = in.readUTF();
+                String[] strings = new String[rows];
+                for (int r = 0; r < rows; r++)
+                    strings[r] = dictionary[in.readInt()];
+                return(strings);
+        }
+    }
+
+
+    private static class RowGroup {
+        long position;
+        int length, rows;
+        final Map<String, int[]> rois = new LinkedHashMap<>();
+    }
+
+}
@@ -0,0 +1,170 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Rows read from a columnar results file, one primitive array per column
+ * Columns typed differently in several row groups are widened (int to double, anything else to string)
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ColumnarTable {
+
+    private final String[] columns;
+    private final byte[] types;
+    private final Object[] data;
+    private final int rows;
+
+
+    ColumnarTable(String[] columns, byte[] types, Object[] data, int rows) {
+        this.columns = columns;
+        this.types = types;
+        this.data = data;
+        this.rows = rows;
+    }
+
+
+    public int rows() {
+        return(rows);
+    }
+
+
+    public String[] columns() {
+        return(columns.clone());
+    }
+
+
+    public double[] getDoubles(String column) {
+        int c = index(column);
+        if (types[c] == ColumnarWriter.DOUBLE)
+            return((double[]) data[c]);
+        if (types[c] == ColumnarWriter.INT)
+            return(Arrays.stream((int[]) data[c]).asDoubleStream().toArray());
+        throw new IllegalArgumentException("Column " + column + " is not numeric");
+    }
+
+
+    public int[] getInts(String column) {
+        int c = index(column);
+        if (types[c] != ColumnarWriter.INT)
+            throw new IllegalArgumentException("Column " + column + " is not an integer column");
+        return((int[]) data[c]);
+    }
+
+
+    public boolean[] getBooleans(String column) {
+        int c = index(column);
+        if (types[c] != ColumnarWriter.BOOLEAN)
+            throw new IllegalArgumentException("Column " + column + " is not a boolean column");
+        return((boolean[]) data[c]);
+    }
+
+
+    /**
+     * Values of any column as strings, formatted as in tab-separated results files
+     */
+    public String[] getStrings(String column) {
+        int c = index(column);
+        return((types[c] == ColumnarWriter.STRING) ? (String[]) data[c] : toStrings(types[c], data[c], rows));
+    }
+
+
+    private int index(String column) {
+        for (int c = 0; c < columns.length; c++)
+            if (columns[c].equals(column))
+                return(c);
+        throw new IllegalArgumentException("No column " + column);
+    }
+
+
+    /**
+     * Rows first to first+count-1
+     */
+    ColumnarTable slice(int first, int count) {
+        Object[] sliced = new Object[data.length];
+        for (int c = 0; c < data.length; c++) {
+            switch (types[c]) {
+                case ColumnarWriter.INT: sliced[c] = Arrays.copyOfRange((int[]) data[c], first, first + count); break;
+                case ColumnarWriter.DOUBLE: sliced[c] = Arrays.copyOfRange((double[]) data[c], first, first + count); break;
+                case ColumnarWriter.BOOLEAN: sliced[c] = Arrays.copyOfRange((boolean[]) data[c], first, first + count); break;
+                default: sliced[c] = Arrays.copyOfRange((String[]) data[c], first, first + count);
+            }
+        }
+        return(new ColumnarTable(columns, types, sliced, count));
+    }
+
+
+    /**
+     * Rows of all tables, one after the other
+     */
+    static ColumnarTable concat(String[] columns, List<ColumnarTable> tables) {
+        int rows = tables.stream().mapToInt(t -> t.rows).sum();
+        byte[] types = new byte[columns.length];
+        Object[] data = new Object[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            byte type = tables.isEmpty() ? ColumnarWriter.STRING : tables.get(0).types[c];
+            for (ColumnarTable table: tables)
+                type = widen(type, table.types[c]);
+            types[c] = type;
+            int offset = 0;
+            switch (type) {
+                case ColumnarWriter.INT:
+                    int[] ints = new int[rows];
+                    for (ColumnarTable table: tables) {
+                        System.arraycopy(table.data[c], 0, ints, offset, table.rows);
+                        offset += table.rows;
+                    }
+                    data[c] = ints;
+                    break;
+                case ColumnarWriter.DOUBLE:
+                    double[] doubles = new double[rows];
+                    for (ColumnarTable table: tables) {
+                        System.arraycopy(table.getDoubles(columns[c]), 0, doubles, offset, table.rows);
+                        offset += table.rows;
+                    }
+                    data[c] = doubles;
+                    break;
+                case ColumnarWriter.BOOLEAN:
+                    boolean[] booleans = new boolean[rows];
+                    for (ColumnarTable table: tables) {
+                        System.arraycopy(table.data[c], 0, booleans, offset, table.rows);
+                        offset += table.rows;
+                    }
+                    data[c] = booleans;
+                    break;
+                default:
+                    String[] strings = new String[rows];
+                    for (ColumnarTable table: tables) {
+                        System.arraycopy(table.getStrings(columns[c]), 0, strings, offset, table.rows);
+                        offset += table.rows;
+                    }
+                    data[c] = strings;
+            }
+        }
+        return(new ColumnarTable(columns, types, data, rows));
+    }
+
+
+    private static byte widen(byte type1, byte type2) {
+        if (type1 == type2)
+            return(type1);
+        if ((type1 == ColumnarWriter.INT && type2 == ColumnarWriter.DOUBLE) || (type1 == ColumnarWriter.DOUBLE && type2 == ColumnarWriter.INT))
+            return(ColumnarWriter.DOUBLE);
+        return(ColumnarWriter.STRING);
+    }
+
+
+    private static String[] toStrings(byte type, Object values, int rows) {
+        String[] strings = new String[rows];
+        for (int r = 0; r < rows; r++) {
+            switch (type) {
+                case ColumnarWriter.INT: strings[r] = String.valueOf(((int[]) values)[r]); break;
+                case ColumnarWriter.DOUBLE: strings[r] = String.valueOf(((double[]) values)[r]); break;
+                default: strings[r] = String.valueOf(((boolean[]) values)[r]);
+            }
+        }
+        return(strings);
+    }
+
+}
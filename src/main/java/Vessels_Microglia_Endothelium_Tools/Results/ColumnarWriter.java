@@ -0,0 +1,187 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+
+/**
+ * Binary columnar results file, written next to a tab-separated results file
+ * Layout: header (magic, version, column names), one row group per image, index of row groups, index position
+ * A row group starts with its number of rows and rows range of each ROI, followed by its columns, optionally deflated:
+ * each column has its own type in each row group (string with dictionary, int, double or boolean)
+ * Row groups are encoded once per image and can be appended again as is, e.g. when a run is resumed
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ColumnarWriter implements Closeable {
+
+    static final int MAGIC = 0x564d4543;    // VMEC
+    static final int VERSION = 1;
+    static final byte STRING = 0, INT = 1, DOUBLE = 2, BOOLEAN = 3;
+
+    private final DataOutputStream out;
+    private long position = 0;
+    private final List<String> images = new ArrayList<>();
+    private final List<byte[]> groupHeaders = new ArrayList<>();
+    private final List<long[]> groupPositions = new ArrayList<>();
+
+
+    public ColumnarWriter(File file, String[] columns) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(columns.length);
+        for (String column: columns)
+            out.writeUTF(column);
+        position = out.size();
+    }
+
+
+    /**
+     * Encode rows of one image as a row group, ROIs being read in column roiColumn
+     */
+    public static byte[] encode(List<Row> rows, int nColumns, int roiColumn, boolean compress) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream group = new DataOutputStream(bytes);
+
+        // Rows range of each ROI, rows of a ROI being consecutive
+        Map<String, int[]> rois = new LinkedHashMap<>();
+        for (int r = 0; r < rows.size(); r++) {
+            String roi = String.valueOf(value(rows.get(r), roiColumn));
+            int[] range = rois.get(roi);
+            if (range == null)
+                rois.put(roi, new int[] {r, 1});
+            else
+                range[1] = r - range[0] + 1;
+        }
+        group.writeInt(rows.size());
+        group.writeInt(rois.size());
+        for (Map.Entry<String, int[]> roi: rois.entrySet()) {
+            group.writeUTF(roi.getKey());
+            group.writeInt(roi.getValue()[0]);
+            group.writeInt(roi.getValue()[1]);
+        }
+        group.writeBoolean(compress);
+
+        ByteArrayOutputStream columnBytes = new ByteArrayOutputStream();
+        DataOutputStream columns = compress ? new DataOutputStream(new DeflaterOutputStream(columnBytes, new Deflater(Deflater.BEST_SPEED)))
+                                            : new DataOutputStream(columnBytes);
+        for (int c = 0; c < nColumns; c++)
+            writeColumn(columns, rows, c);
+        columns.close();
+        group.writeInt(columnBytes.size());
+        columnBytes.writeTo(group);
+        group.flush();
+        return(bytes.toByteArray());
+    }
+
+
+    /**
+     * Append row group of image
+     */
+    public void append(String image, byte[] rowGroup) throws IOException {
+        // Keep rows and ROIs ranges of row group for index
+        DataInputStream group = new DataInputStream(new ByteArrayInputStream(rowGroup));
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeInt(group.readInt());
+        int nRois = group.readInt();
+        headerOut.writeInt(nRois);
+        for (int i = 0; i < nRois; i++) {
+            headerOut.writeUTF(group.readUTF());
+            headerOut.writeInt(group.readInt());
+            headerOut.writeInt(group.readInt());
+        }
+        images.add(image);
+        groupHeaders.add(header.toByteArray());
+        groupPositions.add(new long[] {position, rowGroup.length});
+
+        out.write(rowGroup);
+        out.flush();
+        position += rowGroup.length;
+    }
+
+
+    /**
+     * Write index of row groups and close file
+     */
+    @Override
+    public void close() throws IOException {
+        long indexPosition = position;
+        out.writeInt(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            out.writeUTF(images.get(i));
+            out.writeLong(groupPositions.get(i)[0]);
+            out.writeInt((int) groupPositions.get(i)[1]);
+            out.write(groupHeaders.get(i));
+        }
+        out.writeLong(indexPosition);
+        out.close();
+    }
+
+
+    private static void writeColumn(DataOutputStream out, List<Row> rows, int column) throws IOException {
+        byte type = type(rows, column);
+        out.writeByte(type);
+        switch (type) {
+            case INT:
+                for (Row row: rows)
+                    out.writeInt((Integer) value(row, column));
+                break;
+            case DOUBLE:
+                for (Row row: rows)
+                    out.writeDouble(((Number) value(row, column)).doubleValue());
+                break;
+            case BOOLEAN:
+                for (Row row: rows)
+                    out.writeBoolean((Boolean) value(row, column));
+                break;
+            default:
+                // Image and ROI names are repeated on all rows, they are written once in a dictionary
+                Map<String, Integer> dictionary = new LinkedHashMap<>();
+                int[] indexes = new int[rows.size()];
+                for (int r = 0; r < rows.size(); r++)
+                    indexes[r] = dictionary.computeIfAbsent(String.valueOf(value(rows.get(r), column)), s -> dictionary.size());
+                out.writeInt(dictionary.size());
+                for (String s: dictionary.keySet())
+                    out.writeUTF(s);
+                for (int index: indexes)
+                    out.writeInt(index);
+        }
+    }
+
+
+    /**
+     * Narrowest type holding all values of column
+     */
+    private static byte type(List<Row> rows, int column) {
+        boolean ints = true, numbers = true, booleans = true;
+        for (Row row: rows) {
+            Object value = value(row, column);
+            ints &= value instanceof Integer;
+            numbers &= value instanceof Number;
+            booleans &= value instanceof Boolean;
+        }
+        if (rows.isEmpty() || (!numbers && !booleans))
+            return(STRING);
+        return(ints ? INT : numbers ? DOUBLE : BOOLEAN);
+    }
+
+
+    private static Object value(Row row, int column) {
+        return((column < row.size()) ? row.get(column) : "");
+    }
+
+}
@@ -0,0 +1,71 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Results rows of one image, grouped by ROI
+ * ROIs can be measured by parallel workers: rows are written in ROI order whatever the order they are added in
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ImageRows {
+
+    public final String image;
+    private final Map<Integer, RoiRows> rois = new TreeMap<>();
+
+
+    public ImageRows(String image) {
+        this.image = image;
+    }
+
+
+    /**
+     * Rows of ROI at index roiIndex of image ROIs list
+     */
+    public synchronized RoiRows roi(int roiIndex) {
+        return(rois.computeIfAbsent(roiIndex, i -> new RoiRows()));
+    }
+
+
+    /**
+     * Rows of all ROIs, in ROI order
+     */
+    public synchronized List<RoiRows> rois() {
+        return(new ArrayList<>(rois.values()));
+    }
+
+
+    /**
+     * Global row and vessels branches and microglial cells rows of one ROI
+     */
+    public static class RoiRows {
+
+        public final Row global = new Row();
+        private final List<Row> vessels = new ArrayList<>();
+        private final List<Row> microglia = new ArrayList<>();
+
+
+        public synchronized void addVessel(Row row) {
+            vessels.add(row);
+        }
+
+
+        public synchronized void addMicroglia(Row row) {
+            microglia.add(row);
+        }
+
+
+        public synchronized List<Row> vessels() {
+            return(new ArrayList<>(vessels));
+        }
+
+
+        public synchronized List<Row> microglia() {
+            return(new ArrayList<>(microglia));
+        }
+    }
+
+}
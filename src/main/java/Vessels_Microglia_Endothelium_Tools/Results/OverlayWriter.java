@@ -0,0 +1,160 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Bounded pool writing overlay images of analyzed images in the background
+ * When all threads are busy and queue is full, overlays are written by the submitting thread,
+ * so that analysis never gets more than queueSize images ahead of writing (and of their memory)
+ * Actions registered with whenDone() (closing images, committing results) run once overlays of their image are written,
+ * in the order images were submitted, even if an image without overlays or a caller-run write finishes first
+ * If overlays of an image fail, actions registered with whenWritten() run their failure variant, e.g. to leave
+ * the image uncommitted so that it is analyzed again when run is resumed
+ * A writer with 0 threads writes overlays synchronously
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class OverlayWriter {
+
+    /**
+     * Overlays pending and actions waiting for an image
+     */
+    private static class Image {
+        int pending = 0;
+        final List<Runnable[]> actions = new ArrayList<>();
+    }
+
+    private final ThreadPoolExecutor pool;
+    // Images in submission order
+    private final LinkedHashMap<String, Image> images = new LinkedHashMap<>();
+    private final Set<String> failed = new HashSet<>();
+    // A thread is running actions, others leave their ready actions to it to keep order
+    private boolean running = false;
+
+
+    public OverlayWriter(int threads, int queueSize) {
+        if (threads == 0) {
+            pool = null;
+            return;
+        }
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "overlay writer");
+            thread.setDaemon(true);
+            return(thread);
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+
+    /**
+     * Write overlays of image with task
+     */
+    public void submit(String image, Runnable task) {
+        synchronized (this) {
+            images.computeIfAbsent(image, i -> new Image()).pending++;
+        }
+        Runnable write = () -> {
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                System.out.println("ERROR: overlays of image " + image + " could not be written: " + ex.getMessage());
+                synchronized (this) {
+                    failed.add(image);
+                }
+            } finally {
+                done(image);
+            }
+        };
+        if (pool == null)
+            write.run();
+        else
+            pool.execute(write);
+    }
+
+
+    /**
+     * Run action once overlays of image are written, whether they failed or not
+     */
+    public void whenDone(String image, Runnable action) {
+        whenWritten(image, action, action);
+    }
+
+
+    /**
+     * Run ok once overlays of image are written, or ifFailed if any of them could not be written
+     * Actions run after the ones of images submitted before, right now if none is pending
+     */
+    public void whenWritten(String image, Runnable ok, Runnable ifFailed) {
+        synchronized (this) {
+            images.computeIfAbsent(image, i -> new Image()).actions.add(new Runnable[] {ok, ifFailed});
+        }
+        runReady();
+    }
+
+
+    private void done(String image) {
+        synchronized (this) {
+            images.get(image).pending--;
+        }
+        runReady();
+    }
+
+
+    /**
+     * Run actions of images written, up to the first image still pending
+     */
+    private void runReady() {
+        while (true) {
+            List<Runnable> ready = new ArrayList<>();
+            synchronized (this) {
+                if (running)
+                    return;
+                Iterator<Map.Entry<String, Image>> it = images.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Image> image = it.next();
+                    if (image.getValue().pending > 0)
+                        break;
+                    int variant = failed.contains(image.getKey()) ? 1 : 0;
+                    for (Runnable[] action: image.getValue().actions)
+                        ready.add(action[variant]);
+                    it.remove();
+                }
+                if (ready.isEmpty())
+                    return;
+                running = true;
+            }
+            try {
+                for (Runnable action: ready)
+                    action.run();
+            } finally {
+                synchronized (this) {
+                    running = false;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Wait for all overlays to be written
+     */
+    public void close() {
+        if (pool == null)
+            return;
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import Vessels_Microglia_Endothelium_Tools.Checkpoint;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Results files written by a background thread, one image at a time
+ * Rows of an image are collected in memory during its analysis, then committed at once: checkpointed with
+ * the image done marker and appended to results files, with one write per file instead of one per row
+ * Results files are only touched by the writer thread, so that analysis threads never share them
+ * Once images order is given, rows are written in that order whatever the order images are committed, rebuilt
+ * or skipped in, so that results files of a restarted shard stay sorted by image as ResultsMerger expects
+ * Optionally, rows are also written in binary columnar files, one row group per image
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ResultsSink {
+
+    private final Checkpoint checkpoint;
+    private final BufferedWriter globalResults, vesselResults, microResults;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "results writer");
+        thread.setDaemon(true);
+        return(thread);
+    });
+    private boolean closed = false;
+    
+    // Images in the order their rows are written, null to write them as they come
+    private List<String> order = null;
+    private int next = 0;
+    // Writes of images waiting for previous images in order
+    private final Map<String, Runnable> resolved = new HashMap<>();
+    private static final Runnable SKIPPED = () -> {};
+    
+    static final String[] TABLES = {"globalResults", "vesselsResults", "microgliaResults"};
+    private ColumnarWriter[] columnar = null;
+    private int[] columnarWidths, roiColumns;
+    private boolean compress;
+
+
+    /**
+     * Sink committing images to checkpoint, then to results files (microResults is null without microglia channel)
+     */
+    public ResultsSink(Checkpoint checkpoint, BufferedWriter globalResults, BufferedWriter vesselResults, BufferedWriter microResults) {
+        this.checkpoint = checkpoint;
+        this.globalResults = globalResults;
+        this.vesselResults = vesselResults;
+        this.microResults = microResults;
+    }
+
+
+    /**
+     * Also write tables with given headers (null for a table not written) in columnar files of dir
+     * Must be called before any image is committed or rebuilt
+     */
+    public void writeColumnar(File dir, String[] headers, boolean compress) throws IOException {
+        this.compress = compress;
+        columnar = new ColumnarWriter[TABLES.length];
+        columnarWidths = new int[TABLES.length];
+        roiColumns = new int[TABLES.length];
+        for (int t = 0; t < TABLES.length; t++) {
+            if (headers[t] == null)
+                continue;
+            String[] columns = headers[t].split("\t");
+            columnar[t] = new ColumnarWriter(new File(dir, TABLES[t] + ".vmc"), columns);
+            columnarWidths[t] = columns.length;
+            roiColumns[t] = Arrays.asList(columns).indexOf("ROI name");
+        }
+    }
+
+
+    /**
+     * Write rows of images in given order, each image of order being committed, rebuilt or skipped
+     * Must be called before any image is committed or rebuilt
+     */
+    public synchronized void order(List<String> images) {
+        order = new ArrayList<>(images);
+        next = 0;
+    }
+
+
+    public ImageRows open(String image) {
+        return(new ImageRows(image));
+    }
+
+
+    /**
+     * Commit rows of an analyzed image in the background
+     * Image is marked as done last, once its rows are appended to results files
+     * If commit fails, image is not marked as done and is analyzed again when run is resumed
+     */
+    public void commit(ImageRows rows) {
+        resolve(rows.image, () -> {
+            StringBuilder global = new StringBuilder();
+            StringBuilder vessels = new StringBuilder();
+            StringBuilder microglia = new StringBuilder();
+            for (ImageRows.RoiRows roi: rows.rois()) {
+                roi.global.format(global);
+                for (Row row: roi.vessels())
+                    row.format(vessels);
+                for (Row row: roi.microglia())
+                    row.format(microglia);
+            }
+            try {
+                if (columnar != null)
+                    saveRowGroups(rows);
+                checkpoint.saveRows(rows.image, global.toString(), vessels.toString(), microglia.toString());
+                append(rows.image);
+                checkpoint.markDone(rows.image);
+            } catch (Exception ex) {
+                System.out.println("ERROR: results of image " + rows.image + " could not be written (" + ex + "), " +
+                                   "results files are incomplete until run is resumed and image analyzed again");
+            }
+        });
+    }
+
+
+    /**
+     * Append rows of an image committed in a previous run in the background
+     */
+    public void rebuild(String image) {
+        resolve(image, () -> {
+            try {
+                append(image);
+            } catch (Exception ex) {
+                System.out.println("ERROR: results of image " + image + " could not be rebuilt (" + ex + "), " +
+                                   "results files are incomplete until run is resumed again");
+            }
+        });
+    }
+
+
+    /**
+     * Leave out an image not analyzed (e.g. failed), so that next images in order are written
+     */
+    public void skip(String image) {
+        resolve(image, SKIPPED);
+    }
+
+
+    /**
+     * Queue write of image, once all images before it in order are resolved
+     */
+    private synchronized void resolve(String image, Runnable write) {
+        if (order == null || !order.contains(image)) {
+            writer.execute(write);
+            return;
+        }
+        resolved.put(image, write);
+        while (next < order.size() && resolved.containsKey(order.get(next)))
+            writer.execute(resolved.remove(order.get(next++)));
+    }
+
+
+    /**
+     * Append committed rows of image to results files
+     */
+    private void append(String image) throws IOException {
+        checkpoint.append(image, globalResults, vesselResults, microResults);
+        if (columnar == null)
+            return;
+        for (int t = 0; t < TABLES.length; t++) {
+            if (columnar[t] == null)
+                continue;
+            byte[] rowGroup = checkpoint.readPart(image, TABLES[t] + ".vmc");
+            if (rowGroup == null)
+                System.out.println("WARNING: image " + image + " was analyzed without columnar results, it is missing from " + TABLES[t] + ".vmc");
+            else
+                columnar[t].append(image, rowGroup);
+        }
+    }
+
+
+    /**
+     * Encode rows of image as row groups of columnar files, saved with image checkpoint
+     */
+    private void saveRowGroups(ImageRows rows) throws IOException {
+        List<List<Row>> tables = new ArrayList<>();
+        for (int t = 0; t < TABLES.length; t++)
+            tables.add(new ArrayList<>());
+        for (ImageRows.RoiRows roi: rows.rois()) {
+            tables.get(0).add(roi.global);
+            tables.get(1).addAll(roi.vessels());
+            tables.get(2).addAll(roi.microglia());
+        }
+        for (int t = 0; t < TABLES.length; t++)
+            if (columnar[t] != null)
+                checkpoint.savePart(rows.image, TABLES[t] + ".vmc", ColumnarWriter.encode(tables.get(t), columnarWidths[t], roiColumns[t], compress));
+    }
+
+
+    /**
+     * Wait for pending commits and close results files
+     */
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        // Images left unresolved (e.g. run stopped) are missing, the ones after them are written anyway
+        if (order != null)
+            for (; next < order.size(); next++)
+                if (resolved.containsKey(order.get(next)))
+                    writer.execute(resolved.remove(order.get(next)));
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        globalResults.close();
+        vesselResults.close();
+        if (microResults != null)
+            microResults.close();
+        if (columnar != null)
+            for (ColumnarWriter table: columnar)
+                if (table != null)
+                    table.close();
+    }
+
+}
@@ -0,0 +1,44 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * One row of a results table, values kept typed (String, Integer, Double, Boolean) until written
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class Row {
+
+    private final List<Object> values = new ArrayList<>();
+
+
+    public Row add(Object value) {
+        values.add(value);
+        return(this);
+    }
+
+
+    public int size() {
+        return(values.size());
+    }
+
+
+    public Object get(int column) {
+        return(values.get(column));
+    }
+
+
+    /**
+     * Append row as a tab-separated line, values formatted as in string concatenation
+     */
+    public void format(StringBuilder line) {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0)
+                line.append('\t');
+            line.append(values.get(i));
+        }
+        line.append('\n');
+    }
+
+}
@@ -0,0 +1,138 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Overlay drawing stored as tiles of TILE x TILE pixels, each tile being allocated when first drawn in
+ * Overlays are mostly empty, so that only a small part of a full stack is held during measurements,
+ * dense planes being built by toImagePlus() when overlay images are written
+ * Drawing is thread-safe, each slice being locked separately
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class SparseOverlay {
+
+    static final int TILE = 64;
+
+    private final int width, height, depth, bitDepth;
+    private final int tilesX;
+    private final short[][][] tiles;
+
+
+    /**
+     * Empty overlay of given dimensions, written as a 8-bit or 16-bit stack
+     */
+    public SparseOverlay(int width, int height, int depth, int bitDepth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.bitDepth = bitDepth;
+        tilesX = (width + TILE - 1) / TILE;
+        int tilesY = (height + TILE - 1) / TILE;
+        tiles = new short[depth][tilesX * tilesY][];
+    }
+
+
+    /**
+     * Empty overlay with dimensions of img
+     */
+    public SparseOverlay(ImagePlus img, int bitDepth) {
+        this(img.getWidth(), img.getHeight(), img.getNSlices(), bitDepth);
+    }
+
+
+    public void set(int x, int y, int z, int value) {
+        short[][] plane = tiles[z];
+        synchronized (plane) {
+            tile(plane, x, y)[(y % TILE) * TILE + x % TILE] = (short) value;
+        }
+    }
+
+
+    /**
+     * Set voxel to value if it is greater than current one, so that drawings overlapping each other
+     * give the same overlay whatever the order they are drawn in
+     */
+    public void max(int x, int y, int z, int value) {
+        short[][] plane = tiles[z];
+        synchronized (plane) {
+            short[] tile = tile(plane, x, y);
+            int i = (y % TILE) * TILE + x % TILE;
+            if ((tile[i] & 0xffff) < value)
+                tile[i] = (short) value;
+        }
+    }
+
+
+    /**
+     * Draw object voxels with value
+     */
+    public void draw(Object3DInt obj, int value) {
+        for (Object3DPlane objPlane: obj.getObject3DPlanes()) {
+            int z = objPlane.getZ();
+            if (z < 0 || z >= depth)
+                continue;
+            short[][] plane = tiles[z];
+            synchronized (plane) {
+                for (VoxelInt v: objPlane.getVoxels())
+                    tile(plane, v.getX(), v.getY())[(v.getY() % TILE) * TILE + v.getX() % TILE] = (short) value;
+            }
+        }
+    }
+
+
+    /**
+     * Draw objects of population with their label
+     */
+    public void draw(Objects3DIntPopulation pop) {
+        for (Object3DInt obj: pop.getObjects3DInt())
+            draw(obj, (int) obj.getLabel());
+    }
+
+
+    /**
+     * Dense stack of overlay
+     */
+    public ImagePlus toImagePlus(String title) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            short[] pixels = new short[width * height];
+            short[][] plane = tiles[z];
+            synchronized (plane) {
+                for (int t = 0; t < plane.length; t++) {
+                    if (plane[t] == null)
+                        continue;
+                    int x0 = (t % tilesX) * TILE, y0 = (t / tilesX) * TILE;
+                    int w = Math.min(TILE, width - x0);
+                    for (int dy = 0; dy < TILE && y0 + dy < height; dy++)
+                        System.arraycopy(plane[t], dy * TILE, pixels, (y0 + dy) * width + x0, w);
+                }
+            }
+            if (bitDepth == 8) {
+                byte[] bytes = new byte[pixels.length];
+                for (int i = 0; i < pixels.length; i++)
+                    bytes[i] = (byte) pixels[i];
+                stack.addSlice(new ByteProcessor(width, height, bytes));
+            } else {
+                stack.addSlice(new ShortProcessor(width, height, pixels, null));
+            }
+        }
+        return(new ImagePlus(title, stack));
+    }
+
+
+    private short[] tile(short[][] plane, int x, int y) {
+        int t = (y / TILE) * tilesX + x / TILE;
+        if (plane[t] == null)
+            plane[t] = new short[TILE * TILE];
+        return(plane[t]);
+    }
+
+}
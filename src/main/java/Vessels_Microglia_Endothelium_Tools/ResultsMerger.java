@@ -0,0 +1,181 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Merge results files of the shards of a sharded run into one results folder
+ * Rows of each shard are sorted by image name, as images are analyzed in that order, so shards are merged
+ * image by image without loading them in memory, giving the same files whatever the number of shards
+ * Microglial cells IDs restart at 1 in each image: a Global cell ID column numbers them across all images
+ * Usage: java -cp ... Vessels_Microglia_Endothelium_Tools.ResultsMerger outDir shardDir1 shardDir2 ...
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ResultsMerger {
+
+    static final String[] RESULTS_FILES = {"globalResults.csv", "vesselsResults.csv", "microgliaResults.csv"};
+
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: ResultsMerger outDir shardDir1 shardDir2 ...");
+            System.exit(1);
+        }
+        try {
+            List<File> shardDirs = new ArrayList<>();
+            for (int i = 1; i < args.length; i++)
+                shardDirs.add(new File(args[i]));
+            new ResultsMerger().merge(new File(args[0]), shardDirs);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+
+    /**
+     * Merge each results file found in shard folders into outDir
+     */
+    public void merge(File outDir, List<File> shardDirs) throws IOException {
+        outDir.mkdirs();
+        for (String name: RESULTS_FILES) {
+            List<File> files = new ArrayList<>();
+            for (File dir: shardDirs) {
+                File file = new File(dir, name);
+                if (file.exists())
+                    files.add(file);
+                else
+                    System.out.println("WARNING: no " + name + " in " + dir);
+            }
+            if (!files.isEmpty()) {
+                int rows = mergeFile(new File(outDir, name), files, name.equals("microgliaResults.csv"));
+                System.out.println(name + ": " + rows + " rows merged from " + files.size() + " shards");
+            }
+        }
+    }
+
+
+    /**
+     * Merge files image by image in image name order, numbering cells globally if asked
+     * Files must have the same header and rows sorted by image name, an image being in one file only
+     */
+    private int mergeFile(File out, List<File> files, boolean globalCellIds) throws IOException {
+        List<ShardReader> readers = new ArrayList<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(out.toPath(), Charset.defaultCharset())) {
+            String header = null;
+            int cellIdColumn = -1;
+            for (File file: files) {
+                ShardReader reader = new ShardReader(file);
+                readers.add(reader);
+                if (header == null) {
+                    header = reader.header;
+                    if (globalCellIds)
+                        cellIdColumn = indexOf(header.split("\t", -1), "Cell ID");
+                    writer.write((cellIdColumn < 0) ? header : insertColumn(header, cellIdColumn, "Global cell ID"));
+                    writer.newLine();
+                } else if (!header.equals(reader.header)) {
+                    throw new IOException("Header of " + file + " differs from header of " + files.get(0) + ", shards were not run with same settings");
+                }
+            }
+
+            long globalCellId = 1;
+            int rows = 0;
+            String previousImage = null;
+            while (true) {
+                // Shard holding next image in name order
+                ShardReader next = null;
+                for (ShardReader reader: readers)
+                    if (reader.image != null && (next == null || reader.image.compareTo(next.image) < 0))
+                        next = reader;
+                if (next == null)
+                    break;
+                String image = next.image;
+                if (image.equals(previousImage))
+                    throw new IOException("Image " + image + " found in several shards");
+                while (image.equals(next.image)) {
+                    String row = next.line;
+                    writer.write((cellIdColumn < 0) ? row : insertColumn(row, cellIdColumn, Long.toString(globalCellId++)));
+                    writer.newLine();
+                    rows++;
+                    next.advance();
+                }
+                previousImage = image;
+            }
+            return(rows);
+        } finally {
+            for (ShardReader reader: readers)
+                reader.close();
+        }
+    }
+
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++)
+            if (columns[i].equals(column))
+                return(i);
+        return(-1);
+    }
+
+
+    /**
+     * Insert value after column of tab-separated row
+     */
+    private static String insertColumn(String row, int column, String value) {
+        int pos = -1;
+        for (int i = 0; i <= column && pos < row.length(); i++) {
+            pos = row.indexOf('\t', pos + 1);
+            if (pos < 0) {
+                pos = row.length();
+                break;
+            }
+        }
+        return(row.substring(0, pos) + "\t" + value + row.substring(pos));
+    }
+
+
+    /**
+     * Rows of one shard file, checked to be sorted by image name (first column)
+     */
+    private static class ShardReader {
+
+        private final File file;
+        private final BufferedReader reader;
+        final String header;
+        String line, image;
+
+
+        ShardReader(File file) throws IOException {
+            this.file = file;
+            reader = Files.newBufferedReader(file.toPath(), Charset.defaultCharset());
+            header = reader.readLine();
+            if (header == null)
+                throw new IOException(file + " is empty");
+            advance();
+        }
+
+
+        void advance() throws IOException {
+            String previousImage = image;
+            do {
+                line = reader.readLine();
+            } while (line != null && line.isEmpty());
+            image = (line == null) ? null : line.substring(0, (line.indexOf('\t') < 0) ? line.length() : line.indexOf('\t'));
+            if (image != null && previousImage != null && image.compareTo(previousImage) < 0)
+                throw new IOException("Rows of " + file + " are not sorted by image name");
+        }
+
+
+        void close() throws IOException {
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+
+
+/**
+ * ROI translated across stack, rasterized once for fast point tests
+ * ROI mask is computed once and shifted by the translation of each slice, so that testing a voxel is an
+ * array lookup instead of a polygon test, and the ROI itself is never translated
+ * Translation of a slice is rounded to the nearest pixel
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class RoiLookup {
+
+    private final int x0, y0, width, height;
+    // null for a rectangle
+    private final byte[] mask;
+    private final double xStep, yStep;
+
+
+    /**
+     * Lookup of roi translated along nbSlices slices, as given by its "translation" property
+     */
+    public RoiLookup(Roi roi, int nbSlices) {
+        Rectangle bounds = roi.getBounds();
+        x0 = bounds.x;
+        y0 = bounds.y;
+        width = bounds.width;
+        height = bounds.height;
+        ImageProcessor ipMask = roi.getMask();
+        mask = (ipMask == null) ? null : ((byte[]) ipMask.getPixels()).clone();
+
+        String[] translation = roi.getProperty("translation").split("_");
+        xStep = Double.valueOf(translation[0]) / (nbSlices-1);
+        yStep = Double.valueOf(translation[1]) / (nbSlices-1);
+    }
+
+
+    /**
+     * Whether voxel (x, y) of slice z (from 0) is inside ROI translated to slice z
+     * ROI is not translated on slices 0 and 1, as objects selection always did
+     */
+    public boolean contains(int x, int y, int z) {
+        if (z > 1) {
+            x -= (int) Math.round(z * xStep);
+            y -= (int) Math.round(z * yStep);
+        }
+        x -= x0;
+        y -= y0;
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return(false);
+        return(mask == null || mask[y * width + x] != 0);
+    }
+
+}
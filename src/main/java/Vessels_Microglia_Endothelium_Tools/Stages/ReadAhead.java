@@ -0,0 +1,114 @@
+package Vessels_Microglia_Endothelium_Tools.Stages;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+
+/**
+ * Load items in order on a reader thread, at most depth items ahead of the consumer
+ * Items loaded and not consumed yet are released when closing, e.g. if run is stopped
+ * A depth of 0 loads each item on the consumer thread, when asked for
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ReadAhead<T> implements AutoCloseable {
+
+    public interface Loader<T> {
+        T load(String file) throws Exception;
+    }
+
+
+    /**
+     * Item loaded from file, or error thrown while loading it, e.g. an OutOfMemoryError,
+     * so that the consumer is never left waiting for an item the reader thread died on
+     */
+    public static class Loaded<T> {
+        public final String file;
+        public final T value;
+        public final Throwable error;
+
+        Loaded(String file, T value, Throwable error) {
+            this.file = file;
+            this.value = value;
+            this.error = error;
+        }
+    }
+
+
+    private final List<String> files;
+    private final Loader<T> loader;
+    private final Consumer<T> release;
+    private final BlockingQueue<Loaded<T>> queue;
+    private final Thread thread;
+    private int next = 0;
+
+
+    public ReadAhead(List<String> files, int depth, Loader<T> loader, Consumer<T> release) {
+        this.files = files;
+        this.loader = loader;
+        this.release = release;
+        if (depth == 0) {
+            queue = null;
+            thread = null;
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(depth);
+        thread = new Thread(() -> {
+            for (String file: files) {
+                Loaded<T> loaded = load(file);
+                try {
+                    queue.put(loaded);
+                } catch (InterruptedException ex) {
+                    // Stopped by close()
+                    if (loaded.value != null)
+                        release.accept(loaded.value);
+                    return;
+                }
+            }
+        }, "image reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Next loaded item, in files order, null when all files were consumed
+     */
+    public Loaded<T> next() throws InterruptedException {
+        if (next == files.size())
+            return(null);
+        next++;
+        return((queue == null) ? load(files.get(next - 1)) : queue.take());
+    }
+
+
+    /**
+     * Stop reader thread and release items not consumed
+     */
+    @Override
+    public void close() {
+        if (thread == null)
+            return;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Loaded<T> loaded: queue)
+            if (loaded.value != null)
+                release.accept(loaded.value);
+        queue.clear();
+    }
+
+
+    private Loaded<T> load(String file) {
+        try {
+            return(new Loaded<>(file, loader.load(file), null));
+        } catch (Throwable ex) {
+            return(new Loaded<>(file, null, ex));
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package Vessels_Microglia_Endothelium_Tools.Stages;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+
+/**
+ * Node of a stage graph: a task, the stages it depends on and the release of its result
+ * Result is released once all stages consuming it are finished
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class Stage<T> {
+
+    /**
+     * Work done by a stage, dependencies results are read with Stage.get()
+     */
+    public interface Task<T> {
+        T run() throws Exception;
+    }
+
+    final String name;
+    final Stage<?>[] dependencies;
+    final Consumer<T> release;
+    final AtomicInteger consumers = new AtomicInteger();
+    // Completed once stage has run and its dependencies have been consumed
+    CompletableFuture<?> done;
+    private volatile T result;
+
+
+    Stage(String name, Consumer<T> release, Stage<?>[] dependencies) {
+        this.name = name;
+        this.release = release;
+        this.dependencies = dependencies;
+    }
+
+
+    /**
+     * Result of stage, only valid in stages depending on it or once the graph has run
+     */
+    public T get() {
+        return(result);
+    }
+
+
+    void set(T result) {
+        this.result = result;
+    }
+
+
+    /**
+     * Called when a consumer is finished, release result after the last one
+     */
+    void consumed() {
+        if (consumers.decrementAndGet() == 0)
+            release();
+    }
+
+
+    /**
+     * Release result, results of stages without release being kept
+     */
+    synchronized void release() {
+        if (release == null)
+            return;
+        if (result != null)
+            release.accept(result);
+        result = null;
+    }
+
+
+    @Override
+    public String toString() {
+        return(name);
+    }
+
+}
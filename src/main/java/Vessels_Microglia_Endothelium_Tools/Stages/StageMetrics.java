@@ -0,0 +1,151 @@
+package Vessels_Microglia_Endothelium_Tools.Stages;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Timing and memory metrics of pipeline stages, one row per stage and image in a metrics.csv file
+ * Wall time, CPU time and allocated bytes are measured on the thread running the stage,
+ * process heap high-water is the peak heap usage of the whole JVM since the beginning of the image: JVM heap pools
+ * are process-wide, so that it also counts images read ahead and overlays still written for previous images,
+ * and is only a per-image peak when images do not overlap
+ * A StageMetrics created without file measures nothing
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class StageMetrics {
+
+    private final BufferedWriter writer;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+
+
+    public StageMetrics() {
+        writer = null;
+    }
+
+
+    /**
+     * Append metrics to csv file, writing its header if new
+     */
+    public StageMetrics(File csv) throws IOException {
+        boolean exists = csv.exists();
+        writer = new BufferedWriter(new FileWriter(csv, true));
+        if (!exists) {
+            writer.write("Image name\tStage\tThread\tWall time (ms)\tCPU time (ms)\tAllocated (MB)\tProcess heap high-water (MB)\n");
+            writer.flush();
+        }
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool);
+        if (threads.isThreadCpuTimeSupported())
+            threads.setThreadCpuTimeEnabled(true);
+        if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported())
+            ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+    }
+
+
+    /**
+     * Reset process heap high-water at the beginning of an image
+     * Peaks of stages of previous images still running (e.g. overlays) are reset too
+     */
+    public void startImage() {
+        for (MemoryPoolMXBean pool: heapPools)
+            pool.resetPeakUsage();
+    }
+
+
+    /**
+     * Start measuring stage of image on current thread, stop() must be called on the same thread
+     */
+    public Sample start(String image, String stage) {
+        return(new Sample(image, stage));
+    }
+
+
+    /**
+     * Run task as stage of image and record its metrics
+     */
+    public <T> T measure(String image, String stage, Stage.Task<T> task) throws Exception {
+        Sample sample = start(image, stage);
+        try {
+            return(task.run());
+        } finally {
+            sample.stop();
+        }
+    }
+
+
+    public synchronized void close() throws IOException {
+        if (writer != null)
+            writer.close();
+    }
+
+
+    private synchronized void write(String row) {
+        try {
+            writer.write(row);
+            writer.flush();
+        } catch (IOException e) {
+            System.out.println("WARNING: could not write metrics: " + e.getMessage());
+        }
+    }
+
+
+    private long cpuTime() {
+        return(threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0);
+    }
+
+
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return(((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()));
+        return(0);
+    }
+
+
+    private long heapHighWater() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool: heapPools)
+            peak += pool.getPeakUsage().getUsed();
+        return(peak);
+    }
+
+
+    public class Sample {
+
+        private final String image;
+        private final String stage;
+        private final long wall0, cpu0, alloc0;
+
+
+        private Sample(String image, String stage) {
+            this.image = image;
+            this.stage = stage;
+            wall0 = System.nanoTime();
+            cpu0 = (writer != null) ? cpuTime() : 0;
+            alloc0 = (writer != null) ? allocatedBytes() : 0;
+        }
+
+
+        public void stop() {
+            if (writer == null)
+                return;
+            double wall = (System.nanoTime() - wall0) / 1e6;
+            double cpu = (cpuTime() - cpu0) / 1e6;
+            double alloc = (allocatedBytes() - alloc0) / 1048576.0;
+            double heap = heapHighWater() / 1048576.0;
+            write(image+"\t"+stage+"\t"+Thread.currentThread().getName()+"\t"+String.format(Locale.US, "%.1f\t%.1f\t%.1f\t%.1f", wall, cpu, alloc, heap)+"\n");
+        }
+    }
+
+}
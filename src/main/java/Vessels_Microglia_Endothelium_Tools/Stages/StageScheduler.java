@@ -0,0 +1,92 @@
+package Vessels_Microglia_Endothelium_Tools.Stages;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+
+/**
+ * Run a graph of stages on a shared pool of threads
+ * Each stage starts as soon as the stages it depends on are finished, so independent stages run concurrently
+ * Intermediate results are released as soon as their last consumer is finished
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class StageScheduler {
+
+    private final ExecutorService pool;
+    private final List<Stage<?>> stages = new ArrayList<>();
+    // Stages wait for run(), so that all consumers are known before any result is released
+    private final CompletableFuture<Void> start = new CompletableFuture<>();
+
+
+    public StageScheduler(ExecutorService pool) {
+        this.pool = pool;
+    }
+
+
+    /**
+     * Add a stage whose result is kept once the graph has run
+     */
+    public <T> Stage<T> add(String name, Stage.Task<T> task, Stage<?>... dependencies) {
+        return(add(name, task, null, dependencies));
+    }
+
+
+    /**
+     * Add a stage whose result is released with release once all stages depending on it are finished
+     * Stages must be added after the stages they depend on
+     */
+    public <T> Stage<T> add(String name, Stage.Task<T> task, Consumer<T> release, Stage<?>... dependencies) {
+        Stage<T> stage = new Stage<>(name, release, dependencies);
+        CompletableFuture<?>[] dones = new CompletableFuture<?>[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            if (!stages.contains(dependencies[i]))
+                throw new IllegalArgumentException("Stage " + name + " depends on stage " + dependencies[i] + " not added before");
+            dependencies[i].consumers.incrementAndGet();
+            dones[i] = dependencies[i].done;
+        }
+
+        CompletableFuture<T> future = start.thenCompose(v -> CompletableFuture.allOf(dones)).thenApplyAsync(v -> {
+            try {
+                T result = task.run();
+                stage.set(result);
+                return(result);
+            } catch (Exception e) {
+                throw new CompletionException("Stage " + name + " failed", e);
+            }
+        }, pool);
+        // Dependencies are consumed whether stage succeeded or not
+        stage.done = future.whenComplete((result, e) -> {
+            for (Stage<?> dependency: dependencies)
+                dependency.consumed();
+        });
+        stages.add(stage);
+        return(stage);
+    }
+
+
+    /**
+     * Wait for all stages, then release results of stages without consumers that have a release
+     * @throws Exception first failure of a stage
+     */
+    public void run() throws Exception {
+        start.complete(null);
+        try {
+            CompletableFuture.allOf(stages.stream().map(s -> s.done).toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            // Unwrap up to the failure of the first failed stage
+            Throwable cause = e;
+            while (cause.getCause() instanceof CompletionException)
+                cause = cause.getCause();
+            throw new Exception(cause.getMessage(), cause.getCause());
+        } finally {
+            for (Stage<?> stage: stages)
+                if (stage.consumers.get() == 0)
+                    stage.release();
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+
+/**
+ * Count, mean, standard deviation, min and max of a stream of values, in constant memory
+ * Mean and variance are updated with Welford's algorithm, values themselves are not stored
+ * Standard deviation is the sample one (n-1), NaN statistics are returned for an empty stream,
+ * as with DescriptiveStatistics
+ * An optional quantile sketch is fed with the same values when percentiles are needed
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class StreamingStats {
+
+    private long n;
+    private double mean, m2, min, max;
+    private final QuantileSketch sketch;
+
+
+    public StreamingStats() {
+        this(null);
+    }
+
+
+    /**
+     * Statistics also feeding sketch, null if no percentile is needed
+     */
+    public StreamingStats(QuantileSketch sketch) {
+        this.sketch = sketch;
+        clear();
+    }
+
+
+    public void add(double value) {
+        n++;
+        double delta = value - mean;
+        mean += delta / n;
+        m2 += delta * (value - mean);
+        if (value < min) min = value;
+        if (value > max) max = value;
+        if (sketch != null)
+            sketch.add(value);
+    }
+
+
+    /**
+     * Forget all values, so that the same instance can be used for the next stream
+     */
+    public void clear() {
+        n = 0;
+        mean = 0;
+        m2 = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        if (sketch != null)
+            sketch.clear();
+    }
+
+
+    public long getN() {
+        return(n);
+    }
+
+
+    public double getMean() {
+        return((n == 0) ? Double.NaN : mean);
+    }
+
+
+    public double getStandardDeviation() {
+        if (n == 0)
+            return(Double.NaN);
+        return((n == 1) ? 0 : Math.sqrt(m2 / (n - 1)));
+    }
+
+
+    public double getMin() {
+        return((n == 0) ? Double.NaN : min);
+    }
+
+
+    public double getMax() {
+        return((n == 0) ? Double.NaN : max);
+    }
+
+
+    /**
+     * Percentile p (0 to 100) estimated by sketch, NaN without sketch or values
+     */
+    public double getPercentile(double p) {
+        return((sketch == null) ? Double.NaN : sketch.quantile(p / 100));
+    }
+
+}
@@ -1,34 +1,55 @@
 package Vessels_Microglia_Endothelium_Tools;
 
+import Vessels_Microglia_Endothelium_Tools.Cellpose.CellposeBatch;
+import Vessels_Microglia_Endothelium_Tools.Cellpose.CellposeMaskCache;
 import Vessels_Microglia_Endothelium_Tools.Cellpose.CellposeSegmentImgPlusAdvanced;
 import Vessels_Microglia_Endothelium_Tools.Cellpose.CellposeTaskSettings;
+import Vessels_Microglia_Endothelium_Tools.Chunks.ChunkEngine;
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.DistanceMap;
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.SlabProcessor;
+import Vessels_Microglia_Endothelium_Tools.Results.ImageRows;
+import Vessels_Microglia_Endothelium_Tools.Results.OverlayWriter;
+import Vessels_Microglia_Endothelium_Tools.Results.Row;
+import Vessels_Microglia_Endothelium_Tools.Results.SparseOverlay;
+import Vessels_Microglia_Endothelium_Tools.Stages.StageMetrics;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.Roi;
 import ij.io.FileSaver;
+import ij.io.RoiDecoder;
 import ij.measure.Calibration;
-import ij.plugin.Concatenator;
 import ij.plugin.Duplicator;
 import ij.plugin.RGBStackMerge;
 import ij.plugin.RoiEnlarger;
+import ij.plugin.ZProjector;
 import ij.plugin.frame.RoiManager;
 import ij.process.AutoThresholder;
 import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 import ij.util.ThreadUtil;
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.GraphicsEnvironment;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
@@ -44,7 +65,6 @@ import mcib3d.geom2.measurements.Measure2Colocalisation;
 import mcib3d.geom2.measurements.Measure2Distance;
 import mcib3d.geom2.measurements.MeasureVolume;
 import mcib3d.geom2.measurements.MeasureCentroid;
-import mcib3d.geom2.tracking.TrackingAssociation;
 import mcib3d.image3d.ImageFloat;
 import mcib3d.image3d.ImageHandler;
 import mcib3d.image3d.ImageInt;
@@ -54,7 +74,7 @@ import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clijx.bonej.BoneJSkeletonize3D;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.apache.commons.io.IOUtils;
 import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
 import sc.fiji.analyzeSkeleton.Edge;
 import sc.fiji.analyzeSkeleton.Graph;
@@ -69,7 +89,8 @@ public class Tools {
     
     private final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
     private final String helpUrl = "https://github.com/orion-cirb/Vessels_Microglia_Endothelium";
-    private final CLIJ2 clij2 = CLIJ2.getInstance();
+    // Created on first use, so that CPU-only code paths (and benchmarks) run without OpenCL
+    private CLIJ2 clij2Instance;
     
     private String[] chNames = {"Vessels: ", "Microglia (optional): ", "Endothelial nuclei (optional): "};
         
@@ -79,6 +100,9 @@ public class Tools {
     public String vesselSegMethod;
     private double minVesselVol = 70; // um3
     private double minVesselLength = 10; // um
+    // Diameter percentiles written for vessels and branches (none by default), estimated within 1%
+    public double[] diameterPercentiles = {};
+    private double diameterAccuracy = 0.01;
     // Cellpose method
     private final String cellposeEnvPath = IJ.isWindows()? System.getProperty("user.home")+File.separator+"miniconda3"+File.separator+"envs"+File.separator+"CellPose" : "/opt/miniconda3/envs/cellpose";
     private final String cellposeModelsPath = (IJ.isWindows()) ? System.getProperty("user.home")+"\\.cellpose\\models\\" : System.getProperty("user.home")+"/.cellpose/models/";
@@ -101,7 +125,67 @@ public class Tools {
     private String omniposeModelEndo = "cyto2_omnitorch_0";
     private int omniposeDiamEndo = 25;
     // Masks stitching
-    private float maxLabel;
+    private double stitchMinColoc = 0.1;
+    
+    // Out-of-core processing
+    public boolean outOfCore = false;
+    public File outOfCoreDir = new File(IJ.getDirectory("Temp"), "outOfCore");
+    private int slabDepth = 16; // slices
+    
+    // Vessels thresholding streamed slab by slab, filtered stacks never being held
+    public boolean streamingThreshold = false;
+    
+    // Chunked processing
+    public boolean chunked = false;
+    private int chunkSizeXY = 512; // pix
+    private int chunkSizeZ = 64; // slices
+    
+    // Results folder of latest run with same settings reused, already analyzed images skipped
+    public boolean resume = false;
+    
+    // Binary columnar results files written next to csv files, row groups deflated if columnarCompression
+    public boolean columnarResults = false;
+    public boolean columnarCompression = true;
+    
+    // Overlay images written in the background, at full resolution or as downsampled or max projection previews
+    public final String[] overlayModes = {"Full resolution", "Downsampled", "Max projection"};
+    public String overlayMode = overlayModes[0];
+    private int overlayDownsampling = 4;
+    public OverlayWriter overlays = new OverlayWriter(0, 0);
+    
+    // Number of images read in advance while analyzing current image (0 to read each image when needed)
+    public int readAhead = 1;
+    
+    // Sharded runs over several nodes (headless only): images of shard shardIndex among shardCount,
+    // phase "statistics" computing normalization statistics, phase "analysis" normalizing and analyzing
+    public int shardIndex = 0;
+    public int shardCount = 1;
+    public String shardPhase = "analysis";
+    private final String[] shardPhases = {"statistics", "analysis"};
+    
+    // Timing and memory metrics of stages, measuring nothing until a results folder is set
+    public StageMetrics metrics = new StageMetrics();
+    
+    // Independent stages of an image run at the same time
+    public boolean concurrentStages = true;
+    
+    // ROIs of an image measured at the same time, each one holding its own copies of vessels mask and skeleton
+    public int roiThreads = 4;
+    
+    // Cellpose/Omnipose processes kept alive between images
+    public boolean persistentWorker = true;
+    
+    // Cellpose/Omnipose run once on all images, in the background of the analysis
+    public boolean batchCellpose = false;
+    public String currentImage;
+    private CellposeBatch vesselBatch;
+    private CellposeBatch endoBatch;
+    
+    // Cellpose/Omnipose masks kept between runs
+    public boolean cellposeCache = true;
+    private File cellposeCacheDir = new File(IJ.getDirectory("Temp"), "cellposeMasksCache");
+    private long cellposeCacheSize = 20L*1024*1024*1024; // bytes
+    private CellposeMaskCache maskCache;
     
     
     /**
@@ -117,6 +201,8 @@ public class Tools {
      * Flush and close an image
      */
     public void closeImage(ImagePlus img) {
+        if (img.getStack() instanceof MappedStack)
+            ((MappedStack) img.getStack()).close();
         img.flush();
         img.close();
     }
@@ -160,6 +246,20 @@ public class Tools {
     }
        
     
+    /**
+     * Images of current shard: every shardCount-th image of images sorted by name, starting at shardIndex
+     * Shard images are analyzed in name order, so that results files of shards can be merged image by image
+     */
+    public ArrayList<String> shardImages(ArrayList<String> imageFiles) {
+        ArrayList<String> sorted = new ArrayList<>(imageFiles);
+        sorted.sort(Comparator.comparing(FilenameUtils::getBaseName));
+        ArrayList<String> shard = new ArrayList<>();
+        for (int i = shardIndex; i < sorted.size(); i += shardCount)
+            shard.add(sorted.get(i));
+        return(shard);
+    }
+    
+    
     /**
      * Get channels name and add None to the end of the list
      * @throws loci.common.services.DependencyException
@@ -226,6 +326,7 @@ public class Tools {
         gd.addNumericField("Min vessel volume (µm3): ", minVesselVol, 2);
         gd.addNumericField("Min branch length (µm): ", minVesselLength, 2);
         gd.addCheckbox("Quantile based normalization", vesselNormalization);
+        gd.addStringField("Diameter percentiles (e.g. 10,50,90): ", percentilesString(), 10);
         gd.addChoice("Segmentation method", vesselSegMethods, vesselSegMethods[0]);
         gd.addMessage("Thresholding", new Font("Monospace", Font.PLAIN, 12), Color.blue);
         String[] thMethods = AutoThresholder.getMethods();
@@ -242,6 +343,20 @@ public class Tools {
         gd.addMessage("Endothelial nuclei segmentation", new Font("Monospace", Font.BOLD, 12), Color.blue); 
         gd.addNumericField("Min nucleus volume (µm3): ", endoMinVol, 2);
         
+        gd.addMessage("Performance", new Font("Monospace", Font.BOLD, 12), Color.blue);
+        gd.addCheckbox("Out-of-core processing (images larger than memory)", outOfCore);
+        gd.addCheckbox("Chunked parallel processing", chunked);
+        gd.addCheckbox("Run independent stages concurrently", concurrentStages);
+        gd.addCheckbox("Resume latest run with same settings", resume);
+        gd.addCheckbox("Keep Cellpose/Omnipose loaded between images", persistentWorker);
+        gd.addCheckbox("Run Cellpose/Omnipose on all images during analysis", batchCellpose);
+        gd.addCheckbox("Reuse Cellpose/Omnipose masks of previous runs", cellposeCache);
+        gd.addCheckbox("Write binary columnar results", columnarResults);
+        gd.addCheckbox("Stream vessels thresholding slab by slab", streamingThreshold);
+        gd.addChoice("Overlay images: ", overlayModes, overlayMode);
+        gd.addNumericField("Images read ahead: ", readAhead, 0);
+        gd.addNumericField("ROIs measured concurrently: ", roiThreads, 0);
+        
         gd.addHelp(helpUrl);
         gd.showDialog();
         
@@ -252,6 +367,7 @@ public class Tools {
         minVesselVol = gd.getNextNumber();
         minVesselLength = gd.getNextNumber();
         vesselNormalization = gd.getNextBoolean();
+        String percentiles = gd.getNextString();
         vesselSegMethod = gd.getNextChoice();
         vesselThMethod = gd.getNextChoice();
         cellposeModelVessel = gd.getNextChoice();
@@ -262,11 +378,145 @@ public class Tools {
         
         endoMinVol = gd.getNextNumber();
         
+        outOfCore = gd.getNextBoolean();
+        chunked = gd.getNextBoolean();
+        concurrentStages = gd.getNextBoolean();
+        resume = gd.getNextBoolean();
+        persistentWorker = gd.getNextBoolean();
+        batchCellpose = gd.getNextBoolean();
+        cellposeCache = gd.getNextBoolean();
+        columnarResults = gd.getNextBoolean();
+        streamingThreshold = gd.getNextBoolean();
+        overlayMode = gd.getNextChoice();
+        readAhead = (int) gd.getNextNumber();
+        roiThreads = Math.max(1, (int) gd.getNextNumber());
+        
         if (gd.wasCanceled())
-            chChoices = null;
+            return(null);
+        // Only parsed once dialog box is validated, so that canceling never fails on a mistyped value
+        diameterPercentiles = parsePercentiles(percentiles);
+        maskCache = cellposeCache ? new CellposeMaskCache(cellposeCacheDir, cellposeCacheSize) : null;
         return(chChoices);
     }
     
+    
+    /**
+     * Read dialog box parameters from properties, for headless runs
+     * Parameters not defined keep their default value, channels not defined are set to None:
+     *     channel.vessels, channel.microglia, channel.endothelium (channel names as listed in dialog box, or None)
+     *     vessel.minVolume, vessel.minLength, vessel.normalization, vessel.method (Thresholding or Cellpose),
+     *     vessel.thresholdMethod, vessel.cellposeModel, vessel.diameterPercentiles (e.g. 10,50,90, empty for none)
+     *     microglia.thresholdMethod, microglia.minVolume, microglia.roiDilation
+     *     endothelium.minVolume
+     *     outOfCore, chunked, concurrentStages, resume, persistentWorker, batchCellpose, cellposeCache,
+     *     columnarResults, columnarCompression, streamingThreshold (true or false)
+     *     overlays (Full resolution, Downsampled or Max projection), readAhead (images), roiThreads
+     *     shard.count, shard.index (from 0), shard.phase (statistics or analysis)
+     * Images directory is read by the caller from key images
+     * @throws IllegalArgumentException if a channel, method, model, percentile or shard is invalid
+     */
+    public String[] readParameters(Properties params, String[] channels) {
+        String[] keys = {"channel.vessels", "channel.microglia", "channel.endothelium"};
+        String[] chChoices = new String[chNames.length];
+        for (int n = 0; n < chChoices.length; n++)
+            chChoices[n] = choice(params, keys[n], channels, "None");
+        
+        minVesselVol = number(params, "vessel.minVolume", minVesselVol);
+        minVesselLength = number(params, "vessel.minLength", minVesselLength);
+        vesselNormalization = bool(params, "vessel.normalization", vesselNormalization);
+        diameterPercentiles = parsePercentiles(params.getProperty("vessel.diameterPercentiles", percentilesString()));
+        vesselSegMethod = choice(params, "vessel.method", vesselSegMethods, vesselSegMethods[0]);
+        String[] thMethods = AutoThresholder.getMethods();
+        vesselThMethod = choice(params, "vessel.thresholdMethod", thMethods, vesselThMethod);
+        cellposeModelVessel = params.getProperty("vessel.cellposeModel", cellposeModelVessel);
+        if (vesselSegMethod == "Cellpose" && (cellposeModelVessel == null || !new File(cellposeModelsPath + cellposeModelVessel).exists()))
+            throw new IllegalArgumentException("Cellpose model " + cellposeModelVessel + " not found in " + cellposeModelsPath);
+        
+        microThMethod = choice(params, "microglia.thresholdMethod", thMethods, microThMethod);
+        microMinVol = number(params, "microglia.minVolume", microMinVol);
+        roiDilation = number(params, "microglia.roiDilation", roiDilation);
+        
+        endoMinVol = number(params, "endothelium.minVolume", endoMinVol);
+        
+        outOfCore = bool(params, "outOfCore", outOfCore);
+        chunked = bool(params, "chunked", chunked);
+        concurrentStages = bool(params, "concurrentStages", concurrentStages);
+        resume = bool(params, "resume", resume);
+        persistentWorker = bool(params, "persistentWorker", persistentWorker);
+        batchCellpose = bool(params, "batchCellpose", batchCellpose);
+        cellposeCache = bool(params, "cellposeCache", cellposeCache);
+        columnarResults = bool(params, "columnarResults", columnarResults);
+        columnarCompression = bool(params, "columnarCompression", columnarCompression);
+        streamingThreshold = bool(params, "streamingThreshold", streamingThreshold);
+        overlayMode = choice(params, "overlays", overlayModes, overlayMode);
+        readAhead = (int) number(params, "readAhead", readAhead);
+        roiThreads = Math.max(1, (int) number(params, "roiThreads", roiThreads));
+        maskCache = cellposeCache ? new CellposeMaskCache(cellposeCacheDir, cellposeCacheSize) : null;
+        
+        shardCount = (int) number(params, "shard.count", shardCount);
+        shardIndex = (int) number(params, "shard.index", shardIndex);
+        shardPhase = choice(params, "shard.phase", shardPhases, shardPhase);
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount)
+            throw new IllegalArgumentException("Shard index " + shardIndex + " must be between 0 and shard count " + shardCount + " - 1");
+        
+        return(chChoices);
+    }
+    
+    
+    /**
+     * Get choice of key among given choices, returning the choice itself
+     * (choices are compared with == in the pipeline, as with dialog box choices)
+     */
+    private String choice(Properties params, String key, String[] choices, String defaultChoice) {
+        String value = params.getProperty(key);
+        if (value == null)
+            return(defaultChoice);
+        for (String c : choices)
+            if (c.equals(value.trim()))
+                return(c);
+        throw new IllegalArgumentException("Unknown value " + value + " for " + key + ", expected one of " + Arrays.toString(choices));
+    }
+    
+    
+    private double number(Properties params, String key, double defaultValue) {
+        String value = params.getProperty(key);
+        return((value == null) ? defaultValue : Double.parseDouble(value.trim()));
+    }
+    
+    
+    private boolean bool(Properties params, String key, boolean defaultValue) {
+        String value = params.getProperty(key);
+        return((value == null) ? defaultValue : Boolean.parseBoolean(value.trim()));
+    }
+    
+    
+    /**
+     * Comma-separated percentiles between 0 and 100, empty for none
+     */
+    private double[] parsePercentiles(String value) {
+        if (value.trim().isEmpty())
+            return(new double[0]);
+        String[] items = value.split(",");
+        double[] percentiles = new double[items.length];
+        for (int i = 0; i < items.length; i++) {
+            percentiles[i] = Double.parseDouble(items[i].trim());
+            if (percentiles[i] < 0 || percentiles[i] > 100)
+                throw new IllegalArgumentException("Diameter percentile " + items[i].trim() + " is not between 0 and 100");
+        }
+        return(percentiles);
+    }
+    
+    
+    /**
+     * Percentiles as written in dialog box and results folder name (e.g. 10,50,90)
+     */
+    public String percentilesString() {
+        List<String> items = new ArrayList<>();
+        for (double p : diameterPercentiles)
+            items.add((p == Math.rint(p)) ? Long.toString((long) p) : Double.toString(p));
+        return(String.join(",", items));
+    }
+    
         
     /**
      * Get vessel Cellpose models in Cellpose models directory
@@ -286,29 +536,84 @@ public class Tools {
      * Write headers in results files
      */
     public void writeHeaders(String[] channels, BufferedWriter globalResults, BufferedWriter vesselResults, BufferedWriter microResults) throws IOException {         
-        globalResults.write("Image name\tImage XY calibration (µm)\tROI name\tROI translation\tROI volume (µm3)"
-                + "\tVessels total volume (µm3)\tVessels density\tVessels total length (µm)"
-                + "\tNb branches\tNb junctions\tVessels mean diameter (µm)\tVessels std diameter (µm)");
-            if(channels[1] != "None") 
-                globalResults.write("\tNb microglia\tNb VAM\tNb VTM\tNb VDM");
-            if(channels[2] != "None") 
-                globalResults.write("\tNb endothelial nuclei\tEndothelial nuclei density\tNb endothelial nuclei/Vessels total length");
-        globalResults.write("\n");
+        String[] headers = headers(channels);
+        globalResults.write(headers[0] + "\n");
         globalResults.flush();
 
-        vesselResults.write("Image name\tROI name\tBranch length (µm)\tMean diameter (µm)\tDiameter std (µm)\tMin diameter (µm)\tMax diameter (µm)"
-                + "\tV1 x (µm)\tV1 y (µm)\tV1 z (µm)\tV2 x (µm)\tV2 y (µm)\tV2 z (µm)\n");
+        vesselResults.write(headers[1] + "\n");
         vesselResults.flush();
         
         if(channels[1] != "None")  {
-            microResults.write("Image name\tROI name\tCell ID\tCell volume (µm3)\tCell volume coloc with vessel (µm3)"
-                    + "\tCell centroid distance to closest vessel (µm)\tCell border distance to closest vessel (µm)"
-                    + "\tClosest vessel diameter (µm)\n");
+            microResults.write(headers[2] + "\n");
             microResults.flush();
         }
     }
     
     
+    /**
+     * Headers of global, vessels and microglia results tables (null if no microglia channel)
+     */
+    public String[] headers(String[] channels) {
+        String globalHeader = "Image name\tImage XY calibration (µm)\tROI name\tROI translation\tROI volume (µm3)"
+                + "\tVessels total volume (µm3)\tVessels density\tVessels total length (µm)"
+                + "\tNb branches\tNb junctions\tVessels mean diameter (µm)\tVessels std diameter (µm)";
+            for (String p : percentilesString().split(","))
+                if (!p.isEmpty())
+                    globalHeader += "\tVessels P" + p + " diameter (µm)";
+            if(channels[1] != "None") 
+                globalHeader += "\tNb microglia\tNb VAM\tNb VTM\tNb VDM";
+            if(channels[2] != "None") 
+                globalHeader += "\tNb endothelial nuclei\tEndothelial nuclei density\tNb endothelial nuclei/Vessels total length";
+
+        String vesselHeader = "Image name\tROI name\tBranch length (µm)\tMean diameter (µm)\tDiameter std (µm)\tMin diameter (µm)\tMax diameter (µm)";
+        for (String p : percentilesString().split(","))
+            if (!p.isEmpty())
+                vesselHeader += "\tP" + p + " diameter (µm)";
+        vesselHeader += "\tV1 x (µm)\tV1 y (µm)\tV1 z (µm)\tV2 x (µm)\tV2 y (µm)\tV2 z (µm)";
+        
+        String microHeader = null;
+        if(channels[1] != "None")
+            microHeader = "Image name\tROI name\tCell ID\tCell volume (µm3)\tCell volume coloc with vessel (µm3)"
+                    + "\tCell centroid distance to closest vessel (µm)\tCell border distance to closest vessel (µm)"
+                    + "\tClosest vessel diameter (µm)";
+        return(new String[] {globalHeader, vesselHeader, microHeader});
+    }
+    
+    
+    /**
+     * Settings changing results of a run, one key = value per line
+     * A run is only resumed with the same settings, performance options which give the same results being left out
+     */
+    public String settings(String[] channels) {
+        StringBuilder settings = new StringBuilder();
+        String[] keys = {"channel.vessels", "channel.microglia", "channel.endothelium"};
+        for (int n = 0; n < keys.length; n++)
+            settings.append(keys[n]).append(" = ").append(channels[n]).append("\n");
+        settings.append("vessel.minVolume = ").append(minVesselVol).append("\n")
+                .append("vessel.minLength = ").append(minVesselLength).append("\n")
+                .append("vessel.normalization = ").append(vesselNormalization).append("\n")
+                .append("vessel.method = ").append(vesselSegMethod).append("\n")
+                .append("vessel.thresholdMethod = ").append(vesselThMethod).append("\n")
+                .append("vessel.cellposeModel = ").append(cellposeModelVessel).append("\n")
+                .append("vessel.cellposeDiameter = ").append(cellposeDiamVessel).append("\n")
+                .append("vessel.cellposeStitchThreshold = ").append(cellposeStitchThVessel).append("\n")
+                .append("vessel.diameterPercentiles = ").append(percentilesString()).append("\n")
+                .append("microglia.thresholdMethod = ").append(microThMethod).append("\n")
+                .append("microglia.minVolume = ").append(microMinVol).append("\n")
+                .append("microglia.roiDilation = ").append(roiDilation).append("\n")
+                .append("endothelium.minVolume = ").append(endoMinVol).append("\n")
+                .append("endothelium.omniposeModel = ").append(omniposeModelEndo).append("\n")
+                .append("endothelium.omniposeDiameter = ").append(omniposeDiamEndo).append("\n")
+                .append("endothelium.stitchMinColoc = ").append(stitchMinColoc).append("\n")
+                // Thresholds are computed on whole stack histograms instead of by CLIJ2
+                .append("outOfCore = ").append(outOfCore).append("\n")
+                .append("chunked = ").append(chunked).append("\n")
+                .append("streamingThreshold = ").append(streamingThreshold).append("\n")
+                .append("columnarResults = ").append(columnarResults).append("\n");
+        return(settings.toString());
+    }
+    
+    
     /**
      * Save images specific channel before sending it to QuantileBasedNormalization plugin
      * @throws Exception
@@ -376,9 +681,15 @@ public class Tools {
         
         roiName = new File(roiName+".zip").exists() ? roiName+".zip" : roiName+".roi";
         if (new File(roiName).exists()) {
-            RoiManager rm = new RoiManager(false);
-            rm.runCommand("Open", roiName);
-            List<Roi> roisTemp = Arrays.asList(rm.getRoisAsArray());
+            List<Roi> roisTemp;
+            if (GraphicsEnvironment.isHeadless()) {
+                // ROI Manager is a window, not available on headless nodes
+                roisTemp = readRois(roiName);
+            } else {
+                RoiManager rm = new RoiManager(false);
+                rm.runCommand("Open", roiName);
+                roisTemp = Arrays.asList(rm.getRoisAsArray());
+            }
             
             for(Roi roi1: roisTemp) {
                 if(!roi1.getName().contains("_2")) {
@@ -412,6 +723,54 @@ public class Tools {
     }
     
     
+    /**
+     * Read ROIs of a .roi or .zip file without ROI Manager
+     */
+    private List<Roi> readRois(String path) {
+        List<Roi> rois = new ArrayList<>();
+        try {
+            if (path.endsWith(".roi")) {
+                Roi roi = RoiDecoder.open(path);
+                if (roi != null) {
+                    if (roi.getName() == null)
+                        roi.setName(FilenameUtils.getBaseName(path));
+                    rois.add(roi);
+                }
+                return(rois);
+            }
+            try (ZipInputStream zip = new ZipInputStream(new FileInputStream(path))) {
+                for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                    if (!entry.getName().endsWith(".roi"))
+                        continue;
+                    Roi roi = new RoiDecoder(IOUtils.toByteArray(zip), entry.getName()).getRoi();
+                    if (roi != null) {
+                        if (roi.getName() == null)
+                            roi.setName(FilenameUtils.getBaseName(entry.getName()));
+                        rois.add(roi);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("WARNING: could not read ROIs " + path + ": " + e.getMessage());
+        }
+        return(rois);
+    }
+    
+    
+    /**
+     * Open image channel into a memory-mapped stack, plane by plane
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImagePlus openChannelOutOfCore(String imageName, int channel, String title) throws FormatException, IOException {
+        ImageProcessorReader reader = new ImageProcessorReader();
+        reader.setId(imageName);
+        MappedStack stack = MappedStack.fromReader(reader, channel, outOfCoreDir, title);
+        reader.close();
+        return(new ImagePlus(title, stack));
+    }
+    
+    
     /**
      * Detect 3D vessels in a Z-stack with 2 different methods:
      * - Cellpose 2D applied slice by slice 
@@ -419,20 +778,18 @@ public class Tools {
      * @throws java.io.IOException
      */
     public ImagePlus vesselSegmentation(ImagePlus img, Calibration cal) throws IOException{
+        if (img.getStack() instanceof MappedStack)
+            return(vesselSegmentationOutOfCore(img, cal));
+        
+        if (chunked)
+            return(vesselSegmentationChunked(img, cal));
+        
         ImagePlus imgBin = null;
         if(vesselSegMethod == "Cellpose") {
-            // Define CellPose settings
-            CellposeTaskSettings settings = new CellposeTaskSettings(cellposeModelsPath+cellposeModelVessel, 1, cellposeDiamVessel, cellposeEnvPath);
-            settings.setStitchThreshold(cellposeStitchThVessel);
-            settings.useGpu(true);
-
-            // Run CellPose
-            ImagePlus imgIn = new Duplicator().run(img);
-            CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgIn);
-            imgBin = cellpose.run();
-            
-            closeImage(imgIn);
-            
+            imgBin = vesselCellpose(img);
+        } else if(vesselSegMethod == "Thresholding" && streamingThreshold) {
+            imgBin = new ImagePlus(img.getShortTitle() + "-bin", ImageStack.create(img.getWidth(), img.getHeight(), img.getNSlices(), 8));
+            vesselThresholdStreaming(img.getStack(), imgBin.getStack());
         } else if(vesselSegMethod == "Thresholding") {
             ImagePlus imgMed = medianFilter(img, true, 2, 0);
             ImagePlus imgDOG = DOG(imgMed, 5, 10);
@@ -465,10 +822,144 @@ public class Tools {
     }
     
     
+    /**
+     * Detect 3D vessels with Cellpose 2D applied slice by slice and stitched in 3D
+     */
+    private ImagePlus vesselCellpose(ImagePlus img) {
+        // Masks already computed with all images
+        if (vesselBatch != null && vesselBatch.contains(currentImage))
+            return(takeFromBatch(vesselBatch, img.getCalibration()));
+        
+        // Run CellPose
+        ImagePlus imgIn = new Duplicator().run(img);
+        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(vesselCellposeSettings(), imgIn);
+        ImagePlus imgBin = cellpose.run();
+        
+        closeImage(imgIn);
+        if (imgBin == null)
+            throw new RuntimeException("Cellpose failed on image " + currentImage);
+        return(imgBin);
+    }
+    
+    
+    /**
+     * Define vessels CellPose settings
+     */
+    private CellposeTaskSettings vesselCellposeSettings() {
+        CellposeTaskSettings settings = new CellposeTaskSettings(cellposeModelsPath+cellposeModelVessel, 1, cellposeDiamVessel, cellposeEnvPath);
+        settings.setStitchThreshold(cellposeStitchThVessel);
+        settings.useGpu(true);
+        settings.usePersistentWorker(persistentWorker);
+        settings.useCache(maskCache);
+        return(settings);
+    }
+    
+    
+    /**
+     * Detect 3D vessels chunk by chunk in parallel
+     * Chunks halos are sized from filters radii (median 2, DoG 40 as CLIJ Gaussian kernel of sigma 10, closing 6),
+     * threshold is computed on the whole image histogram and labels are merged across chunks borders
+     * Filtered chunks are only pasted into the final mask: median and DoG are computed twice per chunk,
+     * for the histogram and for the mask, instead of being kept for the whole image
+     */
+    private ImagePlus vesselSegmentationChunked(ImagePlus img, Calibration cal) {
+        ChunkEngine engine = new ChunkEngine(chunkSizeXY, chunkSizeZ, ThreadUtil.getNbCpus());
+        int filterHalo = 2 + 4*10, closingHaloXY = 2*6+2, closingHaloZ = 2*1+1;
+        
+        ImagePlus imgOut;
+        if(vesselSegMethod == "Cellpose" || streamingThreshold) {
+            ImagePlus imgBin;
+            if (vesselSegMethod == "Cellpose") {
+                imgBin = vesselCellpose(img);
+            } else {
+                imgBin = new ImagePlus(img.getShortTitle() + "-bin", ImageStack.create(img.getWidth(), img.getHeight(), img.getNSlices(), 8));
+                vesselThresholdStreaming(img.getStack(), imgBin.getStack());
+            }
+            // Remove small objects and connect remaining ones
+            imgOut = engine.map(imgBin, closingHaloXY, closingHaloZ, 8, this::vesselClosing);
+            closeImage(imgBin);
+        } else {
+            double th = countsThreshold(engine.counts(img, filterHalo, 0, this::vesselFilter), vesselThMethod);
+            imgOut = engine.map(img, filterHalo + closingHaloXY, closingHaloZ, 8, chunk -> {
+                ImagePlus imgDOG = vesselFilter(chunk);
+                ImagePlus imgBin = binarize(imgDOG, th);
+                closeImage(imgDOG);
+                ImagePlus imgClose = vesselClosing(imgBin);
+                closeImage(imgBin);
+                return(imgClose);
+            });
+        }
+        
+        // Label detections across chunks and filter them by size, in place
+        engine.filterSize(imgOut, minVesselVol, cal);
+        ImagePlus imgMask = new ImagePlus(img.getShortTitle() + "-mask", imgOut.getStack());
+        imgMask.setCalibration(cal);
+        return(imgMask);
+    }
+    
+    
+    /**
+     * Closing and median filtering of vessels binary mask, to remove small objects and connect remaining ones
+     */
+    private ImagePlus vesselClosing(ImagePlus imgBin) {
+        ImagePlus imgClose = closingFilter(imgBin, 6, 1);
+        ImagePlus imgMed = medianFilter(imgClose, false, 2, 1);
+        closeImage(imgClose);
+        return(imgMed);
+    }
+    
+    
+    /**
+     * Detect 3D vessels in a memory-mapped Z-stack, slab by slab
+     * Cellpose still needs the whole stack in memory, only its post-processing is done out of core
+     * @throws java.io.IOException
+     */
+    private ImagePlus vesselSegmentationOutOfCore(ImagePlus img, Calibration cal) throws IOException {
+        SlabProcessor slabs = new SlabProcessor(outOfCoreDir, slabDepth);
+        MappedStack bin;
+        if(vesselSegMethod == "Cellpose") {
+            print("WARNING: Cellpose segmentation is done in memory");
+            ImagePlus imgCellpose = vesselCellpose(img);
+            bin = MappedStack.fromImagePlus(imgCellpose, outOfCoreDir);
+            closeImage(imgCellpose);
+        } else if (streamingThreshold) {
+            bin = MappedStack.createSameDimensions(outOfCoreDir, "threshold", img.getStack(), 8);
+            vesselThresholdStreaming(img.getStack(), bin);
+        } else {
+            MappedStack in = (MappedStack) img.getStack();
+            MappedStack med = slabs.filter(in, "median", 0, 16, slab -> medianFilter(slab, true, 2, 0));
+            MappedStack dog = slabs.filter(med, "dog", 0, 16, slab -> DOG(slab, 5, 10));
+            med.close();
+            bin = slabs.threshold(dog, vesselThMethod);
+            dog.close();
+        }
+        
+        // Remove small objects and connect remaining ones
+        // Closing = max + min filtering, so it needs twice its Z radius as halo
+        MappedStack close = slabs.filter(bin, "closing", 2, 8, slab -> closingFilter(slab, 6, 1));
+        bin.close();
+        MappedStack out = slabs.filter(close, "median", 1, 8, slab -> medianFilter(slab, false, 2, 1));
+        close.close();
+        
+        // Filter detections by size
+        MappedStack mask = slabs.labelAndFilterSize(out, minVesselVol, cal);
+        out.close();
+        
+        ImagePlus imgMask = new ImagePlus(img.getShortTitle() + "-mask", mask);
+        imgMask.setCalibration(cal);
+        return(imgMask);
+    }
+    
+    
     /**
      * Segment microglia with median filtering + thresholding + closing filtering
      */
     public Objects3DIntPopulation microSegmentation(ImagePlus img, Calibration cal) {
+        if (img.getStack() instanceof MappedStack)
+            return(microSegmentationOutOfCore(img, cal));
+        if (chunked)
+            return(microSegmentationChunked(img, cal));
+        
         ImagePlus imgMed = medianFilter(img, false, 2, 1);
         ImagePlus imgBin = threshold(imgMed, microThMethod);
         ImagePlus imgClose = closingFilter(imgBin, 2, 2);
@@ -490,34 +981,173 @@ public class Tools {
     
     
     /**
-     * Segment endothelial nuclei with median filtering + Omnipose
+     * Segment microglia chunk by chunk in parallel
+     * Threshold is computed on the whole image histogram and labels are merged across chunks borders
+     * Median is computed twice per chunk, for the histogram and for the mask, instead of being kept for the whole image
      */
-    public Objects3DIntPopulation endoSegmentation(ImagePlus img, Calibration cal) {
-        int nSlices = img.getDimensions()[3];
-       
-        // Median filter
-        ImagePlus imgMed = medianFilter(img, false, 1, 1);
-        imgMed.setDimensions​(1, 1, nSlices);
+    private Objects3DIntPopulation microSegmentationChunked(ImagePlus img, Calibration cal) {
+        ChunkEngine engine = new ChunkEngine(chunkSizeXY, chunkSizeZ, ThreadUtil.getNbCpus());
+        double th = countsThreshold(engine.counts(img, 2, 1, chunk -> medianFilter(chunk, false, 2, 1)), microThMethod);
+        ImagePlus imgClose = engine.map(img, 2+2*2, 1+2*2, 8, chunk -> {
+            ImagePlus imgMed = medianFilter(chunk, false, 2, 1);
+            ImagePlus imgBin = binarize(imgMed, th);
+            closeImage(imgMed);
+            ImagePlus imgChunkClose = closingFilter(imgBin, 2, 2);
+            closeImage(imgBin);
+            return(imgChunkClose);
+        });
         
-        // Set Omnipose settings
+        ImagePlus imgLabels = engine.labelAndFilterSize(imgClose, microMinVol, cal);
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgLabels));
+        closeImage(imgClose);
+        closeImage(imgLabels);
+        return(pop);
+    }
+    
+    
+    /**
+     * Segment microglia in a memory-mapped Z-stack, slab by slab
+     * Only the size-filtered mask is loaded in memory to build the population
+     */
+    private Objects3DIntPopulation microSegmentationOutOfCore(ImagePlus img, Calibration cal) {
+        try {
+            SlabProcessor slabs = new SlabProcessor(outOfCoreDir, slabDepth);
+            MappedStack med = slabs.filter((MappedStack) img.getStack(), "median", 1, 16, slab -> medianFilter(slab, false, 2, 1));
+            MappedStack bin = slabs.threshold(med, microThMethod);
+            med.close();
+            MappedStack close = slabs.filter(bin, "closing", 4, 8, slab -> closingFilter(slab, 2, 2));
+            bin.close();
+            MappedStack mask = slabs.labelAndFilterSize(close, microMinVol, cal);
+            close.close();
+            
+            ImagePlus imgMask = new ImagePlus(img.getShortTitle() + "-mask", mask);
+            imgMask.setCalibration(cal);
+            Objects3DIntPopulation pop = getPopFromImage(imgMask);
+            System.out.println("Nb objects remaining after size filtering: " + pop.getNbObjects());
+            closeImage(imgMask);
+            return(pop);
+        } catch (IOException e) {
+            throw new RuntimeException("Out-of-core microglia segmentation failed", e);
+        }
+    }
+    
+    
+    /**
+     * Median filter endothelial nuclei channel and turn slices into frames, so that Omnipose segments them one by one
+     */
+    private ImagePlus endoOmniposeInput(ImagePlus img) {
+        ImagePlus imgMed = medianFilter(img, false, 1, 1);
+        imgMed.setDimensions​(1, 1, img.getDimensions()[3]);
+        return(imgMed);
+    }
+    
+    
+    /**
+     * Define endothelial nuclei Omnipose settings
+     */
+    private CellposeTaskSettings endoOmniposeSettings() {
         CellposeTaskSettings settings = new CellposeTaskSettings(omniposeModelsPath+omniposeModelEndo, 1, omniposeDiamEndo, omniposeEnvPath);
         settings.setVersion("0.7");
         settings.setCluster(true);
         settings.setOmni(true);
         settings.useGpu(true);
-
-        // Run Omnipose
-        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgMed);
-        PrintStream console = System.out;
-        System.setOut(new NullPrintStream());
-        ImagePlus imgBin = cellpose.run();
-        System.setOut(console);
+        settings.usePersistentWorker(persistentWorker);
+        settings.useCache(maskCache);
+        // Omnipose output is silenced for this job only, other jobs keep printing in the console
+        settings.setOutput(new NullPrintStream());
+        return(settings);
+    }
+    
+    
+    /**
+     * Create Cellpose/Omnipose batches, for vessels if segmented with Cellpose and for endothelial nuclei if asked
+     */
+    public void openCellposeBatches(File dir, boolean endo) {
+        if (vesselSegMethod == "Cellpose")
+            vesselBatch = new CellposeBatch(vesselCellposeSettings(), new File(dir, "vessels"));
+        if (endo)
+            endoBatch = new CellposeBatch(endoOmniposeSettings(), new File(dir, "endothelium"));
+    }
+    
+    
+    /**
+     * Submit image channels to Cellpose/Omnipose batches
+     * @throws java.io.IOException
+     */
+    public void submitToCellposeBatches(String rootName, ImagePlus imgVessels, ImagePlus imgEndo) throws IOException {
+        if (vesselBatch != null)
+            vesselBatch.submit(rootName, imgVessels);
+        if (endoBatch != null && imgEndo != null) {
+            ImagePlus imgMed = endoOmniposeInput(imgEndo);
+            endoBatch.submit(rootName, imgMed);
+            closeImage(imgMed);
+        }
+    }
+    
+    
+    /**
+     * Start Cellpose/Omnipose inference on all submitted images in the background
+     */
+    public void startCellposeBatches() {
+        if (vesselBatch != null) vesselBatch.start();
+        if (endoBatch != null) endoBatch.start();
+    }
+    
+    
+    /**
+     * Stop Cellpose/Omnipose batches and delete their files
+     */
+    public void closeCellposeBatches() {
+        if (vesselBatch != null) vesselBatch.close();
+        if (endoBatch != null) endoBatch.close();
+        vesselBatch = null;
+        endoBatch = null;
+    }
+    
+    
+    /**
+     * Wait for masks of current image in batch
+     */
+    private ImagePlus takeFromBatch(CellposeBatch batch, Calibration cal) {
+        try {
+            ImagePlus imgMasks = batch.take(currentImage);
+            imgMasks.setCalibration(cal);
+            return(imgMasks);
+        } catch (IOException e) {
+            throw new RuntimeException("Cellpose failed on image " + currentImage, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for Cellpose masks of image " + currentImage, e);
+        }
+    }
+    
+    
+    /**
+     * Segment endothelial nuclei with median filtering + Omnipose
+     */
+    public Objects3DIntPopulation endoSegmentation(ImagePlus img, Calibration cal) {
+        int nSlices = img.getDimensions()[3];
+       
+        // Median filter + Omnipose, unless masks were already computed with all images
+        ImagePlus imgMed = null;
+        ImagePlus imgBin;
+        if (endoBatch != null && endoBatch.contains(currentImage)) {
+            imgBin = takeFromBatch(endoBatch, cal);
+        } else {
+            imgMed = endoOmniposeInput(img);
+            CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(endoOmniposeSettings(), imgMed);
+            imgBin = cellpose.run();
+            if (imgBin == null) {
+                closeImage(imgMed);
+                throw new RuntimeException("Omnipose failed on image " + currentImage);
+            }
+        }
         imgBin.setDimensions​(1, nSlices, 1);
         imgBin.setCalibration(cal);
         
-        // Get population of objects
-        ImagePlus imgStitch = stitch3D(imgBin);
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgStitch));
+        // Stitch 2D masks into 3D volumes, in place, and get population of objects
+        new MaskStitcher(stitchMinColoc).stitch(imgBin);
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgBin));
         System.out.println("Nb objects detected: " + pop.getNbObjects());
 
         // Filter objects
@@ -525,29 +1155,38 @@ public class Tools {
         popFilterSize(pop, endoMinVol, Double.MAX_VALUE);
         System.out.println("Nb objects remaining after filtering: " + pop.getNbObjects());
 
-        closeImage(imgMed);
+        if (imgMed != null) closeImage(imgMed);
         closeImage(imgBin);
-        closeImage(imgStitch);
         return(pop);
     }
     
     
+    private synchronized CLIJ2 getClij2() {
+        if (clij2Instance == null)
+            clij2Instance = CLIJ2.getInstance();
+        return(clij2Instance);
+    }
+    
+    
     /**
      * Closing filtering using CLIJ2
      */ 
     private ImagePlus closingFilter(ImagePlus img, double sizeXY, double sizeZ) {
-       ClearCLBuffer imgCL = clij2.push(img);
-       ClearCLBuffer imgCLMax = clij2.create(imgCL);
-       clij2.maximum3DBox(imgCL, imgCLMax, sizeXY, sizeXY, sizeZ);
+       CLIJ2 clij2 = getClij2();
+       synchronized (clij2) {
+           ClearCLBuffer imgCL = clij2.push(img);
+           ClearCLBuffer imgCLMax = clij2.create(imgCL);
+           clij2.maximum3DBox(imgCL, imgCLMax, sizeXY, sizeXY, sizeZ);
 
-       ClearCLBuffer imgCLMin = clij2.create(imgCLMax);
-       clij2.minimum3DBox(imgCLMax, imgCLMin, sizeXY, sizeXY, sizeZ);
-       ImagePlus imgMin = clij2.pull(imgCLMin);
-       
-       clij2.release(imgCL);
-       clij2.release(imgCLMax);
-       clij2.release(imgCLMin);
-       return(imgMin);
+           ClearCLBuffer imgCLMin = clij2.create(imgCLMax);
+           clij2.minimum3DBox(imgCLMax, imgCLMin, sizeXY, sizeXY, sizeZ);
+           ImagePlus imgMin = clij2.pull(imgCLMin);
+           
+           clij2.release(imgCL);
+           clij2.release(imgCLMax);
+           clij2.release(imgCLMin);
+           return(imgMin);
+       }
     }
     
     
@@ -555,16 +1194,19 @@ public class Tools {
      * 3D median filtering using CLIJ2
      */ 
     private ImagePlus medianFilter(ImagePlus img, boolean sliceBySlice, double sizeXY, double sizeZ) {
-        ClearCLBuffer imgCL = clij2.push(img); 
-        ClearCLBuffer imgCLMed = clij2.create(imgCL);
-        if (sliceBySlice)
-            clij2.median3DSliceBySliceSphere(imgCL, imgCLMed, sizeXY, sizeXY);
-        else
-            clij2.median3DSphere(imgCL, imgCLMed, sizeXY, sizeXY, sizeZ);
-        ImagePlus imgMed = clij2.pull(imgCLMed);
-        clij2.release(imgCL);
-        clij2.release(imgCLMed);
-        return(imgMed);
+        CLIJ2 clij2 = getClij2();
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img); 
+            ClearCLBuffer imgCLMed = clij2.create(imgCL);
+            if (sliceBySlice)
+                clij2.median3DSliceBySliceSphere(imgCL, imgCLMed, sizeXY, sizeXY);
+            else
+                clij2.median3DSphere(imgCL, imgCLMed, sizeXY, sizeXY, sizeZ);
+            ImagePlus imgMed = clij2.pull(imgCLMed);
+            clij2.release(imgCL);
+            clij2.release(imgCLMed);
+            return(imgMed);
+        }
     }
     
             
@@ -572,13 +1214,16 @@ public class Tools {
      * Difference of Gaussians using CLIJ
      */ 
     private ImagePlus DOG(ImagePlus img, double size1, double size2) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLDOG = clij2.create(imgCL);
-        clij2.differenceOfGaussian2D(imgCL, imgCLDOG, size1, size1, size2, size2);
-        clij2.release(imgCL);
-        ImagePlus imgDOG = clij2.pull(imgCLDOG); 
-        clij2.release(imgCLDOG);
-        return(imgDOG);
+        CLIJ2 clij2 = getClij2();
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            ClearCLBuffer imgCLDOG = clij2.create(imgCL);
+            clij2.differenceOfGaussian2D(imgCL, imgCLDOG, size1, size1, size2, size2);
+            clij2.release(imgCL);
+            ImagePlus imgDOG = clij2.pull(imgCLDOG); 
+            clij2.release(imgCLDOG);
+            return(imgDOG);
+        }
     }
 
     
@@ -586,59 +1231,121 @@ public class Tools {
      * Automatic thresholding using CLIJ2
      */
     private ImagePlus threshold(ImagePlus img, String thMed) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        clij2.release(imgCL);
-        clij2.release(imgCLBin);
-        return(imgBin);
+        CLIJ2 clij2 = getClij2();
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            ClearCLBuffer imgCLBin = clij2.create(imgCL);
+            clij2.automaticThreshold(imgCL, imgCLBin, thMed);
+            ImagePlus imgBin = clij2.pull(imgCLBin);
+            clij2.release(imgCL);
+            clij2.release(imgCLBin);
+            return(imgBin);
+        }
     }
     
-   
+    
     /**
-     * Return population of 3D objects population from binary image
+     * Vessels median + DoG filtering and automatic thresholding, streamed slab by slab into 8-bit stack out
+     * Both filters are 2D, so that slabs need no halo: a first pass filters slabs and accumulates the histogram
+     * of the whole filtered stack, the threshold is computed once on it, and a second pass filters slabs again
+     * and binarizes them. Only a slab and one histogram are held, instead of median and DoG stacks
+     * Filtered 16-bit values are counted exactly, then binned as in countsThreshold()
      */
-    private Objects3DIntPopulation getPopFromImage(ImagePlus img) {
-        ImageInt labels = new ImageLabeller().getLabels(ImageHandler.wrap(img));
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
-        labels.closeImagePlus();
-        return(pop);
+    private void vesselThresholdStreaming(ImageStack in, ImageStack out) {
+        long[] counts = new long[65536];
+        for (int z0 = 0; z0 < in.getSize(); z0 += slabDepth) {
+            ImagePlus slabDOG = vesselFilterSlab(in, z0, Math.min(in.getSize(), z0 + slabDepth));
+            for (int z = 1; z <= slabDOG.getStackSize(); z++) {
+                ImageProcessor ip = slabDOG.getStack().getProcessor(z);
+                for (int i = 0; i < ip.getPixelCount(); i++)
+                    counts[ip.get(i)]++;
+            }
+            closeImage(slabDOG);
+        }
+        
+        double th = countsThreshold(counts, vesselThMethod);
+        
+        for (int z0 = 0; z0 < in.getSize(); z0 += slabDepth) {
+            ImagePlus slabDOG = vesselFilterSlab(in, z0, Math.min(in.getSize(), z0 + slabDepth));
+            for (int z = 1; z <= slabDOG.getStackSize(); z++) {
+                ImageProcessor ip = slabDOG.getStack().getProcessor(z);
+                byte[] bin = new byte[ip.getPixelCount()];
+                for (int i = 0; i < bin.length; i++)
+                    if (ip.get(i) >= th)
+                        bin[i] = 1;
+                out.setPixels(bin, z0 + z);
+            }
+            closeImage(slabDOG);
+        }
     }
     
     
     /**
-     * Stitch 2D masks into 3D volumes in a stack
+     * Automatic threshold from exact counts of 16-bit values, binned on 256 bins between min and max values
      */
-    private ImagePlus stitch3D(ImagePlus img) {
-        maxLabel = 0;
-        IJ.run(img, "Select None", "");
-        
-        ImagePlus[] slices = new ImagePlus[img.getNSlices()];
-        slices[0] = img.crop(1+"-"+1);
-        for (int i = 1; i < img.getNSlices(); i++) {
-            ImagePlus nextSlice = img.crop((i+1)+"-"+(i+1));
-            slices[i] = associate(slices[i-1], nextSlice);
-            closeImage(nextSlice);            
-        }
-        
-        ImagePlus imgStitch = new Concatenator().concatenate(slices, false);
-        imgStitch.setDimensions(1, imgStitch.getNFrames(), 1);
-        return(imgStitch);
+    private double countsThreshold(long[] counts, String thMethod) {
+        int min = 0, max = counts.length - 1;
+        while (min < max && counts[min] == 0) min++;
+        while (max > min && counts[max] == 0) max--;
+        long[] histogram = new long[256];
+        double scale = (max > min) ? 255.0 / (max - min) : 0;
+        for (int v = min; v <= max; v++)
+            histogram[(int) ((v - min) * scale)] += counts[v];
+        return(SlabProcessor.getThreshold(histogram, min, max, thMethod));
     }
     
     
-    /** 
-     * Associate 2D masks of slice z-1 with 2D masks of slice z
+    /**
+     * Median + DoG filtering of slices z0 to z1 (excluded) of a 16-bit stack
      */
-    private ImagePlus associate(ImagePlus imp1, ImagePlus imp2) {
-        TrackingAssociation association = new TrackingAssociation(ImageInt.wrap(imp1), ImageInt.wrap(imp2), 0, 0.1);
-        association.setMaxLabel(maxLabel);
-        ImageHandler imp2Associated = association.getTrackedImage();
-        maxLabel = association.getMaxLabel();
-        return(imp2Associated.getImagePlus());
+    private ImagePlus vesselFilterSlab(ImageStack in, int z0, int z1) {
+        ImageStack slab = new ImageStack(in.getWidth(), in.getHeight());
+        for (int z = z0; z < z1; z++)
+            slab.addSlice(in.getProcessor(z + 1));
+        return(vesselFilter(new ImagePlus("slab", slab)));
     }
-      
+    
+    
+    /**
+     * Vessels 2D median + DoG filtering
+     */
+    private ImagePlus vesselFilter(ImagePlus img) {
+        ImagePlus imgMed = medianFilter(img, true, 2, 0);
+        ImagePlus imgDOG = DOG(imgMed, 5, 10);
+        closeImage(imgMed);
+        return(imgDOG);
+    }
+    
+    
+    /**
+     * Binarize image with given threshold (voxels >= threshold are set to 1)
+     */
+    private ImagePlus binarize(ImagePlus img, double th) {
+        ImageStack stackBin = new ImageStack(img.getWidth(), img.getHeight());
+        for (int z = 1; z <= img.getStackSize(); z++) {
+            ImageProcessor ip = img.getStack().getProcessor(z);
+            ByteProcessor bp = new ByteProcessor(img.getWidth(), img.getHeight());
+            for (int i = 0; i < ip.getPixelCount(); i++)
+                if (ip.getf(i) >= th)
+                    bp.set(i, 1);
+            stackBin.addSlice(bp);
+        }
+        ImagePlus imgBin = new ImagePlus(img.getShortTitle() + "-bin", stackBin);
+        imgBin.setCalibration(img.getCalibration());
+        return(imgBin);
+    }
+    
+   
+    /**
+     * Return population of 3D objects population from binary image
+     */
+    private Objects3DIntPopulation getPopFromImage(ImagePlus img) {
+        ImageInt labels = new ImageLabeller().getLabels(ImageHandler.wrap(img));
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
+        labels.closeImagePlus();
+        return(pop);
+    }
+    
     
     /**
      * Remove object with size < min and size > max
@@ -662,12 +1369,19 @@ public class Tools {
      * Skeletonize 3D with CLIJ2
      */
     public ImagePlus skeletonize3D(ImagePlus img, Calibration cal) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLSkel = clij2.create(imgCL);
-        new BoneJSkeletonize3D().bonejSkeletonize3D(clij2,imgCL, imgCLSkel);
-        ImagePlus imgSkel = clij2.pull(imgCLSkel);
-        clij2.release(imgCL);
-        clij2.release(imgCLSkel);
+        // Skeletonization needs the whole mask in memory
+        if (img.getStack() instanceof MappedStack)
+            img = new Duplicator().run(img);
+        ImagePlus imgSkel;
+        CLIJ2 clij2 = getClij2();
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            ClearCLBuffer imgCLSkel = clij2.create(imgCL);
+            new BoneJSkeletonize3D().bonejSkeletonize3D(clij2,imgCL, imgCLSkel);
+            imgSkel = clij2.pull(imgCLSkel);
+            clij2.release(imgCL);
+            clij2.release(imgCLSkel);
+        }
         
         IJ.run(imgSkel, "8-bit","");
         imgSkel.setCalibration(cal);
@@ -728,87 +1442,175 @@ public class Tools {
      * Compute parameters and save results for each ROI
      * @throws java.io.IOException
      */
-    public void saveResults(List<Roi> rois, ImagePlus imgVesselMask, ImagePlus imgVesselSkel, ImageFloat vesselDistMap, ImageFloat vesselDistMapInv, 
+    public void saveResults(List<Roi> rois, ImagePlus imgVesselMask, ImagePlus imgVesselSkel, DistanceMap vesselDistMap, DistanceMap vesselDistMapInv, 
                             Objects3DIntPopulation microPop, Objects3DIntPopulation endoPop, ImagePlus imgVessels, ImagePlus imgMicro, 
-                            ImagePlus imgEndo, Calibration cal, BufferedWriter vesselResults, BufferedWriter microResults, BufferedWriter globalResults, 
-                            String imgName, String dirName) throws IOException {        
+                            ImagePlus imgEndo, Calibration cal, ImageRows rows, String imgName, String dirName) throws IOException {        
         
-        ImageHandler imhVessels = ImageHandler.wrap(imgVessels).createSameDimensions();
-        ImageHandler imhMicro = imhVessels.createSameDimensions();
-        ImageHandler imhMicroClass = imhVessels.createSameDimensions();
-        ImageHandler imhEndo = imhVessels.createSameDimensions();
+        // Drawings are sparse, dense stacks are only built when saving images
+        SparseOverlay drawVessels = new SparseOverlay(imgVessels, 16);
+        SparseOverlay drawMicro = new SparseOverlay(imgVessels, 16);
+        SparseOverlay drawMicroClass = new SparseOverlay(imgVessels, 16);
+        SparseOverlay drawEndo = new SparseOverlay(imgVessels, 16);
+        SparseOverlay drawTagSkel = new SparseOverlay(imgVessels, 8);
         
-        ImageStack stackTagSkel = new ImageStack(imgVessels.getWidth(), imgVessels.getHeight());
-        for (int z = 0; z < imgVessels.getNSlices(); z++)
-            stackTagSkel.addSlice(new ByteProcessor(imgVessels.getWidth(), imgVessels.getHeight()));
-        
-        AtomicInteger microLabel = new AtomicInteger(1);
-
-        for (Roi roi: rois) {
-            print("- Computing parameters and saving results for ROI " + roi.getName() + " -");
-            
-            // VESSELS
-            // Get vessels in (translated) non-dilated ROI
-            ImagePlus imgVesselMaskRoi = clearOutsideRoi(imgVesselMask, roi, false, cal);
-            Object3DInt objVesselMaskRoi = new Object3DInt(ImageHandler.wrap(imgVesselMaskRoi));
-            double vesselVol = new MeasureVolume(objVesselMaskRoi).getVolumeUnit();
-            if (imgMicro == null) objVesselMaskRoi.drawObject(imhVessels, 128);
-            closeImage(imgVesselMaskRoi);
+        // ROIs measured concurrently, each task working on its own copy of the ROI and writing its own rows
+        ExecutorService roiPool = Executors.newFixedThreadPool(roiTasks(rois.size(), imgVesselMask));
+        try {
+            List<Roi> roiCopies = new ArrayList<>();
+            List<RoiLookup> roiLookups = new ArrayList<>();
+            List<ImageRows.RoiRows> roisRows = new ArrayList<>();
+            for (int r = 0; r < rois.size(); r++) {
+                roiCopies.add((Roi) rois.get(r).clone());
+                roiLookups.add(new RoiLookup(roiCopies.get(r), imgVessels.getNSlices()));
+                roisRows.add(rows.roi(r));
+            }
             
-            // Begin to write parameters in global results file
-            double roiVol = computeRoiVolume(roi, imgVessels, cal);
-            globalResults.write(imgName+"\t"+cal.pixelWidth+"\t"+roi.getName()+"\t"+!roi.getProperty("translation").equals("0_0")+
-                                "\t"+roiVol+"\t"+vesselVol+"\t"+vesselVol/roiVol*1e6);
-            globalResults.flush();
+            // Objects centroids computed once for all ROIs
+            int[][] microCentroids = (imgMicro != null) ? roundedCentroids(microPop) : null;
+            int[][] endoCentroids = (imgEndo != null) ? roundedCentroids(endoPop) : null;
             
-            // Write vessels skeleton parameters in global results file
-            double vesselTotalLength = saveVesselResultsInRoi(roi, imgVesselSkel, vesselDistMap, stackTagSkel, 
-                                                              globalResults, vesselResults, cal, imgName);
-
-            // MICROGLIA
+            // Microglia IDs numbered in ROI order, as if ROIs were measured one after the other
+            List<Objects3DIntPopulation> microPopsInRoi = new ArrayList<>();
+            int[] firstMicroLabels = new int[rois.size()];
             if (imgMicro != null) {
-                // Get vessels in (translated) dilated ROI
-                ImagePlus imgVesselMaskRoiDil = clearOutsideRoi(imgVesselMask, roi, true, cal);
-                new Object3DInt(ImageHandler.wrap(imgVesselMaskRoiDil)).drawObject(imhVessels, 128);
-                saveMicroResultsInRoi(roi, microPop, imgMicro, imhMicro, imhMicroClass, microLabel, imgVesselMaskRoiDil, imgVesselSkel,
-                                      vesselDistMap, vesselDistMapInv, cal, vesselVol, microResults, globalResults, imgName, roi.getName());
-                closeImage(imgVesselMaskRoiDil);
+                int label = 1;
+                for (int r = 0; r < rois.size(); r++) {
+                    microPopsInRoi.add(getPopInsideRoi(microPop, microCentroids, roiLookups.get(r)));
+                    firstMicroLabels[r] = label;
+                    label += microPopsInRoi.get(r).getNbObjects();
+                }
             }
             
-            // ENDOTHELIAL NUCLEI
-            if (imgEndo != null)
-                saveEndoResultsInRoi(roi, endoPop, imgEndo, imhEndo, roiVol, vesselTotalLength, globalResults);
+            List<Future<int[]>> measurements = new ArrayList<>();
+            for (int r = 0; r < rois.size(); r++) {
+                int roiIndex = r;
+                measurements.add(roiPool.submit(() -> {
+                    Roi roi = roiCopies.get(roiIndex);
+                    ImageRows.RoiRows roiRows = roisRows.get(roiIndex);
+                    print("- Computing parameters and saving results for ROI " + roi.getName() + " -");
+                    StageMetrics.Sample roiSample = metrics.start(imgName, "ROI " + roi.getName() + " measurement");
+
+                    // VESSELS
+                    // Get vessels in (translated) non-dilated ROI
+                    ImagePlus imgVesselMaskRoi = clearOutsideRoi(imgVesselMask, roi, false, cal);
+                    Object3DInt objVesselMaskRoi = new Object3DInt(ImageHandler.wrap(imgVesselMaskRoi));
+                    double vesselVol = new MeasureVolume(objVesselMaskRoi).getVolumeUnit();
+                    if (imgMicro == null) drawVessels.draw(objVesselMaskRoi, 128);
+                    closeImage(imgVesselMaskRoi);
+
+                    // Begin to write parameters in global results row
+                    double roiVol = computeRoiVolume(roi, imgVessels, cal);
+                    roiRows.global.add(imgName).add(cal.pixelWidth).add(roi.getName()).add(!roi.getProperty("translation").equals("0_0"))
+                                  .add(roiVol).add(vesselVol).add(vesselVol/roiVol*1e6);
+
+                    // Write vessels skeleton parameters in global results row
+                    double vesselTotalLength = saveVesselResultsInRoi(roi, imgVesselSkel, vesselDistMap, drawTagSkel, roiRows, cal, imgName);
+
+                    // MICROGLIA
+                    int[] microClasses = null;
+                    if (imgMicro != null) {
+                        // Get vessels in (translated) dilated ROI
+                        ImagePlus imgVesselMaskRoiDil = clearOutsideRoi(imgVesselMask, roi, true, cal);
+                        drawVessels.draw(new Object3DInt(ImageHandler.wrap(imgVesselMaskRoiDil)), 128);
+                        microClasses = saveMicroResultsInRoi(roi, microPopsInRoi.get(roiIndex), firstMicroLabels[roiIndex], imgVesselMaskRoiDil, imgVesselSkel,
+                                                             vesselDistMap, vesselDistMapInv, cal, vesselVol, roiRows, imgName, roi.getName());
+                        closeImage(imgVesselMaskRoiDil);
+                    }
+
+                    // ENDOTHELIAL NUCLEI
+                    if (imgEndo != null)
+                        saveEndoResultsInRoi(roiLookups.get(roiIndex), endoPop, endoCentroids, drawEndo, roiVol, vesselTotalLength, roiRows.global);
+
+                    roiSample.stop();
+                    return(microClasses);
+                }));
+            }
             
-            globalResults.write("\n");
-            globalResults.flush();
+            // Microglia drawn in ROI order once all ROIs are measured, so that cells in several ROIs get the same label and class as before
+            for (int r = 0; r < rois.size(); r++) {
+                int[] microClasses = get(measurements.get(r));
+                if (imgMicro == null)
+                    continue;
+                List<Object3DInt> micros = microPopsInRoi.get(r).getObjects3DInt();
+                for (int i = 0; i < micros.size(); i++) {
+                    drawMicro.draw(micros.get(i), firstMicroLabels[r] + i);
+                    if (microClasses[i] != 0)
+                        drawMicroClass.draw(micros.get(i), microClasses[i]);
+                }
+            }
+        } finally {
+            roiPool.shutdownNow();
         }
         
-        // Save drawings
-        saveImages(stackTagSkel, imhVessels, imhMicro, imhMicroClass, imhEndo, imgVessels, imgMicro, imgEndo, cal, imgName, dirName);
-        
-        imhVessels.closeImagePlus();
-        imhMicro.closeImagePlus();
-        imhMicroClass.closeImagePlus();
-        imhEndo.closeImagePlus();
+        // Save drawings in the background, channels must be kept open until overlays.whenDone()
+        overlays.submit(imgName, () -> {
+            StageMetrics.Sample savingSample = metrics.start(imgName, "images saving");
+            saveImages(drawTagSkel, drawVessels, drawMicro, drawMicroClass, drawEndo, imgVessels, imgMicro, imgEndo, cal, imgName, dirName);
+            savingSample.stop();
+        });
+    }
+    
+    
+    /**
+     * Number of ROIs measured at once, at most roiThreads, bounded by free heap:
+     * each ROI task holds up to 4 full-size 8-bit copies of vessels mask and skeleton, cleared outside its ROI,
+     * and half of free heap is left to the objects built from them
+     */
+    int roiTasks(int nbRois, ImagePlus imgMask) {
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long taskBytes = 4L * imgMask.getWidth() * imgMask.getHeight() * imgMask.getNSlices();
+        long fitting = Math.max(1, freeHeap / 2 / taskBytes);
+        int tasks = (int) Math.min(Math.min(roiThreads, fitting), Math.max(1, nbRois));
+        if (tasks < Math.min(roiThreads, nbRois))
+            print("ROIs measured " + tasks + " at a time to fit in memory");
+        return(tasks);
+    }
+    
+    
+    /**
+     * Result of a ROI task, with its exception thrown as is
+     */
+    private <T> T get(Future<T> future) throws IOException {
+        try {
+            return(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while measuring ROIs", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
     }
     
     
     /**
      * Compute ROI volume 
+     * Image is shared by ROI tasks, its ROI is only set while measuring
      */
     private double computeRoiVolume(Roi roi, ImagePlus img, Calibration cal) {
-        img.setRoi(roi);
-        double roiVolume = img.getStatistics().area * img.getNSlices() * cal.pixelDepth;
-        img.deleteRoi();
-        return(roiVolume);
+        synchronized (img) {
+            img.setRoi(roi);
+            double roiVolume = img.getStatistics().area * img.getNSlices() * cal.pixelDepth;
+            img.deleteRoi();
+            return(roiVolume);
+        }
     }
     
     
     /**
      * Clear image outside ROI translated across stack 
+     * Slices are translated and cleared on their own processors, not with the Translate command, whose offsets are shared by all threads
      */
-    private ImagePlus clearOutsideRoi(ImagePlus imgIn, Roi roi, boolean dilate, Calibration cal) {
-        ImagePlus img = new Duplicator().run(imgIn);
+    ImagePlus clearOutsideRoi(ImagePlus imgIn, Roi roi, boolean dilate, Calibration cal) {
+        // Duplicator reads image ROI and position, input image is shared by ROI tasks
+        ImagePlus img;
+        synchronized (imgIn) {
+            img = new Duplicator().run(imgIn);
+        }
                 
         int nbSlices = img.getNSlices();
         String[] translation = roi.getProperty("translation").split("_");
@@ -817,35 +1619,57 @@ public class Tools {
         double x_step = x / (nbSlices-1);
         double y_step = y / (nbSlices-1);
         
-        img.setRoi(dilate ? RoiEnlarger.enlarge(roi, roiDilation/cal.pixelWidth) : roi);
+        Roi clearRoi = dilate ? RoiEnlarger.enlarge(roi, roiDilation/cal.pixelWidth) : roi;
+        ImageStack stack = img.getStack();
         for(int i=1; i <= nbSlices; i++) {
-            img.setPosition(i);
+            ImageProcessor ip = stack.getProcessor(i);
+            ip.setRoi(clearRoi);
             if(i > 1)
-                IJ.run(img, "Translate... ", "x="+x_step+" y="+y_step); // in pixels
-            IJ.run(img, "Clear Outside", "slice");
+                translate(ip, x_step, y_step); // in pixels
+            ip.setValue(0);
+            ip.fillOutside(clearRoi);
         }
-        IJ.run(img, "Translate... ", "x="+(-1*x)+" y="+(-1*y)); // in pixels
-        img.deleteRoi();
+        // Last slice, current one at the end of the loop, moved back as the Translate command did
+        translate(stack.getProcessor(nbSlices), -1*x, -1*y); // in pixels
         
         return(img);
     }
     
     
+    /**
+     * Translate processor within its ROI, without interpolation and filling with 0, as the Translate command with default options
+     */
+    private void translate(ImageProcessor ip, double x, double y) {
+        ip.setInterpolationMethod(ImageProcessor.NONE);
+        ip.setBackgroundValue(0);
+        ip.translate(x, y);
+    }
+    
+    
     /**
      * Compute (inverse) distance map
+     * Out of core, distance map stays mapped and is read at measured voxels only
      */
-    public ImageFloat distanceMap3D(ImagePlus img, boolean inverse, Calibration cal) {
+    public DistanceMap distanceMap3D(ImagePlus img, boolean inverse, Calibration cal) {
         img.setCalibration(cal);
+        if (img.getStack() instanceof MappedStack) {
+            try {
+                SlabProcessor slabs = new SlabProcessor(outOfCoreDir, slabDepth);
+                return(new DistanceMap(slabs.distanceMap((MappedStack) img.getStack(), inverse, cal)));
+            } catch (IOException e) {
+                throw new RuntimeException("Out-of-core distance map failed", e);
+            }
+        }
         ImageFloat edt = new EDT().run(ImageHandler.wrap(img), 0, inverse, ThreadUtil.getNbCpus());
-        return(edt);
+        return(new DistanceMap(edt));
     }
     
     
     /**
-     * Compute vessels parameters in ROI and write them in global results file
+     * Compute vessels parameters in ROI and write them in global and vessels results rows
      */
-    private double saveVesselResultsInRoi(Roi roi, ImagePlus imgVesselSkel, ImageFloat distMap, ImageStack stackTagSkel,
-                                          BufferedWriter globalResults, BufferedWriter vesselResults, Calibration cal, String imgName) throws IOException {
+    private double saveVesselResultsInRoi(Roi roi, ImagePlus imgVesselSkel, DistanceMap distMap, SparseOverlay drawTagSkel,
+                                          ImageRows.RoiRows roiRows, Calibration cal, String imgName) {
         System.out.println("Computing vessels parameters...");
         
         // Get skeleton in (translated) non-dilated ROI
@@ -855,11 +1679,12 @@ public class Tools {
         SkeletonResult skelResult = skel.run(AnalyzeSkeleton_.NONE, false, false, null, true, false);
         closeImage(imgVesselSkelRoi);
         
-        // Save parameters in global results file
+        // Save parameters in global results row
         double totalLength = 0;
         if(skelResult.getBranches() == null) {
-            globalResults.write("\t0\t0\t0\t0\t0");
-            globalResults.flush(); 
+            roiRows.global.add(0).add(0).add(0).add(0).add(0);
+            for (double p : diameterPercentiles)
+                roiRows.global.add(0);
         } else {
             double[] branchLengths = skelResult.getAverageBranchLength();
             int[] branchNumbers = skelResult.getBranches();
@@ -868,105 +1693,123 @@ public class Tools {
             int nbBranches = IntStream.of(branchNumbers).sum();
             int nbJunctions = IntStream.of(skelResult.getJunctions()).sum();
             
-            DescriptiveStatistics diameters = new DescriptiveStatistics();
+            StreamingStats diameters = diameterStats();
             for (Point pt: skelResult.getListOfSlabVoxels())
-                diameters.addValue(distMap.getPixel(pt.x, pt.y, pt.z)*2);
+                diameters.add(distMap.getPixel(pt.x, pt.y, pt.z)*2);
                 
-            globalResults.write("\t"+totalLength+"\t"+nbBranches+"\t"+nbJunctions
-                                +"\t"+diameters.getMean()+"\t"+diameters.getStandardDeviation());
-            globalResults.flush();
+            roiRows.global.add(totalLength).add(nbBranches).add(nbJunctions).add(diameters.getMean()).add(diameters.getStandardDeviation());
+            for (double p : diameterPercentiles)
+                roiRows.global.add(diameters.getPercentile(p));
         }
         
-        // Save parameters in vessel results file
+        // Save parameters in vessel results rows
+        // Same accumulator for all branches, cleared between them
+        StreamingStats diams = diameterStats();
         for(Graph graph: skelResult.getGraph()) {
             ArrayList<Edge> edges = graph.getEdges();
             for(Edge e: edges) {
-                DescriptiveStatistics diams = new DescriptiveStatistics();
+                diams.clear();
                 for (Point pt: e.getSlabs())
-                    diams.addValue(distMap.getPixel(pt.x, pt.y, pt.z)*2);
+                    diams.add(distMap.getPixel(pt.x, pt.y, pt.z)*2);
 
                 Point v1 = e.getV1().getPoints().get(0);
                 Point v2 = e.getV2().getPoints().get(0);
-                vesselResults.write(imgName+"\t"+roi.getName()+"\t"+e.getLength()+"\t"+diams.getMean()+
-                                    "\t"+diams.getStandardDeviation()+"\t"+diams.getMin()+"\t"+diams.getMax()+
-                                    "\t"+v1.x*cal.pixelWidth+"\t"+v1.y*cal.pixelHeight+"\t"+v1.z*cal.pixelDepth+
-                                    "\t"+v2.x*cal.pixelWidth+"\t"+v2.y*cal.pixelHeight+"\t"+v2.z*cal.pixelDepth+"\n"); 
-                vesselResults.flush();
+                Row vesselRow = new Row().add(imgName).add(roi.getName()).add(e.getLength()).add(diams.getMean())
+                                  .add(diams.getStandardDeviation()).add(diams.getMin()).add(diams.getMax());
+                for (double p : diameterPercentiles)
+                    vesselRow.add(diams.getPercentile(p));
+                roiRows.addVessel(vesselRow.add(v1.x*cal.pixelWidth).add(v1.y*cal.pixelHeight).add(v1.z*cal.pixelDepth)
+                                  .add(v2.x*cal.pixelWidth).add(v2.y*cal.pixelHeight).add(v2.z*cal.pixelDepth));
             }
         }
         
-        tagImage(stackTagSkel, skelResult);
+        tagImage(drawTagSkel, skelResult);
         
         return(totalLength);
     }
 
     
+    /**
+     * Diameter statistics, with a quantile sketch if percentiles are asked for
+     */
+    private StreamingStats diameterStats() {
+        return(new StreamingStats((diameterPercentiles.length == 0) ? null : new QuantileSketch(diameterAccuracy)));
+    }
+    
+    
     /**
      * Tag skeleton dividing the voxels between slabs, end points and junctions
      */
-    private ImageStack tagImage(ImageStack stack, SkeletonResult skeletonResult) {        
+    private SparseOverlay tagImage(SparseOverlay draw, SkeletonResult skeletonResult) {        
+        // Junctions win over slabs whatever the order ROIs sharing voxels are drawn in
         for(Point p: skeletonResult.getListOfSlabVoxels())
-            stack.setVoxel(p.x, p.y, p.z, 40);
+            draw.max(p.x, p.y, p.z, 40);
         for(Point p: skeletonResult.getListOfEndPoints())
-            stack.setVoxel(p.x, p.y, p.z, 40);
+            draw.max(p.x, p.y, p.z, 40);
         for(Point p: skeletonResult.getListOfJunctionVoxels())
-            stack.setVoxel(p.x, p.y, p.z, 200);
+            draw.max(p.x, p.y, p.z, 200);
         
-        return(stack);
+        return(draw);
     }
     
     
     /**
      * Get population of objects with their centroid into ROI translated across stack 
      */
-     private Objects3DIntPopulation getPopInsideRoi(Objects3DIntPopulation popIn, ImagePlus img, Roi roi) {
+    Objects3DIntPopulation getPopInsideRoi(Objects3DIntPopulation popIn, ImagePlus img, Roi roi) {
+        return(getPopInsideRoi(popIn, roundedCentroids(popIn), new RoiLookup(roi, img.getNSlices())));
+    }
+    
+    
+    /**
+     * Get population of objects with their centroid into ROI lookup, centroids being given in population order
+     */
+    Objects3DIntPopulation getPopInsideRoi(Objects3DIntPopulation popIn, int[][] centroids, RoiLookup roi) {
         Objects3DIntPopulation popOut = new Objects3DIntPopulation();
-        
-        int nbSlices = img.getNSlices();
-        String[] translation = roi.getProperty("translation").split("_");
-        double x = Double.valueOf(translation[0]);
-        double y = Double.valueOf(translation[1]);
-        double x_step = x / (nbSlices-1);
-        double y_step = y / (nbSlices-1);
-        
-        for(Object3DInt obj: popIn.getObjects3DInt()) {
-            Point3D centroid = new MeasureCentroid(obj).getCentroidAsPoint();
-            if(centroid.getRoundZ() > 1)    
-                roi.translate(centroid.getRoundZ()*x_step, centroid.getRoundZ()*y_step);
-            if(roi.contains(centroid.getRoundX(), centroid.getRoundY()))
-                popOut.addObject(obj);
-            if(centroid.getRoundZ() > 1) 
-                roi.translate(-1*centroid.getRoundZ()*x_step, -1*centroid.getRoundZ()*y_step);
-        }
+        List<Object3DInt> objs = popIn.getObjects3DInt();
+        for (int i = 0; i < objs.size(); i++)
+            if (roi.contains(centroids[i][0], centroids[i][1], centroids[i][2]))
+                popOut.addObject(objs.get(i));
         return(popOut);
     }
+    
+    
+    /**
+     * Rounded centroids of population objects, computed once and tested against every ROI
+     */
+    int[][] roundedCentroids(Objects3DIntPopulation pop) {
+        List<Object3DInt> objs = pop.getObjects3DInt();
+        int[][] centroids = new int[objs.size()][];
+        for (int i = 0; i < objs.size(); i++) {
+            Point3D centroid = new MeasureCentroid(objs.get(i)).getCentroidAsPoint();
+            centroids[i] = new int[] {centroid.getRoundX(), centroid.getRoundY(), centroid.getRoundZ()};
+        }
+        return(centroids);
+    }
      
      
     /**
-     * Compute and write microglia parameters in results files
+     * Compute and write microglia parameters in results rows, microglial cells in ROI being numbered from firstLabel
+     * Return class of each cell (1 = VAM, 2 = VTM, 3 = VDM, 0 = not classified), drawn by caller
      */ 
-    private void saveMicroResultsInRoi(Roi roi, Objects3DIntPopulation microPop, ImagePlus imgMicro, ImageHandler imhMicro, ImageHandler imhMicroClass,
-                                       AtomicInteger microLabel, ImagePlus imgVesselMaskRoiDil, ImagePlus imgVesselSkel, 
-                                       ImageFloat vesselDistMap, ImageFloat vesselDistMapInv, Calibration cal, double vesselVol, 
-                                       BufferedWriter microResults, BufferedWriter globalResults, 
-                                       String imgName, String roiName) throws IOException {
+    int[] saveMicroResultsInRoi(Roi roi, Objects3DIntPopulation microPopInRoi, int firstLabel, ImagePlus imgVesselMaskRoiDil, ImagePlus imgVesselSkel, 
+                                DistanceMap vesselDistMap, DistanceMap vesselDistMapInv, Calibration cal, double vesselVol, 
+                                ImageRows.RoiRows roiRows, String imgName, String roiName) {
         
         System.out.println("Computing microglia parameters...");
         
-        // Get microglia in ROI
-        Objects3DIntPopulation microPopInRoi = getPopInsideRoi(microPop, imgMicro, roi);
-        
         // Get skeleton in (translated) dilated ROI
         ImagePlus imgVesselSkelRoiDil = clearOutsideRoi(imgVesselSkel, roi, true, cal);
         
         int nbVAM=0, nbVTM=0, nbVDM = 0;
-        for (Object3DInt micro: microPopInRoi.getObjects3DInt()) {
+        List<Object3DInt> micros = microPopInRoi.getObjects3DInt();
+        int[] microClasses = new int[micros.size()];
+        for (int i = 0; i < micros.size(); i++) {
+            Object3DInt micro = micros.get(i);
             double microVol = new MeasureVolume(micro).getVolumeUnit();
-            microResults.write(imgName+"\t"+roiName+"\t"+microLabel.get()+"\t"+microVol);
-            micro.setLabel(microLabel.getAndIncrement());
+            Row microRow = new Row().add(imgName).add(roiName).add(firstLabel + i).add(microVol);
             if(vesselVol == 0) {
-                microResults.write("\t"+Double.NaN+"\t"+Double.NaN+"\t"+Double.NaN+"\t"+Double.NaN+"\n");
-                microResults.flush();
+                roiRows.addMicroglia(microRow.add(Double.NaN).add(Double.NaN).add(Double.NaN).add(Double.NaN));
                 nbVDM++;
             } else {  
                 Object3DInt vesselObj = new Object3DInt(ImageHandler.wrap(imgVesselMaskRoiDil));   
@@ -978,47 +1821,40 @@ public class Tools {
                 Object3DInt skelObj = new Object3DInt(ImageHandler.wrap(imgVesselSkelRoiDil));
                 double vesselDiam = 2*vesselDistMap.getPixel(new Measure2Distance(micro, skelObj).getBorder2Pix());
                 
-                microResults.write("\t"+colocVol+"\t"+centroidDist+"\t"+borderDist+"\t"+vesselDiam+"\n");
-                microResults.flush();
+                roiRows.addMicroglia(microRow.add(colocVol).add(centroidDist).add(borderDist).add(vesselDiam));
 
                 if(colocVol == 0) {
                     nbVDM++;
-                    micro.drawObject(imhMicroClass, 3);
+                    microClasses[i] = 3;
                 } else if(colocVol != 0 && centroidDist == 0) {
                     nbVAM++;
-                    micro.drawObject(imhMicroClass, 1);
+                    microClasses[i] = 1;
                 } else if(colocVol != 0 && centroidDist != 0) {
                     nbVTM++;
-                    micro.drawObject(imhMicroClass, 2);
+                    microClasses[i] = 2;
                 }
             }            
         }
-        
-        microPopInRoi.drawInImage(imhMicro);
                 
-        globalResults.write("\t"+microPopInRoi.getNbObjects()+"\t"+nbVAM+"\t"+nbVTM+"\t"+nbVDM);
-        globalResults.flush();
+        roiRows.global.add(microPopInRoi.getNbObjects()).add(nbVAM).add(nbVTM).add(nbVDM);
         
         closeImage(imgVesselSkelRoiDil);
+        return(microClasses);
     }
     
     
-    private void saveEndoResultsInRoi(Roi roi, Objects3DIntPopulation endoPop, ImagePlus imgEndo, ImageHandler imhEndo, double roiVol, 
-            double vesselTotalLength, BufferedWriter globalResults) throws IOException {
+    private void saveEndoResultsInRoi(RoiLookup roi, Objects3DIntPopulation endoPop, int[][] endoCentroids, SparseOverlay drawEndo, double roiVol, 
+            double vesselTotalLength, Row globalRow) {
         
         System.out.println("Computing endothelial nuclei parameters...");
         
         // Get endothelial nuclei in translated ROI
-        Objects3DIntPopulation endoPopInRoi = getPopInsideRoi(endoPop, imgEndo, roi);
-        endoPopInRoi.drawInImage(imhEndo);
+        Objects3DIntPopulation endoPopInRoi = getPopInsideRoi(endoPop, endoCentroids, roi);
+        drawEndo.draw(endoPopInRoi);
 
-        // Write endothelial nuclei parameters in global results file
+        // Write endothelial nuclei parameters in global results row
         int nbEndoInRoi = endoPopInRoi.getNbObjects();
-        if(vesselTotalLength != 0)
-            globalResults.write("\t"+nbEndoInRoi+"\t"+nbEndoInRoi/roiVol*1e6+"\t"+nbEndoInRoi/vesselTotalLength);
-        else
-            globalResults.write("\t"+nbEndoInRoi+"\t"+nbEndoInRoi/roiVol*1e6+"\t"+Double.NaN);
-        globalResults.flush();
+        globalRow.add(nbEndoInRoi).add(nbEndoInRoi/roiVol*1e6).add((vesselTotalLength != 0) ? nbEndoInRoi/vesselTotalLength : Double.NaN);
     }
      
     
@@ -1033,26 +1869,37 @@ public class Tools {
     }
     
     
-    private void saveImages(ImageStack stackTagSkel, ImageHandler imhVessels, ImageHandler imhMicro, ImageHandler imhMicroClass, ImageHandler imhEndo, 
+    private void saveImages(SparseOverlay drawTagSkel, SparseOverlay drawVessels, SparseOverlay drawMicro, SparseOverlay drawMicroClass, SparseOverlay drawEndo, 
             ImagePlus imgVessels, ImagePlus imgMicro, ImagePlus imgEndo, Calibration cal, String rootName, String outDir)  {
         
-        ImagePlus imgTagSkel = new ImagePlus("", stackTagSkel);
+        // Dense drawings, closed with previews
+        // Previews are made from each image before merging, so that composites are only built at preview size
+        List<ImagePlus> previews = new ArrayList<>();
+        ImagePlus imgTagSkel = preview(dense(drawTagSkel, previews), previews);
+        ImagePlus imgVesselsDraw = preview(dense(drawVessels, previews), previews);
+        ImagePlus imgMicroDraw = preview((imgMicro != null) ? dense(drawMicro, previews) : null, previews);
+        ImagePlus imgMicroClassDraw = preview((imgMicro != null) ? dense(drawMicroClass, previews) : null, previews);
+        ImagePlus imgEndoDraw = preview((imgEndo != null) ? dense(drawEndo, previews) : null, previews);
+        imgVessels = preview(imgVessels, previews);
+        imgMicro = preview(imgMicro, previews);
+        imgEndo = preview(imgEndo, previews);
+        cal = previewCalibration(cal);
+        
         IJ.run(imgTagSkel, "Fire", null);
         imgTagSkel.resetDisplayRange();
-        ImagePlus[] imgStack1 = {imgTagSkel, null, null, imhVessels.getImagePlus()};
+        ImagePlus[] imgStack1 = {imgTagSkel, null, null, imgVesselsDraw};
         ImagePlus imgMerge1 = new RGBStackMerge().mergeHyperstacks(imgStack1, true);
         imgMerge1.setCalibration(cal);
         new FileSaver(imgMerge1).saveAsTiff(outDir+rootName+"_skeleton.tif");
-        closeImage(imgTagSkel);
         closeImage(imgMerge1);
         
-        ImagePlus[] imgStack2 = {imhVessels.getImagePlus(), null, null, imgVessels, null, null};
+        ImagePlus[] imgStack2 = {imgVesselsDraw, null, null, imgVessels, null, null};
         if (imgMicro != null) {
-            imgStack2[1] = imhMicro.getImagePlus();
+            imgStack2[1] = imgMicroDraw;
             imgStack2[4] = imgMicro;
         }
         if (imgEndo != null) {
-            imgStack2[2] = imhEndo.getImagePlus();
+            imgStack2[2] = imgEndoDraw;
             imgStack2[5] = imgEndo;
         }
         ImagePlus imgMerge2 = new RGBStackMerge().mergeHyperstacks(imgStack2, true);
@@ -1069,7 +1916,7 @@ public class Tools {
         closeImage(imgMerge2);
         
         if (imgMicro != null) {
-            ImagePlus[] imgStack3 = {null, imhMicroClass.getImagePlus(), null, imgVessels};
+            ImagePlus[] imgStack3 = {null, imgMicroClassDraw, null, imgVessels};
             ImagePlus imgMerge3 = new RGBStackMerge().mergeHyperstacks(imgStack3, true);
             imgMerge3.setC(1);
             IJ.run(imgMerge3, "Green Fire Blue", "");
@@ -1077,6 +1924,40 @@ public class Tools {
             new FileSaver(imgMerge3).saveAsTiff(outDir+rootName+"_microglia.tif");
             closeImage(imgMerge3);
         }
+        
+        for (ImagePlus preview: previews)
+            closeImage(preview);
+    }
+    
+    
+    private ImagePlus dense(SparseOverlay draw, List<ImagePlus> previews) {
+        ImagePlus img = draw.toImagePlus("");
+        previews.add(img);
+        return(img);
+    }
+    
+    
+    /**
+     * Downsampled or max projection preview of image, depending on overlay mode
+     * Image itself is returned at full resolution, previews are added to list to be closed after use
+     */
+    private ImagePlus preview(ImagePlus img, List<ImagePlus> previews) {
+        if (img == null || overlayMode == overlayModes[0])
+            return(img);
+        ImagePlus preview = (overlayMode == overlayModes[2]) ? ZProjector.run(img, "max") :
+                img.resize(Math.max(1, img.getWidth() / overlayDownsampling), Math.max(1, img.getHeight() / overlayDownsampling), "none");
+        previews.add(preview);
+        return(preview);
+    }
+    
+    
+    private Calibration previewCalibration(Calibration cal) {
+        if (overlayMode != overlayModes[1])
+            return(cal);
+        Calibration previewCal = cal.copy();
+        previewCal.pixelWidth *= overlayDownsampling;
+        previewCal.pixelHeight *= overlayDownsampling;
+        return(previewCal);
     }
     
     
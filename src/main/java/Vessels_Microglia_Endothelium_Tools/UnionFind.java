@@ -0,0 +1,114 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import java.util.Arrays;
+
+
+/**
+ * Union-find over labels, with voxels count per label
+ * Union by rank and path halving, so that find() stays nearly constant time on long chains of merges
+ * Label 0 is reserved for background
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class UnionFind {
+
+    private int[] parent;
+    // Upper bound of the depth of the tree of each root
+    private byte[] ranks;
+    private long[] counts;
+    private int size = 1;
+
+
+    public UnionFind() {
+        this(1024);
+    }
+
+
+    public UnionFind(int capacity) {
+        parent = new int[Math.max(2, capacity)];
+        ranks = new byte[parent.length];
+        counts = new long[parent.length];
+    }
+
+
+    /**
+     * Create a new label and return it
+     */
+    public int add() {
+        if (size == parent.length) {
+            parent = Arrays.copyOf(parent, 2*size);
+            ranks = Arrays.copyOf(ranks, 2*size);
+            counts = Arrays.copyOf(counts, 2*size);
+        }
+        parent[size] = size;
+        return(size++);
+    }
+
+
+    /**
+     * Number of labels created, background included
+     */
+    public int size() {
+        return(size);
+    }
+
+
+    public void count(int label) {
+        counts[label]++;
+    }
+
+
+    public void count(int label, long nbVoxels) {
+        counts[label] += nbVoxels;
+    }
+
+
+    /**
+     * Root of label, each visited label pointed to its grandparent on the way
+     * Labels whose parent is already a root are not written
+     */
+    public int find(int label) {
+        int p;
+        while ((p = parent[label]) != label) {
+            int grandParent = parent[p];
+            if (grandParent != p)
+                parent[label] = grandParent;
+            label = grandParent;
+        }
+        return(label);
+    }
+
+
+    /**
+     * Merge labels a and b, the root of the deepest tree becomes the root of both
+     */
+    public int union(int a, int b) {
+        int ra = find(a);
+        int rb = find(b);
+        if (ra == rb)
+            return(ra);
+        if (ranks[ra] < ranks[rb]) {
+            int tmp = ra;
+            ra = rb;
+            rb = tmp;
+        }
+        parent[rb] = ra;
+        if (ranks[ra] == ranks[rb])
+            ranks[ra]++;
+        return(ra);
+    }
+
+
+    /**
+     * Compress paths and sum voxels counts into roots
+     * After this call, find() is read-only and can be used concurrently
+     */
+    public long[] rootCounts() {
+        long[] roots = new long[size];
+        for (int l = 1; l < size; l++) {
+            parent[l] = find(l);
+            roots[parent[l]] += counts[l];
+        }
+        return(roots);
+    }
+
+}
@@ -0,0 +1,128 @@
+"""
+Long-lived Cellpose/Omnipose worker
+
+Reads one request per line on stdin and answers one line on stdout:
+    segment<TAB>key=value<TAB>key=value...  ->  ok | error<TAB>message
+    quit                                      ->  (worker exits)
+Models are loaded once and kept for the next requests
+Images and masks are either TIFF files or raw .npy files, memory-mapped on both sides
+Logs are written on stderr
+Replies go through a private copy of stdout taken at startup, and stdout is then sent to stderr, so that
+anything Cellpose or its libraries print cannot be mistaken for a reply
+"""
+
+import os
+import sys
+import traceback
+
+# Before importing Cellpose, which may print when loaded
+proto = os.fdopen(os.dup(1), "w")
+os.dup2(2, 1)
+sys.stdout = sys.stderr
+
+import numpy as np
+import tifffile
+from cellpose import models
+
+_models = {}
+
+
+def log(msg):
+    print(msg, file=sys.stderr, flush=True)
+
+
+def reply(msg):
+    proto.write(msg + "\n")
+    proto.flush()
+
+
+def parse(fields):
+    request = {}
+    for field in fields:
+        key, _, value = field.partition("=")
+        request[key] = value
+    return request
+
+
+def flag(request, key):
+    return request.get(key, "false") == "true"
+
+
+def get_model(request):
+    omni = flag(request, "omni")
+    key = (request["model"], flag(request, "gpu"), omni)
+    if key not in _models:
+        log("Loading model " + request["model"])
+        kwargs = {"gpu": key[1], "pretrained_model": key[0]}
+        if omni:
+            kwargs["omni"] = True
+        _models[key] = models.CellposeModel(**kwargs)
+    return _models[key]
+
+
+def read(path):
+    if path.endswith(".npy"):
+        return np.load(path, mmap_mode="r")
+    return tifffile.imread(path)
+
+
+def write(path, masks):
+    masks = np.asarray(masks).astype(np.uint16)
+    if path.endswith(".npy"):
+        out = np.lib.format.open_memmap(path, mode="w+", dtype=np.uint16, shape=masks.shape)
+        out[...] = masks
+        out.flush()
+        del out
+    else:
+        tifffile.imwrite(path, masks)
+
+
+def segment(request):
+    img = read(request["input"])
+    chan2 = int(request.get("chan2", "-1"))
+    kwargs = {
+        "channels": [int(request["chan"]), max(chan2, 0)],
+        "diameter": float(request["diameter"]),
+        "flow_threshold": float(request["flow_threshold"]),
+        "do_3D": flag(request, "do_3D"),
+    }
+    # Flag name of probability threshold depends on Cellpose version
+    if request.get("version") in ("0.7", "1.0"):
+        kwargs["mask_threshold"] = float(request["cellprob_threshold"])
+    else:
+        kwargs["cellprob_threshold"] = float(request["cellprob_threshold"])
+    stitch = float(request.get("stitch_threshold", "-1"))
+    if stitch > -1:
+        kwargs["stitch_threshold"] = stitch
+        kwargs["do_3D"] = False
+    if flag(request, "omni"):
+        kwargs["omni"] = True
+    if flag(request, "cluster"):
+        kwargs["cluster"] = True
+    if flag(request, "resample"):
+        kwargs["resample"] = True
+    if img.ndim == 3 and not kwargs["do_3D"] and stitch <= -1:
+        # Stack of 2D planes: segment each plane independently
+        img = list(img)
+    masks = get_model(request).eval(img, **kwargs)[0]
+    if isinstance(masks, list):
+        masks = np.stack(masks)
+    write(request["mask"], masks)
+
+
+def main():
+    reply("ready")
+    for line in sys.stdin:
+        fields = line.rstrip("\n").split("\t")
+        if fields[0] == "quit":
+            break
+        try:
+            segment(parse(fields[1:]))
+            reply("ok")
+        except Exception as e:
+            log(traceback.format_exc())
+            reply("error\t" + str(e).replace("\n", " "))
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,119 @@
+package Vessels_Microglia_Endothelium_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Cache keys changing with input pixels and with every setting changing masks, and least recently used masks evicted
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class CellposeMaskCacheTest {
+
+    private File dir;
+    private CellposeMaskCache cache;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("cache-test").toFile();
+        // Room for two masks of 16x16x2 16-bit pixels and their header
+        cache = new CellposeMaskCache(new File(dir, "cache"), 2 * (128 + 16*16*2*2));
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+
+    @Test
+    public void keyChangesWithPixelsAndSettings() {
+        ImagePlus img = image(1);
+        String key = cache.key(img, settings());
+        assertEquals("same image and settings give same key", key, cache.key(image(1), settings()));
+        assertNotEquals(key, cache.key(image(2), settings()));
+
+        List<UnaryOperator<CellposeTaskSettings>> changes = Arrays.asList(
+                s -> s.setModel("nuclei"), s -> s.setChannel1(2), s -> s.setChannel2(1), s -> s.setDiameter(20),
+                s -> s.setFlowTh(0.5), s -> s.setCellProbTh(1), s -> s.setStitchThreshold(0.5), s -> s.setVersion("3.0"),
+                s -> s.use3D(true), s -> s.useFastMode(true), s -> s.useResample(true), s -> s.setOmni(true), s -> s.setCluster(true));
+        Set<String> keys = new HashSet<>();
+        keys.add(key);
+        for (UnaryOperator<CellposeTaskSettings> change: changes)
+            assertTrue("each setting changes key", keys.add(cache.key(img, change.apply(settings()))));
+
+        // Settings not changing masks keep key
+        assertEquals(key, cache.key(img, settings().useGpu(true).setVerbose(true).usePersistentWorker(true)));
+    }
+
+
+    @Test
+    public void leastRecentlyUsedMasksEvicted() {
+        String a = cache.key(image(1), settings()), b = cache.key(image(2), settings()), c = cache.key(image(3), settings());
+        cache.put(a, image(1));
+        cache.put(b, image(2));
+        // b used after a, then a used again: b is least recently used
+        long now = System.currentTimeMillis();
+        assertTrue(new File(dir, "cache/" + a + ".npy").setLastModified(now - 20000));
+        assertTrue(new File(dir, "cache/" + b + ".npy").setLastModified(now - 10000));
+        ImagePlus cached = cache.get(a);
+        assertNotNull(cached);
+        assertArrayEquals((short[]) image(1).getStack().getPixels(2), (short[]) cached.getStack().getPixels(2));
+
+        cache.put(c, image(3));
+        assertNotNull(cache.get(a));
+        assertNull("least recently used masks evicted", cache.get(b));
+        assertNotNull(cache.get(c));
+        for (File f: new File(dir, "cache").listFiles())
+            assertTrue(f.getName(), f.getName().endsWith(".npy"));
+    }
+
+
+    @Test
+    public void copiedMasksMatchCachedOnes() throws IOException {
+        File dest = new File(dir, "masks.npy");
+        String key = cache.key(image(1), settings());
+        assertFalse(cache.copy(key, dest));
+        assertNull(cache.get(key));
+        cache.put(key, image(1));
+        assertTrue(cache.copy(key, dest));
+        assertArrayEquals(Files.readAllBytes(new File(dir, "cache/" + key + ".npy").toPath()), Files.readAllBytes(dest.toPath()));
+    }
+
+
+    private CellposeTaskSettings settings() {
+        return(new CellposeTaskSettings(new File(dir, "model").getPath(), 1, 10, dir.getPath()));
+    }
+
+
+    /**
+     * 16x16x2 16-bit image, pixels depending on seed
+     */
+    private static ImagePlus image(int seed) {
+        ImageStack stack = new ImageStack(16, 16);
+        for (int z = 0; z < 2; z++) {
+            short[] pixels = new short[16*16];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (short) ((seed*31 + z*7 + i) % 100);
+            stack.addSlice("", new ShortProcessor(16, 16, pixels, null));
+        }
+        return(new ImagePlus("image", stack));
+    }
+
+}
@@ -0,0 +1,116 @@
+package Vessels_Microglia_Endothelium_Tools.Cellpose;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Round trip of worker protocol with the Java stand-in worker (envType "java"), no Python environment needed
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class CellposeStandInWorkerTest {
+
+    private File dir;
+    private CellposeTaskSettings settings;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("worker-test").toFile();
+        settings = new CellposeTaskSettings("cyto2", 1, 10, dir.getPath()).setEnvType("java");
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        CellposeWorker.shutdownAll();
+        FileUtils.deleteDirectory(dir);
+    }
+
+
+    @Test
+    public void segmentsEachPlane() throws IOException {
+        ImageStack stack = new ImageStack(32, 32);
+        // Two separate squares on first plane, one on second plane
+        stack.addSlice(plane(new int[][] {{2, 2}, {20, 20}}));
+        stack.addSlice(plane(new int[][] {{10, 10}}));
+        File input = new File(dir, "000000.npy");
+        File mask = new File(dir, "000000_cp_masks.npy");
+        NpyFile.write(input, stack);
+
+        CellposeWorker.get(settings).segment(input, mask, settings);
+
+        assertTrue(mask.exists());
+        ImageStack masks = NpyFile.open(mask);
+        assertEquals(2, masks.getSize());
+        assertEquals(2, labels(masks.getProcessor(1)).size());
+        assertEquals(1, labels(masks.getProcessor(2)).size());
+        // Masks match input squares
+        assertTrue(masks.getProcessor(1).get(4, 4) != 0);
+        assertTrue(masks.getProcessor(1).get(22, 22) != 0);
+        assertTrue(masks.getProcessor(1).get(4, 4) != masks.getProcessor(1).get(22, 22));
+        assertEquals(0, masks.getProcessor(1).get(12, 12));
+    }
+
+
+    @Test
+    public void reportsErrorAndKeepsServing() throws IOException {
+        CellposeWorker worker = CellposeWorker.get(settings);
+        File missing = new File(dir, "missing.npy");
+        try {
+            worker.segment(missing, new File(dir, "missing_cp_masks.npy"), settings);
+            fail("Worker should fail on missing input");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("failed on missing.npy"));
+        }
+        assertFalse(new File(dir, "missing_cp_masks.npy").exists());
+
+        // Same worker answers next request
+        ImageStack stack = new ImageStack(32, 32);
+        stack.addSlice(plane(new int[][] {{10, 10}}));
+        File input = new File(dir, "000001.npy");
+        File mask = new File(dir, "000001_cp_masks.npy");
+        NpyFile.write(input, stack);
+        worker.segment(input, mask, settings);
+        assertSame(worker, CellposeWorker.get(settings));
+        assertEquals(1, labels(NpyFile.open(mask).getProcessor(1)).size());
+    }
+
+
+    /**
+     * 16-bit plane with 8x8 bright squares at given corners on a dim background
+     */
+    private static ImageProcessor plane(int[][] corners) {
+        ShortProcessor ip = new ShortProcessor(32, 32);
+        ip.setValue(100);
+        ip.fill();
+        ip.setValue(1000);
+        for (int[] corner: corners) {
+            ip.setRoi(corner[0], corner[1], 8, 8);
+            ip.fill();
+        }
+        ip.resetRoi();
+        return(ip);
+    }
+
+
+    private static Set<Integer> labels(ImageProcessor ip) {
+        Set<Integer> labels = new HashSet<>();
+        for (int i = 0; i < ip.getPixelCount(); i++)
+            if (ip.get(i) != 0)
+                labels.add(ip.get(i));
+        return(labels);
+    }
+
+}
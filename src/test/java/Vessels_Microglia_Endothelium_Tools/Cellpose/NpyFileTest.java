@@ -0,0 +1,153 @@
+package Vessels_Microglia_Endothelium_Tools.Cellpose;
+
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.MappedStack;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * .npy files written by NpyFile and mapped back, header checked against NumPy format version 1.0
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class NpyFileTest {
+
+    private static final String ORDER = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) ? "<" : ">";
+
+    private File dir;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("npy-test").toFile();
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+
+    @Test
+    public void roundTripEachBitDepth() throws IOException {
+        // Odd dimensions, so that neither plane nor header size is a multiple of the alignment
+        for (int bitDepth: new int[] {8, 16, 32}) {
+            ImageStack stack = stack(7, 5, 3, bitDepth);
+            File file = new File(dir, bitDepth + ".npy");
+            NpyFile.write(file, stack);
+
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            assertEquals((byte) 0x93, bytes[0]);
+            assertEquals("NUMPY", new String(bytes, 1, 5, StandardCharsets.US_ASCII));
+            assertEquals(1, bytes[6]);
+            assertEquals(0, bytes[7]);
+            int headerLength = (bytes[8] & 0xff) | (bytes[9] & 0xff) << 8;
+            int offset = 10 + headerLength;
+            assertEquals("data is 64-byte aligned", 0, offset % 64);
+            String header = new String(bytes, 10, headerLength, StandardCharsets.US_ASCII);
+            assertTrue(header, header.endsWith("\n"));
+            String descr = (bitDepth == 8) ? "|u1" : (bitDepth == 16) ? ORDER + "u2" : ORDER + "f4";
+            assertTrue(header, header.startsWith("{'descr': '" + descr + "', 'fortran_order': False, 'shape': (3, 5, 7), }"));
+            assertEquals(offset + 7*5*3*bitDepth/8, bytes.length);
+
+            MappedStack mapped = NpyFile.open(file);
+            assertEquals(7, mapped.getWidth());
+            assertEquals(5, mapped.getHeight());
+            assertEquals(3, mapped.getSize());
+            assertEquals(bitDepth, mapped.getBitDepth());
+            assertSamePixels(stack, mapped);
+            mapped.close();
+            assertFalse("closing mapped stack deletes file", file.exists());
+        }
+    }
+
+
+    @Test
+    public void twoDimensionalArrayOpenedAsOnePlane() throws IOException {
+        File file = new File(dir, "2d.npy");
+        write(file, "{'descr': '" + ORDER + "u2', 'fortran_order': False, 'shape': (5, 7), }", 7*5*2);
+        MappedStack mapped = NpyFile.open(file);
+        assertEquals(7, mapped.getWidth());
+        assertEquals(5, mapped.getHeight());
+        assertEquals(1, mapped.getSize());
+        assertEquals(16, mapped.getBitDepth());
+        mapped.close();
+    }
+
+
+    @Test
+    public void unsupportedArraysRejected() throws IOException {
+        String otherOrder = ORDER.equals("<") ? ">" : "<";
+        String[] dicts = {
+            "{'descr': '" + ORDER + "u2', 'fortran_order': True, 'shape': (3, 5, 7), }",
+            "{'descr': '" + otherOrder + "u2', 'fortran_order': False, 'shape': (3, 5, 7), }",
+            "{'descr': '" + ORDER + "i8', 'fortran_order': False, 'shape': (3, 5, 7), }",
+            "{'descr': '" + ORDER + "u2', 'fortran_order': False, 'shape': (2, 3, 5, 7), }"
+        };
+        for (String dict: dicts) {
+            File file = new File(dir, "unsupported.npy");
+            write(file, dict, 2*3*5*7*8);
+            try {
+                NpyFile.open(file).close();
+                fail("Opened " + dict);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+
+    private static ImageStack stack(int width, int height, int depth, int bitDepth) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ImageProcessor ip = (bitDepth == 8) ? new ByteProcessor(width, height) :
+                                (bitDepth == 16) ? new ShortProcessor(width, height) : new FloatProcessor(width, height);
+            for (int i = 0; i < width*height; i++)
+                ip.setf(i, (bitDepth == 32) ? (z*1000 + i) / 7f - 3 : (z*97 + i*13) % ((bitDepth == 8) ? 256 : 65536));
+            stack.addSlice(ip);
+        }
+        return(stack);
+    }
+
+
+    private static void assertSamePixels(ImageStack expected, ImageStack actual) {
+        for (int z = 1; z <= expected.getSize(); z++) {
+            ImageProcessor expectedIp = expected.getProcessor(z), actualIp = actual.getProcessor(z);
+            for (int i = 0; i < expectedIp.getPixelCount(); i++)
+                assertEquals("slice " + z + " pixel " + i, expectedIp.getf(i), actualIp.getf(i), 0);
+        }
+    }
+
+
+    /**
+     * Write a .npy file with given header dictionary, followed by dataBytes zero bytes
+     */
+    private static void write(File file, String dict, int dataBytes) throws IOException {
+        StringBuilder header = new StringBuilder(dict);
+        while ((10 + header.length() + 1) % 64 != 0)
+            header.append(' ');
+        header.append('\n');
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0});
+            out.write(header.length() & 0xff);
+            out.write((header.length() >> 8) & 0xff);
+            out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[dataBytes]);
+        }
+    }
+
+}
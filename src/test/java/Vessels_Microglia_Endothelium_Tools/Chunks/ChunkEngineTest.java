@@ -0,0 +1,190 @@
+package Vessels_Microglia_Endothelium_Tools.Chunks;
+
+import Vessels_Microglia_Endothelium_Tools.LabelAssert;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Chunked labelling against labelling of the whole volume in one chunk and against a plain 26-connected flood fill
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ChunkEngineTest {
+
+    // Sizes not multiple of chunk sizes, so that last chunks are partial
+    private static final int WIDTH = 45, HEIGHT = 38, DEPTH = 13;
+
+
+    @Test
+    public void chunkedLabelsMatchWholeVolume() {
+        ImagePlus bin = randomBlobs(new Random(1));
+        Calibration cal = calibration();
+        for (double minVol: new double[] {0, 2, 10}) {
+            ImagePlus whole = new ChunkEngine(1000, 1000, 1).labelAndFilterSize(bin, minVol, cal);
+            ImagePlus chunked = new ChunkEngine(8, 4, 4).labelAndFilterSize(bin, minVol, cal);
+            assertSameCompactObjects(whole, chunked);
+        }
+    }
+
+
+    @Test
+    public void labelsMatchFloodFill() {
+        ImagePlus bin = randomBlobs(new Random(2));
+        Calibration cal = calibration();
+        double minVol = 3;
+        ImagePlus chunked = new ChunkEngine(7, 3, 4).labelAndFilterSize(bin, minVol, cal);
+        assertSameCompactObjects(floodFill(bin, minVol / (cal.pixelWidth * cal.pixelHeight * cal.pixelDepth)), chunked);
+    }
+
+
+    @Test
+    public void diagonalNeighboursAcrossChunkCorner() {
+        // Two voxels only touching by a corner, in 4 different chunks
+        ImageStack stack = ImageStack.create(8, 8, 4, 8);
+        stack.getProcessor(2).set(3, 3, 255);
+        stack.getProcessor(3).set(4, 4, 255);
+        ImagePlus labels = new ChunkEngine(4, 2, 2).labelAndFilterSize(new ImagePlus("bin", stack), 0, calibration());
+        float label = labels.getStack().getProcessor(2).getf(3, 3);
+        assertEquals(1, label, 0);
+        assertEquals(label, labels.getStack().getProcessor(3).getf(4, 4), 0);
+    }
+
+
+    @Test
+    public void filterSizeKeepsLabelledVoxelsInPlace() {
+        ImagePlus bin = randomBlobs(new Random(3));
+        Calibration cal = calibration();
+        double minVol = 4;
+        ImagePlus labels = new ChunkEngine(1000, 1000, 1).labelAndFilterSize(bin, minVol, cal);
+        assertEquals(16, labels.getBitDepth());
+        new ChunkEngine(8, 4, 4).filterSize(bin, minVol, cal);
+        for (int z = 1; z <= DEPTH; z++)
+            for (int i = 0; i < WIDTH*HEIGHT; i++)
+                assertEquals((labels.getStack().getProcessor(z).getf(i) > 0) ? 255 : 0, bin.getStack().getProcessor(z).get(i));
+    }
+
+
+    @Test
+    public void countsMatchWholeImage() {
+        ImagePlus img = randomBlobs(new Random(4));
+        long[] whole = new ChunkEngine(1000, 1000, 1).counts(img, 1, 0, ChunkEngineTest::boxSum);
+        long[] chunked = new ChunkEngine(8, 4, 4).counts(img, 1, 0, ChunkEngineTest::boxSum);
+        assertArrayEquals(whole, chunked);
+        // Same counts as the image mapped chunk by chunk
+        ImagePlus mapped = new ChunkEngine(8, 4, 4).map(img, 1, 0, 16, ChunkEngineTest::boxSum);
+        long[] expected = new long[65536];
+        for (int z = 1; z <= DEPTH; z++)
+            for (int i = 0; i < WIDTH*HEIGHT; i++)
+                expected[mapped.getStack().getProcessor(z).get(i)]++;
+        assertArrayEquals(expected, chunked);
+    }
+
+
+    /**
+     * Sum of 3x3 neighbourhood in XY, needing a halo of 1
+     */
+    private static ImagePlus boxSum(ImagePlus img) {
+        ImageStack out = ImageStack.create(img.getWidth(), img.getHeight(), img.getNSlices(), 16);
+        for (int z = 1; z <= img.getNSlices(); z++) {
+            ImageProcessor ip = img.getStack().getProcessor(z);
+            for (int y = 0; y < img.getHeight(); y++)
+                for (int x = 0; x < img.getWidth(); x++) {
+                    float sum = 0;
+                    for (int dy = -1; dy <= 1; dy++)
+                        for (int dx = -1; dx <= 1; dx++)
+                            if (x+dx >= 0 && x+dx < img.getWidth() && y+dy >= 0 && y+dy < img.getHeight())
+                                sum += ip.getf(x+dx, y+dy);
+                    out.getProcessor(z).setf(x, y, sum);
+                }
+        }
+        return(new ImagePlus("sum", out));
+    }
+
+
+    private static Calibration calibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = 0.5;
+        cal.pixelHeight = 0.5;
+        cal.pixelDepth = 2;
+        return(cal);
+    }
+
+
+    /**
+     * Binary volume of random blobs of various sizes, some crossing chunk borders, plus isolated voxels
+     */
+    private static ImagePlus randomBlobs(Random random) {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++)
+            stack.addSlice(new ByteProcessor(WIDTH, HEIGHT));
+        for (int b = 0; b < 40; b++) {
+            int cx = random.nextInt(WIDTH), cy = random.nextInt(HEIGHT), cz = random.nextInt(DEPTH);
+            int r = random.nextInt(4);
+            for (int z = Math.max(0, cz - r); z <= Math.min(DEPTH - 1, cz + r); z++)
+                for (int y = Math.max(0, cy - r); y <= Math.min(HEIGHT - 1, cy + r); y++)
+                    for (int x = Math.max(0, cx - r); x <= Math.min(WIDTH - 1, cx + r); x++)
+                        if ((x-cx)*(x-cx) + (y-cy)*(y-cy) + (z-cz)*(z-cz) <= r*r && random.nextDouble() < 0.8)
+                            stack.getProcessor(z + 1).set(x, y, 255);
+        }
+        return(new ImagePlus("bin", stack));
+    }
+
+
+    /**
+     * Reference labels: 26-connected components with at least minVoxels voxels
+     */
+    private static ImagePlus floodFill(ImagePlus bin, double minVoxels) {
+        int[][][] labels = new int[DEPTH][HEIGHT][WIDTH];
+        ImageStack out = ImageStack.create(WIDTH, HEIGHT, DEPTH, 32);
+        int nbLabels = 0;
+        for (int z = 0; z < DEPTH; z++)
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++) {
+                    if (labels[z][y][x] != 0 || bin.getStack().getProcessor(z + 1).get(x, y) == 0)
+                        continue;
+                    int label = ++nbLabels;
+                    Deque<int[]> component = new ArrayDeque<>();
+                    Deque<int[]> queue = new ArrayDeque<>();
+                    queue.add(new int[] {x, y, z});
+                    labels[z][y][x] = label;
+                    while (!queue.isEmpty()) {
+                        int[] p = queue.poll();
+                        component.add(p);
+                        for (int dz = -1; dz <= 1; dz++)
+                            for (int dy = -1; dy <= 1; dy++)
+                                for (int dx = -1; dx <= 1; dx++) {
+                                    int nx = p[0]+dx, ny = p[1]+dy, nz = p[2]+dz;
+                                    if (nx < 0 || nx >= WIDTH || ny < 0 || ny >= HEIGHT || nz < 0 || nz >= DEPTH || labels[nz][ny][nx] != 0 ||
+                                        bin.getStack().getProcessor(nz + 1).get(nx, ny) == 0)
+                                        continue;
+                                    labels[nz][ny][nx] = label;
+                                    queue.add(new int[] {nx, ny, nz});
+                                }
+                    }
+                    if (component.size() >= minVoxels)
+                        for (int[] p: component)
+                            out.getProcessor(p[2] + 1).setf(p[0], p[1], label);
+                }
+        return(new ImagePlus("reference", out));
+    }
+
+
+    /**
+     * Same objects in both images, labels of actual numbered compactly from 1
+     */
+    private static void assertSameCompactObjects(ImagePlus expected, ImagePlus actual) {
+        Map<Integer, Integer> labels = LabelAssert.assertSameObjects(expected, actual);
+        for (int l = 1; l <= labels.size(); l++)
+            assertTrue("Label " + l + " missing", labels.containsKey(l));
+    }
+
+}
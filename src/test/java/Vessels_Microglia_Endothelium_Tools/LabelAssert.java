@@ -0,0 +1,41 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import ij.ImagePlus;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+
+
+/**
+ * Assertions shared by tests comparing label images
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class LabelAssert {
+
+    /**
+     * Labels of both images describe the same objects: a one to one correspondence between their labels
+     * @return correspondence from labels of actual to labels of expected
+     */
+    public static Map<Integer, Integer> assertSameObjects(ImagePlus expected, ImagePlus actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getStackSize(), actual.getStackSize());
+        Map<Integer, Integer> forward = new HashMap<>();
+        Map<Integer, Integer> backward = new HashMap<>();
+        for (int z = 0; z < expected.getStackSize(); z++) {
+            for (int y = 0; y < expected.getHeight(); y++) {
+                for (int x = 0; x < expected.getWidth(); x++) {
+                    int e = (int) expected.getStack().getProcessor(z + 1).getf(x, y);
+                    int a = (int) actual.getStack().getProcessor(z + 1).getf(x, y);
+                    assertEquals("Background at " + x + "," + y + "," + z, e == 0, a == 0);
+                    if (e == 0)
+                        continue;
+                    assertEquals("Label at " + x + "," + y + "," + z, (Integer) a, forward.computeIfAbsent(e, l -> a));
+                    assertEquals("Label at " + x + "," + y + "," + z, (Integer) e, backward.computeIfAbsent(a, l -> e));
+                }
+            }
+        }
+        return(backward);
+    }
+
+}
@@ -0,0 +1,115 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.Concatenator;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mcib3d.geom2.tracking.TrackingAssociation;
+import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageInt;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static Vessels_Microglia_Endothelium_Tools.LabelAssert.assertSameObjects;
+
+
+/**
+ * MaskStitcher against the previous stitch3D (crop / TrackingAssociation / Concatenator), on labels without
+ * ambiguous overlaps, where both must give the same objects up to label numbers
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class MaskStitcherTest {
+
+    private static final int SIZE = 64;
+
+
+    @Test
+    public void sameObjectsAsStitch3D() {
+        // Disks drifting across slices, numbered independently in each slice as Omnipose 2D masks:
+        // one through all slices, one stopping on slice 3, one appearing on slice 2, one moving too far to be followed
+        int[][][] disks = {
+            // slice: {x, y, radius, label}
+            {{10, 10, 5, 1}, {40, 12, 4, 2}, {30, 50, 5, 3}},
+            {{11, 10, 5, 3}, {41, 13, 4, 1}, {42, 50, 5, 2}},
+            {{12, 11, 5, 2}, {42, 13, 4, 3}, {50, 40, 4, 1}},
+            {{12, 12, 5, 1}, {43, 14, 4, 4}, {51, 41, 4, 2}},
+            {{13, 12, 5, 2}, {51, 42, 4, 1}},
+            {{14, 13, 5, 1}}
+        };
+        ImagePlus img = labels(disks);
+        ImagePlus reference = stitch3D(img.duplicate());
+        new MaskStitcher(0.1).stitch(img);
+
+        assertEquals(16, img.getBitDepth());
+        assertSameObjects(reference, img);
+        // Disk moved too far between slices 0 and 1 to be the same object
+        assertTrue(label(img, 30, 50, 0) != label(img, 42, 50, 1));
+        assertEquals(label(img, 10, 10, 0), label(img, 14, 13, 5));
+        assertEquals(label(img, 50, 40, 2), label(img, 51, 42, 4));
+    }
+
+
+    @Test
+    public void switchesTo32BitAbove65535Labels() {
+        // Slice 0: every pixel its own label, but one left empty, where slice 1 gets a new object
+        ImageStack stack = new ImageStack(256, 256);
+        ShortProcessor ip0 = new ShortProcessor(256, 256);
+        for (int i = 1; i < 256*256; i++)
+            ip0.set(i, i);
+        ShortProcessor ip1 = new ShortProcessor(256, 256);
+        ip1.set(0, 1);
+        stack.addSlice(ip0);
+        stack.addSlice(ip1);
+        ImagePlus img = new ImagePlus("labels", stack);
+
+        new MaskStitcher(0.1).stitch(img);
+
+        assertEquals(32, img.getBitDepth());
+        assertEquals(65535, (int) img.getStack().getProcessor(1).getf(256*256 - 1));
+        assertEquals(65536, (int) img.getStack().getProcessor(2).getf(0));
+    }
+
+
+    /**
+     * Previous implementation, kept as reference
+     */
+    private static ImagePlus stitch3D(ImagePlus img) {
+        int maxLabel = 0;
+        ImagePlus[] slices = new ImagePlus[img.getNSlices()];
+        slices[0] = img.crop(1+"-"+1);
+        for (int i = 1; i < img.getNSlices(); i++) {
+            ImagePlus nextSlice = img.crop((i+1)+"-"+(i+1));
+            TrackingAssociation association = new TrackingAssociation(ImageInt.wrap(slices[i-1]), ImageInt.wrap(nextSlice), 0, 0.1);
+            association.setMaxLabel(maxLabel);
+            ImageHandler associated = association.getTrackedImage();
+            maxLabel = association.getMaxLabel();
+            slices[i] = associated.getImagePlus();
+            nextSlice.close();
+        }
+        ImagePlus imgStitch = new Concatenator().concatenate(slices, false);
+        imgStitch.setDimensions(1, imgStitch.getNFrames(), 1);
+        return(imgStitch);
+    }
+
+
+    private static int label(ImagePlus img, int x, int y, int z) {
+        return((int) img.getStack().getProcessor(z + 1).getf(x, y));
+    }
+
+
+    private static ImagePlus labels(int[][][] disks) {
+        ImageStack stack = new ImageStack(SIZE, SIZE);
+        for (int[][] slice: disks) {
+            ImageProcessor ip = new ShortProcessor(SIZE, SIZE);
+            for (int[] disk: slice) {
+                for (int y = disk[1] - disk[2]; y <= disk[1] + disk[2]; y++)
+                    for (int x = disk[0] - disk[2]; x <= disk[0] + disk[2]; x++)
+                        if ((x - disk[0])*(x - disk[0]) + (y - disk[1])*(y - disk[1]) <= disk[2]*disk[2])
+                            ip.set(x, y, disk[3]);
+            }
+            stack.addSlice(ip);
+        }
+        return(new ImagePlus("labels", stack));
+    }
+
+}
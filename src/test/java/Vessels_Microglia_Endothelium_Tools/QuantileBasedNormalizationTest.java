@@ -0,0 +1,112 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Sharded normalization (statistics, reduce, remap) against the whole cohort normalization of run()
+ * Values of a quantile are replaced at random by the two values around its mean, but in fixed proportions,
+ * so that both normalizations give the same histogram for each image
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class QuantileBasedNormalizationTest {
+
+    private static final String CHANNEL = "-vessels";
+
+    private File wholeDir, shardedDir;
+    private final ArrayList<String> files = new ArrayList<>(Arrays.asList("image1.czi", "image2.czi", "image3.czi"));
+
+
+    @Before
+    public void setUp() throws IOException {
+        wholeDir = Files.createTempDirectory("qbn-whole").toFile();
+        shardedDir = Files.createTempDirectory("qbn-sharded").toFile();
+        // Images with different intensity distributions, saved in both folders
+        for (int i = 0; i < files.size(); i++) {
+            ImagePlus img = randomImage(i, 20 + 30*i, 10 + 15*i);
+            String name = "image" + (i + 1) + CHANNEL + ".tif";
+            assertTrue(new FileSaver(img).saveAsTiffStack(new File(wholeDir, name).getPath()));
+            assertTrue(new FileSaver(img).saveAsTiffStack(new File(shardedDir, name).getPath()));
+        }
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(wholeDir);
+        FileUtils.deleteDirectory(shardedDir);
+    }
+
+
+    @Test
+    public void shardedNormalizationMatchesRun() throws IOException {
+        new QuantileBasedNormalization().run(wholeDir.getPath() + File.separator, files, CHANNEL);
+
+        // Two shards computing statistics of their own images, then both reducing and remapping their own images
+        String dir = shardedDir.getPath() + File.separator;
+        QuantileBasedNormalization qbn = new QuantileBasedNormalization();
+        qbn.computeStatistics(dir, files.subList(0, 1), CHANNEL);
+        qbn.computeStatistics(dir, files.subList(1, 3), CHANNEL);
+        double[] means = qbn.reduceStatistics(dir, files, CHANNEL);
+        assertArrayEquals(means, qbn.reduceStatistics(dir, files, CHANNEL), 0);
+        qbn.remap(dir, files.subList(0, 1), CHANNEL, means);
+        qbn.remap(dir, files.subList(1, 3), CHANNEL, means);
+
+        for (int i = 1; i <= files.size(); i++) {
+            String name = "image" + i + CHANNEL + "-normalized.tif";
+            assertArrayEquals(name, histogram(new File(wholeDir, name)), histogram(new File(shardedDir, name)));
+        }
+
+        // Means file written atomically, no temporary file left
+        String[] lines = new String(Files.readAllBytes(new File(shardedDir, "quantileMeans.txt").toPath()), StandardCharsets.UTF_8).split("\n");
+        assertEquals(means.length, lines.length);
+        for (int q = 0; q < means.length; q++)
+            assertEquals(means[q], Double.parseDouble(lines[q]), 0);
+        for (File f: shardedDir.listFiles())
+            assertFalse(f.getName(), f.getName().endsWith(".tmp"));
+    }
+
+
+    private static ImagePlus randomImage(int seed, double mean, double sd) {
+        Random random = new Random(seed);
+        ImageStack stack = new ImageStack(16, 16);
+        for (int z = 0; z < 4; z++) {
+            byte[] pixels = new byte[16*16];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (byte) Math.max(0, Math.min(255, (int) Math.round(mean + sd*random.nextGaussian())));
+            stack.addSlice("", new ByteProcessor(16, 16, pixels));
+        }
+        return(new ImagePlus("image", stack));
+    }
+
+
+    private static long[] histogram(File file) {
+        ImagePlus img = IJ.openImage(file.getPath());
+        assertNotNull(file.getPath(), img);
+        long[] histogram = new long[256];
+        for (int z = 1; z <= img.getStackSize(); z++) {
+            int[] sliceHistogram = img.getStack().getProcessor(z).getHistogram();
+            for (int v = 0; v < sliceHistogram.length; v++)
+                histogram[v] += sliceHistogram[v];
+        }
+        img.close();
+        return(histogram);
+    }
+
+}
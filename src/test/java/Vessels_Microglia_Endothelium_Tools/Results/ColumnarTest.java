@@ -0,0 +1,152 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Columnar results written by ColumnarWriter and read back by ColumnarReader, against the same rows
+ * formatted as in tab-separated results files
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ColumnarTest {
+
+    private static final String[] COLUMNS = {"Image name", "ROI name", "Branch number", "Branch length (µm)", "Translated"};
+
+    private File dir;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("columnar-test").toFile();
+    }
+
+
+    @After
+    public void tearDown() {
+        for (File f: dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (boolean compress: new boolean[] {false, true}) {
+            List<Row> rows1 = rows("image1", new String[] {"roi1", "roi2"}, 5);
+            List<Row> rows2 = rows("image2", new String[] {"roi1", "roi3", "roi4"}, 3);
+            File file = write(Arrays.asList("image1", "image2"), Arrays.asList(rows1, rows2), compress);
+
+            try (ColumnarReader reader = new ColumnarReader(file)) {
+                assertArrayEquals(COLUMNS, reader.columns());
+                assertEquals(Arrays.asList("image1", "image2"), reader.images());
+                assertEquals(Arrays.asList("roi1", "roi3", "roi4"), reader.rois("image2"));
+                assertEquals(10, reader.rows("image1"));
+                assertSameRows(rows1, reader.readImage("image1"));
+                assertSameRows(rows2, reader.readImage("image2"));
+                assertSameRows(rows2.subList(3, 6), reader.readRoi("image2", "roi3"));
+
+                ColumnarTable table = reader.readImage("image1");
+                assertEquals(1, table.getInts("Branch number")[1]);
+                assertEquals(1.5, table.getDoubles("Branch length (µm)")[1], 0);
+                assertTrue(table.getBooleans("Translated")[5]);
+                assertSameRows(concat(rows1, rows2), reader.readAll());
+            }
+        }
+    }
+
+
+    @Test
+    public void columnsWidenedAcrossRowGroups() throws IOException {
+        // Integer lengths in first image, decimal ones in second, and a numeric column turning into text
+        List<Row> rows1 = new ArrayList<>();
+        rows1.add(new Row().add("image1").add("roi").add(1).add(2).add(true));
+        List<Row> rows2 = new ArrayList<>();
+        rows2.add(new Row().add("image2").add("roi").add("NaN").add(2.5).add(false));
+        File file = write(Arrays.asList("image1", "image2"), Arrays.asList(rows1, rows2), true);
+
+        try (ColumnarReader reader = new ColumnarReader(file)) {
+            ColumnarTable table = reader.readAll();
+            assertArrayEquals(new double[] {2, 2.5}, table.getDoubles("Branch length (µm)"), 0);
+            assertArrayEquals(new String[] {"1", "NaN"}, table.getStrings("Branch number"));
+            assertArrayEquals(new String[] {"true", "false"}, table.getStrings("Translated"));
+        }
+    }
+
+
+    @Test
+    public void rowGroupAppendedAgain() throws IOException {
+        // A resumed run appends the row group saved with the image checkpoint
+        List<Row> rows = rows("image1", new String[] {"roi1"}, 4);
+        byte[] rowGroup = ColumnarWriter.encode(rows, COLUMNS.length, 1, true);
+        File file = new File(dir, "resumed.vmc");
+        try (ColumnarWriter writer = new ColumnarWriter(file, COLUMNS)) {
+            writer.append("image1", rowGroup);
+        }
+        try (ColumnarReader reader = new ColumnarReader(file)) {
+            assertSameRows(rows, reader.readImage("image1"));
+        }
+    }
+
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = new File(dir, "results.csv");
+        Files.write(file.toPath(), "Image name\tROI name\n".getBytes("UTF-8"));
+        new ColumnarReader(file).close();
+    }
+
+
+    private File write(List<String> images, List<List<Row>> rows, boolean compress) throws IOException {
+        File file = new File(dir, "results" + compress + ".vmc");
+        try (ColumnarWriter writer = new ColumnarWriter(file, COLUMNS)) {
+            for (int i = 0; i < images.size(); i++)
+                writer.append(images.get(i), ColumnarWriter.encode(rows.get(i), COLUMNS.length, 1, compress));
+        }
+        return(file);
+    }
+
+
+    /**
+     * Rows of consecutive ROIs, with a string, an int, a double and a boolean column
+     */
+    private static List<Row> rows(String image, String[] rois, int rowsPerRoi) {
+        List<Row> rows = new ArrayList<>();
+        for (int r = 0; r < rois.length; r++)
+            for (int i = 0; i < rowsPerRoi; i++)
+                rows.add(new Row().add(image).add(rois[r]).add(i).add(i * 1.5).add(r % 2 == 1));
+        return(rows);
+    }
+
+
+    private static List<Row> concat(List<Row> rows1, List<Row> rows2) {
+        List<Row> rows = new ArrayList<>(rows1);
+        rows.addAll(rows2);
+        return(rows);
+    }
+
+
+    /**
+     * Table values formatted as strings are the values of tab-separated rows
+     */
+    private static void assertSameRows(List<Row> rows, ColumnarTable table) {
+        assertEquals(rows.size(), table.rows());
+        for (int c = 0; c < COLUMNS.length; c++) {
+            String[] values = table.getStrings(COLUMNS[c]);
+            for (int r = 0; r < rows.size(); r++) {
+                StringBuilder line = new StringBuilder();
+                rows.get(r).format(line);
+                assertEquals(line.toString().split("\t|\n")[c], values[r]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package Vessels_Microglia_Endothelium_Tools.Results;
+
+import Vessels_Microglia_Endothelium_Tools.Checkpoint;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Rows written by ResultsSink in images order whatever the order images are committed, rebuilt or skipped in,
+ * each committed image being marked as done only once its rows are appended to results files
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ResultsSinkTest {
+
+    private File dir;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final StringWriter global = new StringWriter(), vessels = new StringWriter(), microglia = new StringWriter();
+    private Checkpoint checkpoint;
+    private ResultsSink sink;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("sink-test").toFile();
+        // Checkpoint recording appends and done markers, in the order the writer thread runs them
+        checkpoint = new Checkpoint(dir) {
+            @Override
+            public void append(String rootName, BufferedWriter globalResults, BufferedWriter vesselResults, BufferedWriter microResults) throws IOException {
+                super.append(rootName, globalResults, vesselResults, microResults);
+                events.add("append " + rootName);
+            }
+
+            @Override
+            public void markDone(String rootName) throws IOException {
+                super.markDone(rootName);
+                events.add("done " + rootName);
+            }
+        };
+        sink = new ResultsSink(checkpoint, new BufferedWriter(global), new BufferedWriter(vessels), new BufferedWriter(microglia));
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+
+    @Test
+    public void rowsWrittenInImagesOrder() throws IOException {
+        // image1 was committed by a previous run, its rows are only appended again
+        checkpoint.saveRows("image1", "image1\tglobal\n", "image1\tvessel\n", "image1\tmicroglia\n");
+        checkpoint.markDone("image1");
+        events.clear();
+        sink.order(Arrays.asList("image1", "image2", "image3", "image4", "image5"));
+
+        sink.commit(rows("image4", 2));
+        sink.commit(rows("image3", 1));
+        // Nothing is written nor marked as done while image1 and image2 are unresolved
+        sink.skip("image2");
+        assertTrue(events.isEmpty());
+        assertFalse(checkpoint.isDone("image3"));
+        assertFalse(checkpoint.isDone("image4"));
+        sink.rebuild("image1");
+        sink.commit(rows("image5", 1));
+        // Image out of order is written as it comes
+        sink.commit(rows("extra", 1));
+        sink.close();
+
+        List<String> expected = Arrays.asList("append image1", "append image3", "done image3", "append image4", "done image4",
+                                              "append image5", "done image5", "append extra", "done extra");
+        // extra is not held back by order, it may be written before ordered images
+        List<String> ordered = new ArrayList<>(events);
+        ordered.removeAll(Arrays.asList("append extra", "done extra"));
+        assertEquals(expected.subList(0, 7), ordered);
+        assertTrue(events.indexOf("append extra") < events.indexOf("done extra"));
+
+        assertEquals("image1\tglobal\nimage3\troi0\nimage4\troi0\nimage4\troi1\nimage5\troi0\nextra\troi0\n", sorted(global.toString(), "extra"));
+        assertEquals("image1\tvessel\nimage3\troi0\tvessel\nimage4\troi0\tvessel\nimage4\troi1\tvessel\nimage5\troi0\tvessel\nextra\troi0\tvessel\n",
+                     sorted(vessels.toString(), "extra"));
+        assertFalse(checkpoint.isDone("image2"));
+        for (String image: Arrays.asList("image1", "image3", "image4", "image5", "extra"))
+            assertTrue(image, checkpoint.isDone(image));
+    }
+
+
+    @Test
+    public void imagesAfterUnresolvedOneWrittenOnClose() throws IOException {
+        sink.order(Arrays.asList("image1", "image2", "image3"));
+        sink.commit(rows("image1", 1));
+        sink.commit(rows("image3", 1));
+        // image2 never resolved, e.g. run stopped: image3 is still written when sink is closed
+        sink.close();
+
+        assertEquals(Arrays.asList("append image1", "done image1", "append image3", "done image3"), events);
+        assertEquals("image1\troi0\nimage3\troi0\n", global.toString());
+        assertFalse(checkpoint.isDone("image2"));
+    }
+
+
+    /**
+     * Rows of image with given number of ROIs, added in reverse ROI order as by parallel ROI workers
+     */
+    private static ImageRows rows(String image, int rois) {
+        ImageRows rows = new ImageRows(image);
+        for (int r = rois - 1; r >= 0; r--) {
+            ImageRows.RoiRows roi = rows.roi(r);
+            roi.global.add(image).add("roi" + r);
+            roi.addVessel(new Row().add(image).add("roi" + r).add("vessel"));
+        }
+        return(rows);
+    }
+
+
+    /**
+     * Lines of results file with lines of image moved last, as an image out of order can be written at any time
+     */
+    private static String sorted(String lines, String image) {
+        StringBuilder others = new StringBuilder(), last = new StringBuilder();
+        for (String line: lines.split("\n", -1)) {
+            if (line.isEmpty())
+                continue;
+            (line.startsWith(image + "\t") ? last : others).append(line).append('\n');
+        }
+        return(others.append(last).toString());
+    }
+
+}
@@ -0,0 +1,127 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Results files of shards merged by ResultsMerger, against the same images analyzed by a single shard
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class ResultsMergerTest {
+
+    private static final String GLOBAL_HEADER = "Image name\tROI name\tVessels volume (um3)";
+    private static final String MICRO_HEADER = "Image name\tROI name\tCell ID\tCell volume (um3)";
+    // Number of microglial cells of each image, cells IDs restarting at 1 in each image
+    private static final String[] IMAGES = {"image1", "image2", "image3", "image4", "image5"};
+    private static final int[] CELLS = {3, 0, 2, 4, 1};
+
+    private File dir;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("merger-test").toFile();
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+
+    @Test
+    public void shardsMergedInImageOrderWithGlobalCellIds() throws IOException {
+        // Images dealt to shards round robin, so that shards interleave in name order
+        File shard1 = shard("shard1", 0, 3);
+        File shard2 = shard("shard2", 1, 4);
+        File shard3 = shard("shard3", 2);
+        File merged = new File(dir, "merged");
+        new ResultsMerger().merge(merged, Arrays.asList(shard1, shard2, shard3));
+
+        File single = new File(dir, "single");
+        new ResultsMerger().merge(single, Arrays.asList(shard("all", 0, 1, 2, 3, 4)));
+
+        for (String name: ResultsMerger.RESULTS_FILES)
+            if (!name.equals("vesselsResults.csv"))
+                assertEquals(name, read(new File(single, name)), read(new File(merged, name)));
+
+        List<String> global = read(new File(merged, "globalResults.csv"));
+        assertEquals(GLOBAL_HEADER, global.get(0));
+        for (int i = 0; i < IMAGES.length; i++)
+            assertTrue(global.get(i + 1).startsWith(IMAGES[i] + "\t"));
+
+        List<String> micro = read(new File(merged, "microgliaResults.csv"));
+        assertEquals("Image name\tROI name\tCell ID\tGlobal cell ID\tCell volume (um3)", micro.get(0));
+        int row = 1;
+        for (int i = 0; i < IMAGES.length; i++) {
+            for (int cell = 1; cell <= CELLS[i]; cell++) {
+                String[] columns = micro.get(row).split("\t");
+                assertEquals(IMAGES[i], columns[0]);
+                assertEquals(Integer.toString(cell), columns[2]);
+                assertEquals(Integer.toString(row), columns[3]);
+                assertEquals(IMAGES[i] + "-" + cell, columns[4]);
+                row++;
+            }
+        }
+        assertEquals(row, micro.size());
+    }
+
+
+    @Test(expected = IOException.class)
+    public void imageInSeveralShardsRejected() throws IOException {
+        new ResultsMerger().merge(new File(dir, "merged"), Arrays.asList(shard("shard1", 0, 1), shard("shard2", 1, 2)));
+    }
+
+
+    @Test(expected = IOException.class)
+    public void unsortedShardRejected() throws IOException {
+        new ResultsMerger().merge(new File(dir, "merged"), Arrays.asList(shard("shard1", 2, 0)));
+    }
+
+
+    @Test(expected = IOException.class)
+    public void differentHeadersRejected() throws IOException {
+        File shard1 = shard("shard1", 0);
+        File shard2 = shard("shard2", 1);
+        Files.write(new File(shard2, "globalResults.csv").toPath(), Arrays.asList("Image name\tOther column", "image2\t1"), Charset.defaultCharset());
+        new ResultsMerger().merge(new File(dir, "merged"), Arrays.asList(shard1, shard2));
+    }
+
+
+    /**
+     * Shard folder with global and microglia results files of given images, in given order
+     * Microglia cell volume column holds image and cell ID, so that rows can be traced once merged
+     */
+    private File shard(String name, int... images) throws IOException {
+        File shardDir = new File(dir, name);
+        shardDir.mkdirs();
+        List<String> global = new ArrayList<>(Arrays.asList(GLOBAL_HEADER));
+        List<String> micro = new ArrayList<>(Arrays.asList(MICRO_HEADER));
+        for (int i: images) {
+            global.add(IMAGES[i] + "\tROI\t" + (i + 1) * 100);
+            for (int cell = 1; cell <= CELLS[i]; cell++)
+                micro.add(IMAGES[i] + "\tROI\t" + cell + "\t" + IMAGES[i] + "-" + cell);
+        }
+        Files.write(new File(shardDir, "globalResults.csv").toPath(), global, Charset.defaultCharset());
+        Files.write(new File(shardDir, "microgliaResults.csv").toPath(), micro, Charset.defaultCharset());
+        return(shardDir);
+    }
+
+
+    private static List<String> read(File file) throws IOException {
+        return(Files.readAllLines(file.toPath(), Charset.defaultCharset()));
+    }
+
+}
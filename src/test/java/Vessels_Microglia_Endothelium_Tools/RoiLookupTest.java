@@ -0,0 +1,80 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * RoiLookup against the translated ROI tests it replaces, with translations of whole pixels per slice
+ * so that rounding of the lookup does not matter
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class RoiLookupTest {
+
+    private static final int WIDTH = 80, HEIGHT = 60, SLICES = 11;
+
+
+    @Test
+    public void rectangleMatchesTranslatedRoi() {
+        assertSameAsTranslatedRoi(new Roi(10, 15, 20, 12), "20_10");
+    }
+
+
+    @Test
+    public void polygonMatchesTranslatedRoi() {
+        PolygonRoi polygon = new PolygonRoi(new int[] {5, 30, 40, 12}, new int[] {8, 4, 30, 35}, 4, Roi.POLYGON);
+        assertSameAsTranslatedRoi(polygon, "30_-10");
+    }
+
+
+    @Test
+    public void ovalMatchesTranslatedRoi() {
+        assertSameAsTranslatedRoi(new OvalRoi(20, 20, 25, 17), "-10_20");
+    }
+
+
+    @Test
+    public void untranslatedRoi() {
+        assertSameAsTranslatedRoi(new OvalRoi(20, 20, 25, 17), "0_0");
+    }
+
+
+    @Test
+    public void firstSlicesAreNotTranslated() {
+        Roi roi = new Roi(10, 10, 5, 5);
+        roi.setProperty("translation", "100_0");
+        RoiLookup lookup = new RoiLookup(roi, SLICES);
+        // 10 pixels per slice from slice 2 on
+        assertTrue(lookup.contains(10, 10, 0));
+        assertTrue(lookup.contains(10, 10, 1));
+        assertFalse(lookup.contains(10, 10, 2));
+        assertTrue(lookup.contains(30, 10, 2));
+        assertFalse(lookup.contains(9, 10, 0));
+        assertFalse(lookup.contains(15, 10, 0));
+    }
+
+
+    /**
+     * Same test as the former getPopInsideRoi: ROI translated by z times the step of a slice, except on slices 0 and 1
+     */
+    private static void assertSameAsTranslatedRoi(Roi roi, String translation) {
+        roi.setProperty("translation", translation);
+        RoiLookup lookup = new RoiLookup(roi, SLICES);
+        String[] steps = translation.split("_");
+        double xStep = Double.valueOf(steps[0]) / (SLICES-1);
+        double yStep = Double.valueOf(steps[1]) / (SLICES-1);
+        for (int z = 0; z < SLICES; z++) {
+            if (z > 1)
+                roi.translate(z*xStep, z*yStep);
+            for (int y = -5; y < HEIGHT; y++)
+                for (int x = -5; x < WIDTH; x++)
+                    assertEquals("Voxel " + x + "," + y + "," + z, roi.contains(x, y), lookup.contains(x, y, z));
+            if (z > 1)
+                roi.translate(-z*xStep, -z*yStep);
+        }
+    }
+
+}
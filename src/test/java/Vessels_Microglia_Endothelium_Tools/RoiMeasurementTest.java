@@ -0,0 +1,166 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import Vessels_Microglia_Endothelium_Tools.OutOfCore.DistanceMap;
+import Vessels_Microglia_Endothelium_Tools.Results.ImageRows;
+import Vessels_Microglia_Endothelium_Tools.Results.Row;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * ROIs of an image measured concurrently against ROIs measured one after the other:
+ * same results rows, same microglia IDs and same overlays
+ * Image holds two crossing vessels and microglial cells along them, ROIs overlap so that some cells are in several ROIs,
+ * and one ROI is translated across the stack
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class RoiMeasurementTest {
+
+    private static final int WIDTH = 64, HEIGHT = 64, DEPTH = 8;
+
+    private File dir;
+    private final Calibration cal = new Calibration();
+    private ImagePlus imgMask, imgSkel, imgVessels, imgMicro, imgMicroLabels;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("roi-measurement-test").toFile();
+        cal.pixelWidth = 0.5;
+        cal.pixelHeight = 0.5;
+        cal.pixelDepth = 1;
+        cal.setUnit("µm");
+
+        imgMask = IJ.createImage("mask", "8-bit black", WIDTH, HEIGHT, DEPTH);
+        imgSkel = IJ.createImage("skeleton", "8-bit black", WIDTH, HEIGHT, DEPTH);
+        imgVessels = IJ.createImage("vessels", "16-bit black", WIDTH, HEIGHT, DEPTH);
+        imgMicro = IJ.createImage("microglia", "16-bit black", WIDTH, HEIGHT, DEPTH);
+        imgMicroLabels = IJ.createImage("microglia labels", "16-bit black", WIDTH, HEIGHT, DEPTH);
+        for (int z = 2; z <= DEPTH - 1; z++) {
+            // Horizontal vessel along y = 20 and vertical one along x = 40, 5 pixels wide
+            fill(imgMask.getStack().getProcessor(z), 4, 18, 56, 5, 255);
+            fill(imgMask.getStack().getProcessor(z), 38, 4, 5, 56, 255);
+            fill(imgVessels.getStack().getProcessor(z), 4, 18, 56, 5, 1000);
+            fill(imgVessels.getStack().getProcessor(z), 38, 4, 5, 56, 1000);
+        }
+        fill(imgSkel.getStack().getProcessor(4), 6, 20, 52, 1, 255);
+        fill(imgSkel.getStack().getProcessor(4), 40, 6, 1, 52, 255);
+
+        // Cells along vessels and away from them
+        int[][] cells = {{10, 24}, {30, 14}, {44, 30}, {34, 50}, {52, 24}, {20, 44}};
+        for (int c = 0; c < cells.length; c++)
+            for (int z = 3; z <= 5; z++) {
+                fill(imgMicroLabels.getStack().getProcessor(z), cells[c][0], cells[c][1], 3, 3, c + 1);
+                fill(imgMicro.getStack().getProcessor(z), cells[c][0], cells[c][1], 3, 3, 500);
+            }
+        for (ImagePlus img: Arrays.asList(imgMask, imgSkel, imgVessels, imgMicro, imgMicroLabels))
+            img.setCalibration(cal);
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+
+    @Test
+    public void concurrentRoisMatchSequentialRois() throws IOException {
+        File sequentialDir = new File(dir, "sequential");
+        File concurrentDir = new File(dir, "concurrent");
+        sequentialDir.mkdirs();
+        concurrentDir.mkdirs();
+        List<String> sequential = measure(1, sequentialDir);
+        List<String> concurrent = measure(4, concurrentDir);
+
+        assertEquals(sequential, concurrent);
+        assertTrue("microglia rows written", sequential.get(2).split("\n").length > 1);
+
+        File[] overlays = sequentialDir.listFiles();
+        assertTrue("overlays saved", overlays.length > 0);
+        for (File overlay: overlays)
+            assertSameImage(overlay.getName(), IJ.openImage(overlay.getPath()), IJ.openImage(new File(concurrentDir, overlay.getName()).getPath()));
+    }
+
+
+    /**
+     * Global, vessels and microglia rows of image measured with given number of ROI threads, overlays being saved in outDir
+     */
+    private List<String> measure(int roiThreads, File outDir) throws IOException {
+        Tools tools = new Tools();
+        tools.roiThreads = roiThreads;
+        DistanceMap distMap = tools.distanceMap3D(imgMask, false, cal);
+        DistanceMap distMapInv = tools.distanceMap3D(imgMask, true, cal);
+        Objects3DIntPopulation microPop = new Objects3DIntPopulation(ImageHandler.wrap(imgMicroLabels));
+        ImageRows rows = new ImageRows("image");
+        tools.saveResults(rois(), imgMask, imgSkel, distMap, distMapInv, microPop, new Objects3DIntPopulation(), imgVessels, imgMicro, null,
+                          cal, rows, "image", outDir.getPath() + File.separator);
+        tools.overlays.close();
+        distMap.close();
+        distMapInv.close();
+
+        StringBuilder global = new StringBuilder(), vessels = new StringBuilder(), microglia = new StringBuilder();
+        for (ImageRows.RoiRows roi: rows.rois()) {
+            roi.global.format(global);
+            for (Row row: roi.vessels())
+                row.format(vessels);
+            for (Row row: roi.microglia())
+                row.format(microglia);
+        }
+        return(Arrays.asList(global.toString(), vessels.toString(), microglia.toString()));
+    }
+
+
+    /**
+     * Overlapping ROIs, the last one translated across the stack
+     */
+    private static List<Roi> rois() {
+        List<Roi> rois = new ArrayList<>();
+        int[][] rects = {{0, 0, 48, 32}, {24, 0, 40, 40}, {0, 16, 64, 48}, {8, 8, 40, 48}, {30, 30, 30, 30}};
+        for (int r = 0; r < rects.length; r++) {
+            Roi roi = new Roi(rects[r][0], rects[r][1], rects[r][2], rects[r][3]);
+            roi.setName("roi" + (r + 1));
+            roi.setProperty("translation", (r == rects.length - 1) ? "4_-2" : "0_0");
+            rois.add(roi);
+        }
+        return(rois);
+    }
+
+
+    private static void fill(ImageProcessor ip, int x, int y, int width, int height, int value) {
+        for (int j = y; j < y + height; j++)
+            for (int i = x; i < x + width; i++)
+                ip.set(i, j, value);
+    }
+
+
+    private static void assertSameImage(String name, ImagePlus expected, ImagePlus actual) {
+        assertNotNull(name, expected);
+        assertNotNull(name, actual);
+        ImageStack expectedStack = expected.getStack(), actualStack = actual.getStack();
+        assertEquals(name, expectedStack.getSize(), actualStack.getSize());
+        for (int z = 1; z <= expectedStack.getSize(); z++) {
+            ImageProcessor expectedIp = expectedStack.getProcessor(z), actualIp = actualStack.getProcessor(z);
+            for (int i = 0; i < expectedIp.getPixelCount(); i++)
+                assertEquals(name + " slice " + z + " pixel " + i, expectedIp.get(i), actualIp.get(i));
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package Vessels_Microglia_Endothelium_Tools.Stages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Stage graph ordering, concurrency, release of results and failure propagation
+ * Graph of tests is a diamond, as mask -> (skeleton, distance map) -> results:
+ *   a -> b, a -> c, (b, c) -> d
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class StageSchedulerTest {
+
+    private ExecutorService pool;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(3);
+    }
+
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+
+    @Test
+    public void stagesRunAfterTheirDependencies() throws Exception {
+        CountDownLatch bothRunning = new CountDownLatch(2);
+        StageScheduler stages = new StageScheduler(pool);
+        Stage<Integer> a = stages.add("a", () -> record("a", 1), r -> events.add("release a"));
+        Stage<Integer> b = stages.add("b", () -> {
+            bothRunning.countDown();
+            assertTrue("b and c run concurrently", bothRunning.await(10, TimeUnit.SECONDS));
+            return(record("b", a.get() + 1));
+        }, r -> events.add("release b"), a);
+        Stage<Integer> c = stages.add("c", () -> {
+            bothRunning.countDown();
+            assertTrue("b and c run concurrently", bothRunning.await(10, TimeUnit.SECONDS));
+            return(record("c", a.get() + 2));
+        }, r -> events.add("release c"), a);
+        Stage<Integer> d = stages.add("d", () -> record("d", b.get() * c.get()), r -> events.add("release d " + r), b, c);
+        // Nothing runs before run()
+        Thread.sleep(100);
+        assertTrue(events.isEmpty());
+
+        stages.run();
+
+        assertBefore("a", "b");
+        assertBefore("a", "c");
+        assertBefore("b", "d");
+        assertBefore("c", "d");
+        // Intermediate results released once their last consumer is done, final result released by run()
+        assertBefore("b", "release a");
+        assertBefore("c", "release a");
+        assertBefore("d", "release b");
+        assertBefore("d", "release c");
+        assertTrue(events.contains("release d 6"));
+        assertNull(a.get());
+        assertNull(d.get());
+    }
+
+
+    @Test
+    public void resultKeptWithoutRelease() throws Exception {
+        StageScheduler stages = new StageScheduler(pool);
+        Stage<Integer> a = stages.add("a", () -> 1);
+        Stage<Integer> b = stages.add("b", () -> a.get() + 1, a);
+        stages.run();
+        assertEquals(2, (int) b.get());
+    }
+
+
+    @Test
+    public void failureStopsDependentsAndIsRethrown() throws Exception {
+        AtomicBoolean dRan = new AtomicBoolean();
+        StageScheduler stages = new StageScheduler(pool);
+        Stage<Integer> a = stages.add("a", () -> record("a", 1), r -> events.add("release a"));
+        IllegalStateException failure = new IllegalStateException("no vessel");
+        Stage<Integer> b = stages.add("b", () -> {
+            throw failure;
+        }, r -> events.add("release b"), a);
+        Stage<Integer> c = stages.add("c", () -> record("c", 2), r -> events.add("release c"), a);
+        stages.add("d", () -> {
+            dRan.set(true);
+            return(b.get() + c.get());
+        }, b, c);
+
+        try {
+            stages.run();
+            fail("Failure of stage b should be rethrown");
+        } catch (Exception e) {
+            assertEquals("Stage b failed", e.getMessage());
+            assertSame(failure, e.getCause());
+        }
+        assertFalse("d depends on failed stage b", dRan.get());
+        assertTrue("c does not depend on b", events.contains("c"));
+        // Results are released even though the graph failed
+        assertTrue(events.contains("release a"));
+        assertTrue(events.contains("release c"));
+        assertFalse("b has no result", events.contains("release b"));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dependencyMustBeAddedBefore() {
+        StageScheduler other = new StageScheduler(pool);
+        Stage<Integer> a = other.add("a", () -> 1);
+        new StageScheduler(pool).add("b", () -> 2, a);
+    }
+
+
+    private int record(String stage, int result) {
+        events.add(stage);
+        return(result);
+    }
+
+
+    private void assertBefore(String first, String second) {
+        int i = events.indexOf(first), j = events.indexOf(second);
+        assertTrue(first + " missing", i >= 0);
+        assertTrue(second + " missing", j >= 0);
+        assertTrue(first + " before " + second + " in " + events, i < j);
+    }
+
+}
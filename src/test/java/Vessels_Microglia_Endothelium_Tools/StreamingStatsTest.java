@@ -0,0 +1,119 @@
+package Vessels_Microglia_Endothelium_Tools;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Streaming statistics and quantile sketch against exact statistics of the same values
+ * @authors Héloïse Monnet & Philippe Mailly
+ */
+public class StreamingStatsTest {
+
+    private static final double ACCURACY = 0.01;
+
+
+    @Test
+    public void meanAndStandardDeviationAreExact() {
+        double[] values = diameters(new Random(1), 100000);
+        StreamingStats stats = new StreamingStats();
+        for (double v: values)
+            stats.add(v);
+
+        double mean = Arrays.stream(values).sum() / values.length;
+        double ss = 0;
+        for (double v: values)
+            ss += (v - mean) * (v - mean);
+        assertEquals(values.length, stats.getN());
+        assertEquals(mean, stats.getMean(), 1e-9 * mean);
+        assertEquals(Math.sqrt(ss / (values.length - 1)), stats.getStandardDeviation(), 1e-9 * mean);
+        assertEquals(Arrays.stream(values).min().getAsDouble(), stats.getMin(), 0);
+        assertEquals(Arrays.stream(values).max().getAsDouble(), stats.getMax(), 0);
+    }
+
+
+    @Test
+    public void percentilesWithinAccuracy() {
+        double[] values = diameters(new Random(2), 100000);
+        StreamingStats stats = new StreamingStats(new QuantileSketch(ACCURACY));
+        for (double v: values)
+            stats.add(v);
+
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double p: new double[] {0, 1, 10, 25, 50, 75, 90, 99, 100}) {
+            double exact = sorted[(int) Math.floor(p / 100 * (sorted.length - 1))];
+            assertEquals("Percentile " + p, exact, stats.getPercentile(p), ACCURACY * exact);
+        }
+    }
+
+
+    @Test
+    public void mergedSketchesMatchSingleSketch() {
+        Random random = new Random(3);
+        QuantileSketch all = new QuantileSketch(ACCURACY);
+        QuantileSketch merged = new QuantileSketch(ACCURACY);
+        // Parts with different ranges, as ROIs with thin and large vessels
+        for (double scale: new double[] {0.5, 5, 50}) {
+            QuantileSketch part = new QuantileSketch(ACCURACY);
+            for (double v: diameters(random, 10000)) {
+                part.add(v * scale);
+                all.add(v * scale);
+            }
+            merged.merge(part);
+        }
+        assertEquals(all.getCount(), merged.getCount());
+        for (double q = 0; q <= 1; q += 0.05)
+            assertEquals(all.quantile(q), merged.quantile(q), 0);
+    }
+
+
+    @Test
+    public void zerosAreCounted() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        for (int i = 0; i < 30; i++)
+            sketch.add(0);
+        for (int i = 1; i <= 70; i++)
+            sketch.add(i);
+        assertEquals(0, sketch.quantile(0.25), 0);
+        assertEquals(50, sketch.quantile(0.8), ACCURACY * 50);
+    }
+
+
+    @Test
+    public void emptyAndClearedStreams() {
+        StreamingStats stats = new StreamingStats(new QuantileSketch(ACCURACY));
+        assertTrue(Double.isNaN(stats.getMean()));
+        assertTrue(Double.isNaN(stats.getStandardDeviation()));
+        assertTrue(Double.isNaN(stats.getPercentile(50)));
+        stats.add(3);
+        assertEquals(3, stats.getMean(), 0);
+        assertEquals(0, stats.getStandardDeviation(), 0);
+        assertEquals(3, stats.getPercentile(50), ACCURACY * 3);
+        stats.clear();
+        assertEquals(0, stats.getN());
+        assertTrue(Double.isNaN(stats.getMin()));
+        assertTrue(Double.isNaN(stats.getPercentile(50)));
+        assertTrue(Double.isNaN(new StreamingStats().getPercentile(50)));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sketchRejectsNegativeValues() {
+        new QuantileSketch(ACCURACY).add(-1);
+    }
+
+
+    /**
+     * Log-normal values, spread as vessel diameters in µm
+     */
+    private static double[] diameters(Random random, int n) {
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++)
+            values[i] = Math.exp(1 + 0.6 * random.nextGaussian());
+        return(values);
+    }
+
+}